@@ -0,0 +1,120 @@
+package org.georchestra.security;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Copy of the headers of a browser request to the backend request, and of the backend response to the client,
+ * with the header providers and filters of the default configuration.
+ * <p>
+ * The session holds the JSESSIONID cookies of several backends and the browser sends the cookies of the other
+ * applications of the host, as a user of the SDI would. Run with <code>-prof gc</code> to get the bytes allocated
+ * per operation.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeadersManagementStrategyBenchmark {
+
+    private HeadersManagementStrategy strategy;
+    private MockHttpServletRequest request;
+    private HttpResponse backendResponse;
+    private Map<String, String> targets;
+
+    @Setup
+    public void setUp() {
+        strategy = new HeadersManagementStrategy();
+        strategy.setReferer("https://georchestra.example.org/");
+        strategy.setHeaderProviders(Arrays.<HeaderProvider> asList(new SecurityRequestHeaderProvider()));
+        strategy.setFilters(Arrays.<HeaderFilter> asList(new SecurityRequestHeaderFilter(), new RemoveXForwardedHeaders()));
+
+        request = new MockHttpServletRequest("GET", "/sec/geoserver/wms");
+        request.setQueryString("SERVICE=WMS&VERSION=1.3.0&REQUEST=GetMap&LAYERS=topp:states&CRS=EPSG:4326"
+                + "&BBOX=-90,-180,90,180&WIDTH=768&HEIGHT=384&FORMAT=image/png");
+        request.addHeader("Host", "georchestra.example.org");
+        request.addHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:38.0) Gecko/20100101 Firefox/38.0");
+        request.addHeader("Accept", "image/png,image/*;q=0.8,*/*;q=0.5");
+        request.addHeader("Accept-Language", "fr,fr-FR;q=0.8,en-US;q=0.5,en;q=0.3");
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+        request.addHeader("Referer", "https://georchestra.example.org/mapfishapp/");
+        request.addHeader("Cookie", "JSESSIONID=1F2E3D4C5B6A; _ga=GA1.2.123456789.1434000000; mapfishapp-lang=fr; "
+                + "_gid=GA1.2.987654321.1434000000; geonetwork-lang=fre; extractorapp-format=shp; "
+                + "GS_FLOW_CONTROL=GS_CFLOW_-5a7b3c1d:14dfa3e2b1c:-7ff8; viewer-layers=topp:states,topp:roads");
+        request.addHeader("Connection", "keep-alive");
+        request.addHeader("X-Forwarded-For", "192.168.1.12");
+        request.addHeader("X-Forwarded-Host", "georchestra.example.org");
+
+        backendResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        backendResponse.addHeader("Date", "Mon, 15 Jun 2015 10:00:00 GMT");
+        backendResponse.addHeader("Server", "Apache-Coyote/1.1");
+        backendResponse.addHeader("Content-Type", "image/png");
+        backendResponse.addHeader("Content-Disposition", "inline; filename=geoserver-GetMap.image");
+        backendResponse.addHeader("Cache-Control", "max-age=0, must-revalidate");
+        backendResponse.addHeader("Set-Cookie", "JSESSIONID=9A8B7C6D5E4F; Path=/geoserver/; HttpOnly");
+        backendResponse.addHeader("Set-Cookie", "GS_FLOW_CONTROL=GS_CFLOW_-5a7b3c1d:14dfa3e2b1c:-7ff8; Path=/geoserver");
+        backendResponse.addHeader("Set-Cookie", "geoserver-lang=fr; Expires=Tue, 14 Jun 2016 10:00:00 GMT; Path=/geoserver");
+        backendResponse.addHeader("Transfer-Encoding", "chunked");
+
+        targets = Collections.singletonMap("geoserver", "http://localhost:8080/geoserver/");
+
+        // the JSESSIONID cookies of the backends the user already went through
+        for (String path : new String[] { "/geonetwork/", "/mapfishapp/", "/extractorapp/", "/ldapadmin/",
+                "/geoserver/" }) {
+            HttpResponse login = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            login.addHeader("Set-Cookie", "JSESSIONID=" + Integer.toHexString(path.hashCode()).toUpperCase()
+                    + "; Path=" + path + "; HttpOnly");
+            strategy.copyResponseHeaders(request, "/sec" + path, login, new MockHttpServletResponse(), targets);
+        }
+
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("testuser",
+                "secret", Arrays.<GrantedAuthority> asList(new SimpleGrantedAuthority("ROLE_SV_USER"),
+                        new SimpleGrantedAuthority("ROLE_MOD_EXTRACTORAPP"))));
+    }
+
+    @TearDown
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Benchmark
+    public HttpGet configureRequestHeaders() {
+        HttpGet proxyRequest = new HttpGet("http://localhost:8080/geoserver/wms?" + request.getQueryString());
+        strategy.configureRequestHeaders(request, proxyRequest);
+        return proxyRequest;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse copyResponseHeaders() {
+        MockHttpServletResponse finalResponse = new MockHttpServletResponse();
+        strategy.copyResponseHeaders(request, "/sec/geoserver/wms", backendResponse, finalResponse, targets);
+        return finalResponse;
+    }
+}
@@ -0,0 +1,96 @@
+package org.georchestra.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.georchestra.ogcservstatistics.log4j.OGCServiceMessageFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per request work of the {@link Proxy} on the responses: check of the content types needing a charset, sniffing
+ * of the charset of xml documents, plain and gzipped, and formatting of the OGC statistics message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyBenchmark {
+
+    private static final String GET_MAP = "http://localhost:8080/geoserver/wms?SERVICE=WMS&VERSION=1.3.0"
+            + "&REQUEST=GetMap&LAYERS=topp:states,sf:roads&STYLES=&CRS=EPSG:3857"
+            + "&BBOX=-20037508.34,-20037508.34,20037508.34,20037508.34&WIDTH=512&HEIGHT=512&FORMAT=image/png";
+
+    private Proxy proxy;
+    private byte[] capabilities;
+    private byte[] gzippedCapabilities;
+    private byte[] undeclared;
+
+    @Setup
+    public void setUp() throws IOException {
+        proxy = new Proxy();
+        // same list as in proxy-servlet.xml
+        proxy.setRequireCharsetContentTypes(Arrays.asList("application/xml", "text/xml", "application/osm3s+xml",
+                "application/vnd.ogc.se_xml", "application/vnd.ogc.se+xml", "application/vnd.ogc.success+xml",
+                "application/vnd.ogc.wms_xml", "application/vnd.ogc.context+xml", "application/vnd.ogc.gml",
+                "application/vnd.ogc.sld+xml", "application/vnd.google-earth.kml+xml"));
+
+        StringBuilder document = new StringBuilder("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+                + "<WMS_Capabilities version=\"1.3.0\" xmlns=\"http://www.opengis.net/wms\">\n");
+        for (int i = 0; i < 100; i++) {
+            document.append("  <Layer queryable=\"1\"><Name>layer").append(i).append("</Name></Layer>\n");
+        }
+        document.append("</WMS_Capabilities>\n");
+        capabilities = document.toString().getBytes("ISO-8859-1");
+        undeclared = document.substring(document.indexOf("\n") + 1).getBytes("UTF-8");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(capabilities);
+        gzip.close();
+        gzippedCapabilities = bytes.toByteArray();
+    }
+
+    @Benchmark
+    public boolean isCharsetRequiredForContentType() {
+        return proxy.isCharsetRequiredForContentType("application/vnd.ogc.wms_xml;charset=UTF-8");
+    }
+
+    @Benchmark
+    public boolean isCharsetNotRequiredForContentType() {
+        return proxy.isCharsetRequiredForContentType("image/png");
+    }
+
+    @Benchmark
+    public String sniffDeclaredCharset() {
+        return CharsetSniffer.sniff(capabilities, capabilities.length, null);
+    }
+
+    @Benchmark
+    public String sniffGzippedCharset() {
+        return CharsetSniffer.sniff(gzippedCapabilities, gzippedCapabilities.length, "gzip");
+    }
+
+    @Benchmark
+    public String sniffUndeclaredCharset() {
+        return CharsetSniffer.sniff(undeclared, undeclared.length, null);
+    }
+
+    @Benchmark
+    public String formatOgcMessage() {
+        return OGCServiceMessageFormatter.format("testuser", GET_MAP, "geOrchestra");
+    }
+}
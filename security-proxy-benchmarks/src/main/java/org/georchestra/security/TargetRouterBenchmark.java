@@ -0,0 +1,78 @@
+package org.georchestra.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing of a request path by the {@link TargetRouter} as the number of targets grows.
+ * <p>
+ * Run with the gc profiler ({@code -prof gc}) to check the allocation rate: finding the route of a path does not
+ * allocate, building the forwarded url only allocates the resulting string.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TargetRouterBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int targets;
+
+    private TargetRouter router;
+    private String matchingPath;
+    private String unknownPath;
+    private String uncleanPath;
+
+    @Setup
+    public void setUp() throws Exception {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < targets; i++) {
+            map.put("target" + i, "http://localhost:8080/target" + i + "/");
+        }
+        router = new TargetRouter(map, "http://localhost:8080/");
+        matchingPath = "/target" + (targets / 2) + "/ows/wms";
+        unknownPath = "/unknown/ows/wms";
+        uncleanPath = "/target" + (targets / 2) + "//ows//wms";
+    }
+
+    @Benchmark
+    public TargetRouter.Route findRoute() {
+        return router.findRoute(matchingPath);
+    }
+
+    @Benchmark
+    public String findTarget() {
+        return router.findTarget(matchingPath);
+    }
+
+    @Benchmark
+    public String findDefaultTarget() {
+        return router.findTarget(unknownPath);
+    }
+
+    @Benchmark
+    public String normalizeCleanPath() {
+        return TargetRouter.normalize(matchingPath);
+    }
+
+    @Benchmark
+    public String normalizeUncleanPath() {
+        return TargetRouter.normalize(uncleanPath);
+    }
+}
@@ -0,0 +1,87 @@
+package org.georchestra.security.permissions;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Check of the urls requested through the url parameter against the permissions of the default configuration,
+ * with the decision cache ({@link Permissions#isDenied(URL)}) and without it (the {@link PermissionIndex}es).
+ * <p>
+ * Only localhost and ip literals are used so that no name is resolved out of the machine.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PermissionsBenchmark {
+
+    private Permissions permissions;
+    private PermissionIndex deniedIndex;
+    private PermissionIndex allowedIndex;
+    private URL[] urls;
+    private int next;
+
+    @Setup
+    public void setUp() throws UnknownHostException, MalformedURLException {
+        DnsCache dnsCache = new DnsCache();
+        permissions = new Permissions().setDnsCache(dnsCache)
+                .setDenied(Arrays.asList(
+                        new UriMatcher().setHost("localhost"),
+                        new UriMatcher().setHost("127.0.0.0/8"),
+                        new UriMatcher().setHost("10.0.0.0/8"),
+                        new UriMatcher().setHost("172.16.0.0/12"),
+                        new UriMatcher().setHost("192.168.0.0/16"),
+                        new UriMatcher().setHost("169.254.0.0/16").setPort(80)))
+                .setAllowed(Arrays.asList(
+                        new UriMatcher().setHost("192.168.1.10").setPath("/geoserver/.*"),
+                        new UriMatcher().setHost("192.168.1.11").setPort(8080).setPath("/geonetwork/srv/.*"),
+                        new UriMatcher().setHost("10.1.2.3/32").setPath("/mapserver/wms")));
+        permissions.setAllowByDefault(true);
+        permissions.init();
+        deniedIndex = new PermissionIndex(permissions.getDenied(), dnsCache);
+        allowedIndex = new PermissionIndex(permissions.getAllowed(), dnsCache);
+
+        urls = new URL[] {
+                new URL("http://localhost:8080/geoserver/wms?SERVICE=WMS&REQUEST=GetCapabilities"),
+                new URL("http://192.168.1.10/geoserver/wfs?SERVICE=WFS&REQUEST=GetFeature"),
+                new URL("http://192.168.1.11:8080/geonetwork/srv/eng/csw"),
+                new URL("http://10.1.2.3/mapserver/wms"),
+                new URL("http://172.20.1.1/private"),
+                new URL("http://8.8.8.8/public/wms"),
+                new URL("http://[2001:db8::1]/ows") };
+    }
+
+    private URL nextUrl() {
+        URL url = urls[next];
+        next = (next + 1) % urls.length;
+        return url;
+    }
+
+    @Benchmark
+    public boolean isDenied() {
+        return permissions.isDenied(nextUrl());
+    }
+
+    @Benchmark
+    public boolean indexMatches() {
+        URL url = nextUrl();
+        return allowedIndex.matches(url) || deniedIndex.matches(url);
+    }
+}
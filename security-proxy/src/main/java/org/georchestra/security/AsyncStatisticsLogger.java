@@ -0,0 +1,222 @@
+package org.georchestra.security;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.ogcservstatistics.log4j.OGCServiceMessageFormatter;
+
+/**
+ * Writes the statistics of the proxied requests from a dedicated thread.
+ * <p>
+ * The log4j appenders are synchronized, so logging the statistics from the request threads made every proxied
+ * request contend on the appender lock and wait for the statistics database. The requests now only offer an event
+ * to a bounded lock free {@link RingBuffer}, which a single consumer thread formats and logs to the statistics
+ * logger of the {@link Proxy}.
+ * </p>
+ * <p>
+ * When the buffer is full the event is dropped, or logged by the request thread as before with the CALLER_LOGS
+ * overflow policy. The dropped events are counted and reported in the proxy log every reportInterval milliseconds.
+ * </p>
+ */
+public class AsyncStatisticsLogger {
+    protected static final Log logger = LogFactory.getLog(AsyncStatisticsLogger.class.getPackage().getName());
+
+    /**
+     * What is done with the events offered while the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** the event is dropped and counted */
+        DROP,
+        /** the event is logged by the request thread, which then waits for the appender */
+        CALLER_LOGS
+    }
+
+    private int capacity = 8192;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private long idleWait = 10;
+    private long reportInterval = 60000;
+
+    private volatile RingBuffer<Event> buffer;
+    private volatile boolean running;
+    private Thread consumer;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong callerLogged = new AtomicLong();
+    private volatile long logged;
+    private long reportedDropped;
+
+    public synchronized void init() {
+        if (consumer != null) {
+            return;
+        }
+        buffer = new RingBuffer<Event>(capacity);
+        running = true;
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "security-proxy-statistics");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Stops the consumer thread once it has logged the events still in the buffer.
+     */
+    public synchronized void destroy() throws InterruptedException {
+        if (consumer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(consumer);
+        consumer.join(TimeUnit.SECONDS.toMillis(10));
+        if (!consumer.isAlive()) {
+            // events offered by requests which were checking running while it was cleared
+            Event event;
+            while ((event = buffer.poll()) != null) {
+                write(event);
+            }
+        }
+        consumer = null;
+    }
+
+    /**
+     * Records a proxied request, without waiting for the statistics logger. Before {@link #init()} or after
+     * {@link #destroy()} the request is logged by the caller.
+     *
+     * @param user name of the authenticated user
+     * @param url the url the request is forwarded to
+     * @param org organisation of the user, may be empty
+     */
+    public void log(String user, String url, String org) {
+        Event event = new Event(user, System.currentTimeMillis(), url, org);
+        RingBuffer<Event> events = buffer;
+        if (events != null && running && events.offer(event)) {
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.CALLER_LOGS || events == null || !running) {
+            callerLogged.incrementAndGet();
+            write(event);
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void consume() {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleWait);
+        long nextReport = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reportInterval);
+        RingBuffer<Event> events = buffer;
+        while (true) {
+            Event event = events.poll();
+            if (event != null) {
+                try {
+                    write(event);
+                } catch (RuntimeException e) {
+                    logger.error("Unable to log the request into the statistics logger", e);
+                }
+                logged++;
+                continue;
+            }
+            if (!running) {
+                // the events offered before running was cleared have all been logged
+                break;
+            }
+            if (System.nanoTime() - nextReport >= 0) {
+                reportDropped();
+                nextReport = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reportInterval);
+            }
+            LockSupport.parkNanos(this, idleNanos);
+        }
+        reportDropped();
+    }
+
+    private void reportDropped() {
+        long total = dropped.get();
+        if (total > reportedDropped && logger.isWarnEnabled()) {
+            logger.warn((total - reportedDropped) + " statistics events dropped, the statistics buffer of " + capacity
+                    + " events was full");
+        }
+        reportedDropped = total;
+    }
+
+    /**
+     * Logs an event to the statistics logger, called by the consumer thread and by the callers on overflow.
+     */
+    protected void write(Event event) {
+        Proxy.statsLogger.info(OGCServiceMessageFormatter.format(event.user, new Date(event.time), event.url,
+                event.org));
+    }
+
+    /**
+     * @return number of events dropped since the start because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of events logged by the request threads because the buffer was full or not started
+     */
+    public long getCallerLoggedCount() {
+        return callerLogged.get();
+    }
+
+    /**
+     * @return number of events logged by the consumer thread, approximate when read from another thread
+     */
+    public long getLoggedCount() {
+        return logged;
+    }
+
+    /**
+     * @return number of events waiting in the buffer
+     */
+    public int getPendingCount() {
+        RingBuffer<Event> events = buffer;
+        return events == null ? 0 : events.size();
+    }
+
+    /**
+     * @param capacity max number of events waiting to be logged, rounded up to a power of 2
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param idleWait milliseconds the consumer thread sleeps when the buffer is empty
+     */
+    public void setIdleWait(long idleWait) {
+        this.idleWait = idleWait;
+    }
+
+    /**
+     * @param reportInterval milliseconds between the warnings about the dropped events
+     */
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    protected static final class Event {
+        final String user;
+        final long time;
+        final String url;
+        final String org;
+
+        Event(String user, long time, String url, String org) {
+            this.user = user;
+            this.time = time;
+            this.url = url;
+            this.org = org;
+        }
+    }
+}
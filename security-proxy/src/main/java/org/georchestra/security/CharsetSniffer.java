@@ -0,0 +1,100 @@
+package org.georchestra.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Finds the charset of an xml document from its first bytes: byte order mark, encoding attribute of the xml
+ * prolog or charset of a meta element.
+ * <p>
+ * Only the first {@link #SNIFF_WINDOW} bytes of the document are looked at. When the document is compressed
+ * only its beginning is inflated, the compressed bytes themselves can then be sent as is to the client.
+ * </p>
+ */
+final class CharsetSniffer {
+    /**
+     * number of bytes of the (uncompressed) document in which the charset is searched
+     */
+    static final int SNIFF_WINDOW = 1024;
+
+    private static final Charset ASCII_COMPATIBLE = Charset.forName("ISO-8859-1");
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*['\"]([A-Za-z][A-Za-z0-9._\\-]*)['\"]");
+    private static final Pattern META_CHARSET = Pattern.compile("charset\\s*=\\s*['\"]?([A-Za-z][A-Za-z0-9._\\-]*)",
+            Pattern.CASE_INSENSITIVE);
+
+    private CharsetSniffer() {
+    }
+
+    /**
+     * @param buf             beginning of the document as sent by the server
+     * @param len             number of bytes of buf to use
+     * @param contentEncoding Content-Encoding of the document, may be null
+     * @return the charset or null if not found
+     */
+    static String sniff(byte[] buf, int len, String contentEncoding) {
+        if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)) {
+            return sniff(buf, Math.min(len, SNIFF_WINDOW));
+        }
+        byte[] window = new byte[SNIFF_WINDOW];
+        int inflated = inflate(buf, len, contentEncoding, window);
+        return inflated > 0 ? sniff(window, inflated) : null;
+    }
+
+    /**
+     * @return the charset declared in the first len bytes of buf, null if not found
+     */
+    static String sniff(byte[] buf, int len) {
+        if (len >= 3 && (buf[0] & 0xFF) == 0xEF && (buf[1] & 0xFF) == 0xBB && (buf[2] & 0xFF) == 0xBF) {
+            return "UTF-8";
+        }
+        if (len >= 2 && (buf[0] & 0xFF) == 0xFE && (buf[1] & 0xFF) == 0xFF) {
+            return "UTF-16BE";
+        }
+        if (len >= 2 && (buf[0] & 0xFF) == 0xFF && (buf[1] & 0xFF) == 0xFE) {
+            return "UTF-16LE";
+        }
+        // every byte maps to a single char, the declaration is in ascii
+        String prolog = new String(buf, 0, len, ASCII_COMPATIBLE);
+        Matcher matcher = ENCODING.matcher(prolog);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+        matcher = META_CHARSET.matcher(prolog);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+        return null;
+    }
+
+    /**
+     * Inflates the beginning of a compressed document.
+     *
+     * @return the number of bytes written in window, -1 if the content encoding is not supported
+     */
+    static int inflate(byte[] compressed, int len, String contentEncoding, byte[] window) {
+        InputStream in = new ByteArrayInputStream(compressed, 0, len);
+        int read = 0;
+        try {
+            if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+                in = new GZIPInputStream(in);
+            } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+                in = new InflaterInputStream(in);
+            } else {
+                return -1;
+            }
+            int n;
+            while (read < window.length && (n = in.read(window, read, window.length - read)) > 0) {
+                read += n;
+            }
+        } catch (IOException e) {
+            // only the beginning of the document is available, keep what could be inflated
+        }
+        return read;
+    }
+}
@@ -0,0 +1,364 @@
+package org.georchestra.security;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Keeps the JSESSIONID cookies of the backends in a cookie of the client instead of the session of the proxy.
+ * <p>
+ * By default the {@link HeadersManagementStrategy} creates a session that never expires for every client and keeps
+ * the backend session ids in it, so the heap of the proxy grows with every anonymous client which ever reached a
+ * stateful backend. With a cookie jar no session is created by the proxy: the backend session ids are encrypted
+ * (AES-CBC) and signed (HMAC-SHA256, over the name of the authenticated user, the initialization vector and the
+ * encrypted ids) into the cookieName cookie, which is never forwarded to the backends. A cookie is only read for
+ * the user it was issued to, so the backend sessions of a user cannot be replayed by another one. The backends the
+ * balanced targets are bound to by the {@link org.georchestra.security.balancer.LoadBalancer} are kept in the same
+ * cookie.
+ * </p>
+ * <p>
+ * The keys are derived from the secret, which must be the same on all the instances of the proxy and at least
+ * {@value #MIN_SECRET_LENGTH} characters long. Without a secret the jar fails to start, unless allowRandomKeys is
+ * set: random keys are then generated, and the backend sessions are lost when the proxy restarts. A cookie older
+ * than timeToLive seconds, or whose signature does not match, is ignored.
+ * </p>
+ */
+public class ClientCookieJar {
+    protected static final Log logger = LogFactory.getLog(ClientCookieJar.class.getPackage().getName());
+
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String MAC = "HmacSHA256";
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+    /** starts the lines of the backends in the cookie, the other ones being paths of session ids */
+    private static final char BACKEND = '*';
+    private static final String REQUEST_ATTRIBUTE = ClientCookieJar.class.getName();
+    static final int MIN_SECRET_LENGTH = 32;
+
+    private String cookieName = "SP_BACKEND_SESSIONS";
+    private String path = "/";
+    private boolean secure = false;
+    private long timeToLive = 86400;
+    private int maxCookieSize = 4000;
+    private boolean allowRandomKeys = false;
+    private int secretLength = -1;
+
+    private final SecureRandom random = new SecureRandom();
+    private volatile SecretKeySpec encryptionKey;
+    private volatile SecretKeySpec macKey;
+
+    /**
+     * @return the backend session ids read from the cookie of the request, null if it has none or it is not valid
+     */
+    JsessionIds read(HttpServletRequest request) {
+        String value = null;
+        Enumeration<?> headers = request.getHeaders("Cookie");
+        while (value == null && headers.hasMoreElements()) {
+            CookieTokenizer tokenizer = new CookieTokenizer((String) headers.nextElement());
+            while (tokenizer.next()) {
+                if (isJarCookie(tokenizer)) {
+                    String token = tokenizer.token();
+                    value = token.substring(cookieName.length() + 1);
+                    break;
+                }
+            }
+        }
+        return value == null ? null : decode(value, username(), System.currentTimeMillis());
+    }
+
+    /**
+     * Reads the cookie of the request once, the ids being kept in an attribute of the request so that the
+     * updates made while handling the request go to the cookie sent back.
+     *
+     * @param create true to get empty ids if the request has no valid cookie
+     * @return the ids of the request, null if it has none and create is false
+     */
+    JsessionIds get(HttpServletRequest request, boolean create) {
+        JsessionIds ids = (JsessionIds) request.getAttribute(REQUEST_ATTRIBUTE);
+        if (ids == null) {
+            ids = read(request);
+            if (ids == null && create) {
+                ids = new JsessionIds();
+            }
+            if (ids != null) {
+                request.setAttribute(REQUEST_ATTRIBUTE, ids);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the url of the backend the target is bound to by the cookie of the request, null if there is none
+     */
+    public String getBackend(HttpServletRequest request, String target) {
+        JsessionIds ids = get(request, false);
+        return ids == null ? null : ids.getBackend(target);
+    }
+
+    /**
+     * Binds the target to the backend in the cookie sent back with the session id set by the backend.
+     */
+    public void setBackend(HttpServletRequest request, String target, String url) {
+        get(request, true).putBackend(target, url);
+    }
+
+    /**
+     * @return the name of the authenticated user the cookies are bound to, empty if there is none
+     */
+    static String username() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return authentication == null ? "" : authentication.getName();
+    }
+
+    /**
+     * @return true if the current token of the tokenizer is the cookie of the jar
+     */
+    boolean isJarCookie(CookieTokenizer tokenizer) {
+        return tokenizer.startsWith(cookieName + "=");
+    }
+
+    /**
+     * @return the value of the Set-Cookie header storing the ids, null if they do not fit in a cookie
+     */
+    String toSetCookie(JsessionIds ids) {
+        String value = encode(ids, username(), System.currentTimeMillis());
+        if (value.length() > maxCookieSize) {
+            logger.warn("The backend session ids do not fit in a cookie of " + maxCookieSize + " characters: "
+                    + ids.toMap().keySet());
+            return null;
+        }
+        StringBuilder cookie = new StringBuilder(cookieName).append('=').append(value);
+        cookie.append("; Path=").append(path).append("; HttpOnly");
+        if (secure) {
+            cookie.append("; Secure");
+        }
+        return cookie.toString();
+    }
+
+    String encode(JsessionIds ids, String username, long now) {
+        StringBuilder plain = new StringBuilder().append(now).append('\n');
+        for (Map.Entry<String, String> entry : ids.toMap().entrySet()) {
+            plain.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, String> entry : ids.getBackends().entrySet()) {
+            plain.append(BACKEND).append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        }
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, getEncryptionKey(), new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(plain.toString().getBytes("UTF-8"));
+            byte[] token = new byte[IV_LENGTH + encrypted.length + MAC_LENGTH];
+            System.arraycopy(iv, 0, token, 0, IV_LENGTH);
+            System.arraycopy(encrypted, 0, token, IV_LENGTH, encrypted.length);
+            int signed = IV_LENGTH + encrypted.length;
+            System.arraycopy(sign(token, signed, username), 0, token, signed, MAC_LENGTH);
+            return ENCODING.encode(token);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the ids, null if the value is not a valid cookie of this jar for the user or it has expired
+     */
+    JsessionIds decode(String value, String username, long now) {
+        try {
+            byte[] token = ENCODING.decode(value);
+            int signed = token.length - MAC_LENGTH;
+            if (signed <= IV_LENGTH) {
+                return null;
+            }
+            byte[] expected = sign(token, signed, username);
+            if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(token, signed, token.length))) {
+                logger.debug("Ignoring a backend sessions cookie with an invalid signature or of another user");
+                return null;
+            }
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, getEncryptionKey(), new IvParameterSpec(token, 0, IV_LENGTH));
+            String plain = new String(cipher.doFinal(token, IV_LENGTH, signed - IV_LENGTH), "UTF-8");
+            int newline = plain.indexOf('\n');
+            long issued = Long.parseLong(plain.substring(0, newline));
+            if (now - issued > timeToLive * 1000) {
+                return null;
+            }
+            Map<String, String> cookies = new LinkedHashMap<String, String>();
+            Map<String, String> backends = new LinkedHashMap<String, String>();
+            int start = newline + 1;
+            while (start < plain.length()) {
+                int tab = plain.indexOf('\t', start);
+                int end = plain.indexOf('\n', tab);
+                if (plain.charAt(start) == BACKEND) {
+                    backends.put(plain.substring(start + 1, tab), plain.substring(tab + 1, end));
+                } else {
+                    cookies.put(plain.substring(start, tab), plain.substring(tab + 1, end));
+                }
+                start = end + 1;
+            }
+            JsessionIds ids = JsessionIds.fromMap(cookies);
+            for (Map.Entry<String, String> entry : backends.entrySet()) {
+                ids.putBackend(entry.getKey(), entry.getValue());
+            }
+            return ids;
+        } catch (IllegalArgumentException e) {
+            // not base64, or not a number
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] sign(byte[] token, int length, String username)
+            throws GeneralSecurityException, UnsupportedEncodingException {
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(getMacKey());
+        // the username prefixed by its length, so that it cannot be confused with the end of the token
+        byte[] user = username.getBytes("UTF-8");
+        mac.update(new byte[] { (byte) (user.length >>> 24), (byte) (user.length >>> 16),
+                (byte) (user.length >>> 8), (byte) user.length });
+        mac.update(user);
+        mac.update(token, 0, length);
+        return mac.doFinal();
+    }
+
+    private SecretKeySpec getEncryptionKey() {
+        if (encryptionKey == null) {
+            generateKeys();
+        }
+        return encryptionKey;
+    }
+
+    private SecretKeySpec getMacKey() {
+        if (macKey == null) {
+            generateKeys();
+        }
+        return macKey;
+    }
+
+    private synchronized void generateKeys() {
+        if (encryptionKey == null) {
+            if (!allowRandomKeys) {
+                throw new IllegalStateException("No secret set for the backend sessions cookies, set the secret or "
+                        + "allowRandomKeys");
+            }
+            logger.warn("No secret set, the backend sessions cookies will not be valid after a restart");
+            byte[] seed = new byte[32];
+            random.nextBytes(seed);
+            setKeys(seed);
+        }
+    }
+
+    /**
+     * Fails if the secret is too short, or if no secret is set and random keys are not allowed.
+     */
+    public void init() {
+        if (secretLength >= 0 && secretLength < MIN_SECRET_LENGTH) {
+            throw new IllegalStateException("The secret of the backend sessions cookies must be at least "
+                    + MIN_SECRET_LENGTH + " characters long");
+        }
+        getEncryptionKey();
+    }
+
+    /**
+     * @param secret the keys are derived from it, at least {@value #MIN_SECRET_LENGTH} characters long
+     */
+    public synchronized void setSecret(String secret) {
+        if (secret == null) {
+            this.encryptionKey = null;
+            this.macKey = null;
+            this.secretLength = -1;
+            return;
+        }
+        this.secretLength = secret.trim().length();
+        try {
+            setKeys(secret.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void setKeys(byte[] seed) {
+        // the signature key first, a set encryption key meaning both are set
+        this.macKey = new SecretKeySpec(derive("signature", seed), MAC);
+        this.encryptionKey = new SecretKeySpec(Arrays.copyOf(derive("encryption", seed), 16), "AES");
+    }
+
+    private static byte[] derive(String label, byte[] seed) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(label.getBytes("UTF-8"));
+            return digest.digest(seed);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setCookieName(String cookieName) {
+        this.cookieName = cookieName;
+    }
+
+    /**
+     * @param path the path of the cookie, the context path of the proxy
+     */
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @param secure true to only send the cookie over https
+     */
+    public void setSecure(boolean secure) {
+        this.secure = secure;
+    }
+
+    /**
+     * @param timeToLive seconds after which the cookie is ignored, it is issued again each time a backend sets a
+     *                   session id
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param allowRandomKeys true to generate random keys when no secret is set, the cookies being lost when the
+     *                        proxy restarts, the jar fails to start without a secret otherwise
+     */
+    public void setAllowRandomKeys(boolean allowRandomKeys) {
+        this.allowRandomKeys = allowRandomKeys;
+    }
+
+    /**
+     * @param maxCookieSize max length of the value of the cookie, the ids not fitting are not stored
+     */
+    public void setMaxCookieSize(int maxCookieSize) {
+        this.maxCookieSize = maxCookieSize;
+    }
+}
@@ -0,0 +1,98 @@
+package org.georchestra.security;
+
+/**
+ * Walks the cookies of Cookie and Set-Cookie headers by index, without splitting the headers into substrings.
+ */
+final class CookieTokenizer {
+    private static final String PATH = "path=";
+
+    private final String header;
+    private final int end;
+    private int next;
+    private int start;
+    private int stop;
+
+    /**
+     * @param header the header value
+     * @param end index in the header after the last cookie to read
+     */
+    CookieTokenizer(String header, int end) {
+        this.header = header;
+        this.end = end;
+    }
+
+    CookieTokenizer(String header) {
+        this(header, header.length());
+    }
+
+    /**
+     * Moves to the next non empty token delimited by semicolons, trimmed.
+     *
+     * @return false if there is no more token
+     */
+    boolean next() {
+        while (next < end) {
+            int semicolon = header.indexOf(';', next);
+            if (semicolon < 0 || semicolon > end) {
+                semicolon = end;
+            }
+            start = next;
+            stop = semicolon;
+            next = semicolon + 1;
+            while (start < stop && header.charAt(start) <= ' ') {
+                start++;
+            }
+            while (stop > start && header.charAt(stop - 1) <= ' ') {
+                stop--;
+            }
+            if (stop > start) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the current token starts with prefix
+     */
+    boolean startsWith(String prefix) {
+        return stop - start >= prefix.length() && header.startsWith(prefix, start);
+    }
+
+    /**
+     * Appends the current token to out.
+     */
+    void appendTo(StringBuilder out) {
+        out.append(header, start, stop);
+    }
+
+    String token() {
+        return header.substring(start, stop);
+    }
+
+    /**
+     * @return the index of the Path attribute in a Set-Cookie header, case insensitive, -1 if there is none
+     */
+    static int indexOfPath(String setCookie) {
+        int last = setCookie.length() - PATH.length();
+        for (int i = 0; i <= last; i++) {
+            if (setCookie.regionMatches(true, i, PATH, 0, PATH.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param pathIndex index returned by {@link #indexOfPath(String)}
+     * @return the value of the Path attribute, trimmed, empty if there is none
+     */
+    static String path(String setCookie, int pathIndex) {
+        if (pathIndex < 0) {
+            return "";
+        }
+        int start = pathIndex + PATH.length();
+        int semicolon = setCookie.indexOf(';', start);
+        return setCookie.substring(start, semicolon < 0 ? setCookie.length() : semicolon).trim();
+    }
+}
@@ -0,0 +1,316 @@
+package org.georchestra.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Keeps the bytes of the body of the form POSTs so that the {@link Proxy} can forward them as is to the backend.
+ * <p>
+ * The parameters of a form POST are parsed from its body by the container as soon as one of them is asked for,
+ * which the request mappings of the {@link Proxy} do, and the body was then encoded again from the parameters to
+ * be forwarded. Behind this filter the body of a form POST is read once, its parameters being parsed from these
+ * bytes along with the ones of the query string, and the bytes themselves are forwarded by the {@link Proxy}.
+ * </p>
+ * <p>
+ * If the body has been read before this filter, {@link PassThroughRequest#getUnreadBody()} returns null, the
+ * parameters are the ones parsed by the container and they are encoded again as before. The same goes for the
+ * bodies larger than the maxBodySize init parameter (2 MB by default) or of unknown length, which are not kept in
+ * memory: their parameters are parsed by the container, within its own limit (maxPostSize of Tomcat).
+ * </p>
+ * <p>
+ * The body is only kept if its parameters are asked for: if it is forwarded first, its bytes are streamed as is.
+ * </p>
+ */
+public class FormBodyPassThroughFilter implements Filter {
+    protected static final Log logger = LogFactory.getLog(FormBodyPassThroughFilter.class.getPackage().getName());
+
+    static final int DEFAULT_MAX_BODY_SIZE = 2 * 1024 * 1024;
+
+    private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (request instanceof HttpServletRequest && isFormPost((HttpServletRequest) request)) {
+            int length = request.getContentLength();
+            if (length >= 0 && length <= maxBodySize) {
+                request = new PassThroughRequest((HttpServletRequest) request, maxBodySize);
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("Form post body of " + length + " bytes left to the container");
+            }
+        }
+        chain.doFilter(request, response);
+    }
+
+    static boolean isFormPost(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        if (contentType == null || !"POST".equals(request.getMethod())) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim();
+        return "application/x-www-form-urlencoded".equalsIgnoreCase(type);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        String value = filterConfig.getInitParameter("maxBodySize");
+        if (value != null) {
+            try {
+                setMaxBodySize(Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid maxBodySize: " + value);
+            }
+        }
+    }
+
+    /**
+     * @param maxBodySize the size in bytes of the largest form post body kept in memory to be forwarded as is
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * A form POST whose body is read once, its parameters being the ones of its query string followed by the ones
+     * of its body.
+     */
+    public static class PassThroughRequest extends HttpServletRequestWrapper {
+        private final int maxBodySize;
+        private Map<String, String[]> parameters;
+        private boolean read;
+        private byte[] body;
+        private IOException failure;
+
+        public PassThroughRequest(HttpServletRequest request) {
+            this(request, DEFAULT_MAX_BODY_SIZE);
+        }
+
+        public PassThroughRequest(HttpServletRequest request, int maxBodySize) {
+            super(request);
+            this.maxBodySize = maxBodySize;
+        }
+
+        /**
+         * Reads the body, once.
+         *
+         * @return the bytes of the body, or null if it has already been read by the container
+         */
+        private byte[] getBody() throws IOException {
+            if (!read) {
+                read = true;
+                try {
+                    InputStream in = ByteStreams.limit(getRequest().getInputStream(), maxBodySize + 1L);
+                    byte[] bytes = ByteStreams.toByteArray(in);
+                    if (bytes.length > maxBodySize) {
+                        throw new IOException("Form post body larger than " + maxBodySize + " bytes");
+                    }
+                    // an empty body with a length was consumed before this filter
+                    body = bytes.length == 0 && getRequest().getContentLength() != 0 ? null : bytes;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return body;
+        }
+
+        /**
+         * @return the original bytes of the body of the request, possibly empty, or null if the body has already
+         *         been read by the container. They are streamed from the request if its parameters have not been
+         *         asked for.
+         */
+        public InputStream getUnreadBody() throws IOException {
+            if (!read) {
+                read = true;
+                PushbackInputStream in = new PushbackInputStream(getRequest().getInputStream());
+                int first = in.read();
+                if (first < 0 && getRequest().getContentLength() != 0) {
+                    // consumed before this filter
+                    return null;
+                }
+                if (first >= 0) {
+                    in.unread(first);
+                }
+                // the parameters are now the ones of the container
+                return in;
+            }
+            byte[] bytes = getBody();
+            return bytes == null ? null : new ByteArrayInputStream(bytes);
+        }
+
+        /**
+         * @return the parameters of the query string and of the body, null if they have to be asked to the container
+         */
+        private Map<String, String[]> getFormParameters() {
+            if (parameters == null) {
+                byte[] bytes;
+                try {
+                    bytes = getBody();
+                } catch (IOException e) {
+                    logger.warn("Unable to read the body of the form post: " + e.getMessage());
+                    bytes = new byte[0];
+                }
+                if (bytes == null) {
+                    return null;
+                }
+                Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+                parse(getQueryString(), getCharacterEncoding(), values);
+                try {
+                    // url encoded, the bytes are ascii
+                    parse(new String(bytes, "ISO-8859-1"), getCharacterEncoding(), values);
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+                parameters = toArrays(values);
+            }
+            return parameters;
+        }
+
+        private static void parse(String query, String encoding, Map<String, List<String>> values) {
+            if (query != null) {
+                String charset = isSupported(encoding) ? encoding : "UTF-8";
+                int start = 0;
+                while (start < query.length()) {
+                    int end = query.indexOf('&', start);
+                    if (end < 0) {
+                        end = query.length();
+                    }
+                    if (end > start) {
+                        int equals = query.indexOf('=', start);
+                        String name;
+                        String value;
+                        if (equals < 0 || equals > end) {
+                            name = query.substring(start, end);
+                            value = "";
+                        } else {
+                            name = query.substring(start, equals);
+                            value = query.substring(equals + 1, end);
+                        }
+                        try {
+                            name = URLDecoder.decode(name, charset);
+                            value = URLDecoder.decode(value, charset);
+                        } catch (UnsupportedEncodingException e) {
+                            throw new IllegalArgumentException(e);
+                        } catch (IllegalArgumentException e) {
+                            // badly escaped, kept as is like the containers do
+                        }
+                        List<String> list = values.get(name);
+                        if (list == null) {
+                            list = new ArrayList<String>(1);
+                            values.put(name, list);
+                        }
+                        list.add(value);
+                    }
+                    start = end + 1;
+                }
+            }
+        }
+
+        private static Map<String, String[]> toArrays(Map<String, List<String>> values) {
+            Map<String, String[]> result = new LinkedHashMap<String, String[]>();
+            for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+            }
+            return Collections.unmodifiableMap(result);
+        }
+
+        private static boolean isSupported(String encoding) {
+            try {
+                return encoding != null && Charset.isSupported(encoding);
+            } catch (IllegalCharsetNameException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String getParameter(String name) {
+            Map<String, String[]> form = getFormParameters();
+            if (form == null) {
+                return super.getParameter(name);
+            }
+            String[] values = form.get(name);
+            return values == null ? null : values[0];
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            Map<String, String[]> form = getFormParameters();
+            if (form == null) {
+                return super.getParameterValues(name);
+            }
+            String[] values = form.get(name);
+            return values == null ? null : values.clone();
+        }
+
+        @Override
+        public Enumeration getParameterNames() {
+            Map<String, String[]> form = getFormParameters();
+            return form == null ? super.getParameterNames() : Collections.enumeration(form.keySet());
+        }
+
+        @Override
+        public Map getParameterMap() {
+            Map<String, String[]> form = getFormParameters();
+            return form == null ? super.getParameterMap() : form;
+        }
+
+        /**
+         * @return the body, read again from its bytes once they have been read
+         */
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (!read) {
+                return super.getInputStream();
+            }
+            final InputStream in = getUnreadBody();
+            if (in == null) {
+                return super.getInputStream();
+            }
+            return new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return in.read(b, off, len);
+                }
+            };
+        }
+    }
+}
@@ -11,7 +11,6 @@ import org.springframework.util.StringUtils;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
@@ -32,6 +31,10 @@ import static org.georchestra.security.HeaderNames.TRANSFER_ENCODING;
 /**
  * A strategy for copying headers from the request to the proxied request and
  * the same for the response headers.
+ * <p>
+ * The strategy holds no per request state: it is configured once at startup and is then shared by all the
+ * requests without any locking. The headers are only logged when the trace level is enabled.
+ * </p>
  * 
  * @author jeichar
  */
@@ -45,6 +48,9 @@ public class HeadersManagementStrategy {
     private List<HeaderProvider> headerProviders = Collections.emptyList(); 
     private List<HeaderFilter> filters = new ArrayList<HeaderFilter>(1);
     private String referer = null;
+    private ClientCookieJar cookieJar = null;
+
+    private static final String LOG_SEPARATOR = "==========================================================";
 
     public HeadersManagementStrategy() {
         filters.add(new SecurityRequestHeaderFilter());
@@ -55,13 +61,15 @@ public class HeadersManagementStrategy {
      * headers slightly
      */
     @SuppressWarnings("unchecked")
-    public synchronized void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest) {
+    public void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest) {
         Enumeration<String> headerNames = originalRequest.getHeaderNames();
         String headerName = null;
 
-        StringBuilder headersLog = new StringBuilder("Request Headers:\n");
-        headersLog
-                .append("==========================================================\n");
+        StringBuilder headersLog = null;
+        if (logger.isTraceEnabled()) {
+            headersLog = new StringBuilder("Request Headers:\n");
+            headersLog.append(LOG_SEPARATOR).append('\n');
+        }
         if (referer != null) {
             addHeaderToRequestAndLog(proxyRequest, headersLog, REFERER_HEADER_NAME, this.referer);
         }
@@ -95,7 +103,8 @@ public class HeadersManagementStrategy {
         addHeaderToRequestAndLog(proxyRequest, headersLog, SEC_PROXY, "true");
 
         handleRequestCookies(originalRequest, proxyRequest, headersLog);
-        HttpSession session = originalRequest.getSession();
+        // with a cookie jar no session is created for the anonymous users
+        HttpSession session = cookieJar == null ? originalRequest.getSession() : originalRequest.getSession(false);
 
         for (HeaderProvider provider : headerProviders) {
             for (Header header : provider.getCustomRequestHeaders(session, originalRequest)) {
@@ -105,33 +114,33 @@ public class HeadersManagementStrategy {
                     proxyRequest.getHeaders(header.getName()).length > 0) {
                     Header[] originalHeaders = proxyRequest.getHeaders(header.getName());
                     for (Header originalHeader : originalHeaders) {
-                        headersLog.append("\t" + originalHeader.getName());
-                        headersLog.append("=");
-                        headersLog.append(originalHeader.getValue());
-                        headersLog.append("\n");
+                        log(headersLog, originalHeader.getName(), originalHeader.getValue());
                     }
                 } else {
                     proxyRequest.addHeader(header);
-                    headersLog.append("\t" + header.getName());
-                    headersLog.append("=");
-                    headersLog.append(header.getValue());
-                    headersLog.append("\n");
+                    log(headersLog, header.getName(), header.getValue());
                 }
             }
         }
 
-        headersLog
-                .append("==========================================================");
-
-        logger.trace(headersLog.toString());
+        if (headersLog != null) {
+            headersLog.append(LOG_SEPARATOR);
+            logger.trace(headersLog.toString());
+        }
     }
 
     private void addHeaderToRequestAndLog(HttpRequestBase proxyRequest, StringBuilder headersLog, String headerName, String value) {
         proxyRequest.addHeader(new BasicHeader(headerName, value));
-        headersLog.append("\t" + headerName);
-        headersLog.append("=");
-        headersLog.append(value);
-        headersLog.append("\n");
+        log(headersLog, headerName, value);
+    }
+
+    /**
+     * Appends a header to the log being built, headersLog is null when trace is disabled.
+     */
+    private static void log(StringBuilder headersLog, String headerName, Object value) {
+        if (headersLog != null) {
+            headersLog.append('\t').append(headerName).append('=').append(value).append('\n');
+        }
     }
 
     private void handleRequestCookies(HttpServletRequest originalRequest, HttpRequestBase proxyRequest,
@@ -140,52 +149,32 @@ public class HeadersManagementStrategy {
         Enumeration<String> headers = originalRequest.getHeaders(COOKIE_ID);
         StringBuilder cookies = new StringBuilder();
         while (headers.hasMoreElements()) {
-            String value = headers.nextElement();
-            for(String requestCookies : value.split(";")) {
-                String trimmed = requestCookies.trim();
-                if(trimmed.length() > 0) {
-                    if(!trimmed.startsWith(HeaderNames.JSESSION_ID)) {
-                        if(cookies.length() > 0) cookies.append("; ");
-                        cookies.append(trimmed);
-                    }
+            CookieTokenizer tokenizer = new CookieTokenizer(headers.nextElement());
+            while (tokenizer.next()) {
+                if (!tokenizer.startsWith(HeaderNames.JSESSION_ID)
+                        && (cookieJar == null || !cookieJar.isJarCookie(tokenizer))) {
+                    if (cookies.length() > 0) cookies.append("; ");
+                    tokenizer.appendTo(cookies);
                 }
             }
         }
-        HttpSession session = originalRequest.getSession();
-        String requestPath = proxyRequest.getURI().getPath();
-        if(session != null && session.getAttribute(HeaderNames.JSESSION_ID)!=null) {
-            Map<String,String> jessionIds = (Map) session.getAttribute(HeaderNames.JSESSION_ID);
-            String currentPath = null;
-            String currentId = null;
-            for (String path : jessionIds.keySet()) {
-                // see https://www.owasp.org/index.php/HttpOnly
-                // removing extra suffixes for JSESSIONID cookie ("; HttpOnly")
-                // This is related to some issues with newer versions of tomcat
-                // and session loss, e.g.:
-                // https://github.com/georchestra/georchestra/pull/913
-                String actualPath  = path.split(";")[0].trim();
-
-                // the cookie we will use is the cookie with the longest matching path
-                if(requestPath.startsWith(actualPath)) {
-                    if(logger.isDebugEnabled()) {
-                        logger.debug("Found possible matching JSessionId: Path = "+actualPath+" id="+jessionIds.get(path)+" for "+requestPath+" of uri "+proxyRequest.getURI());
-                    }
-                    if(currentPath==null || currentPath.length()<actualPath.length()) {
-                        currentPath=actualPath;
-                        currentId = jessionIds.get(path);
-                    }
-                }
-            }
-            if(currentPath!=null) {
-                if(cookies.length() > 0) cookies.append("; ");
-                cookies.append(currentId);
+        JsessionIds jsessionIds;
+        if (cookieJar != null) {
+            jsessionIds = cookieJar.get(originalRequest, false);
+        } else {
+            jsessionIds = getJsessionIds(originalRequest.getSession(), false);
+        }
+        // the cookie we will use is the cookie with the longest matching path
+        String currentId = jsessionIds == null ? null : jsessionIds.find(proxyRequest.getURI().getPath());
+        if (currentId != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Found matching JSessionId: " + currentId + " for " + proxyRequest.getURI());
             }
+            if (cookies.length() > 0) cookies.append("; ");
+            cookies.append(currentId);
         }
-        
-        headersLog.append("\t" + COOKIE_ID);
-        headersLog.append("=");
-        headersLog.append(cookies);
-        headersLog.append("\n");
+
+        log(headersLog, COOKIE_ID, cookies);
 
         proxyRequest.addHeader(new BasicHeader(COOKIE_ID, cookies.toString()));
         
@@ -203,17 +192,21 @@ public class HeadersManagementStrategy {
     /**
      * Copy headers from the proxy response to the final response
      */
-    public synchronized void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI, HttpResponse proxyResponse, HttpServletResponse finalResponse, Map<String,String> proxyTargets) {
-        HttpSession session = originalRequest.getSession(true);
-        session.setMaxInactiveInterval(Integer.MAX_VALUE);
-        
-        StringBuilder headersLog = new StringBuilder("Response Headers:\n");
-        headersLog
-                .append("==========================================================\n");
+    public void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI, HttpResponse proxyResponse, HttpServletResponse finalResponse, Map<String,String> proxyTargets) {
+        HttpSession session = null;
+        if (cookieJar == null) {
+            session = originalRequest.getSession(true);
+            session.setMaxInactiveInterval(Integer.MAX_VALUE);
+        }
+
+        StringBuilder headersLog = null;
+        if (logger.isTraceEnabled()) {
+            headersLog = new StringBuilder("Response Headers:\n");
+            headersLog.append(LOG_SEPARATOR).append('\n');
+        }
 
         // Set Response headers
         for (Header header : proxyResponse.getAllHeaders()) {
-            headersLog.append("\t");
             if (header.getName().equalsIgnoreCase(HeaderNames.SET_COOKIE_ID)) {
                 continue;
             } else if (LOCATION.equalsIgnoreCase(header.getName())) {
@@ -225,36 +218,32 @@ public class HeadersManagementStrategy {
 //            	Header locationHeader = handleLocation(originalRequest, header, proxyTargets);
 //            	finalResponse.addHeader(locationHeader.getName(), locationHeader.getValue());
 			} else if (defaultIgnores(header)){
-                headersLog.append("-- IGNORING -- ");
+                if (headersLog != null) {
+                    headersLog.append("\t-- IGNORING -- ").append(header.getName()).append('=')
+                            .append(header.getValue()).append('\n');
+                }
+                continue;
             } else {
                 finalResponse.addHeader(header.getName(), header.getValue());
             }
-            headersLog.append(header.getName());
-            headersLog.append("=");
-            headersLog.append(header.getValue());
-            headersLog.append("\n");
+            log(headersLog, header.getName(), header.getValue());
         }
         
         for(HeaderProvider provider : headerProviders) {
             for (Header header : provider.getCustomResponseHeaders()) {
                 finalResponse.addHeader(header.getName(), header.getValue());
-                headersLog.append("\t" + header.getName());
-                headersLog.append("=");
-                headersLog.append(header.getValue());
-                headersLog.append("\n");
+                log(headersLog, header.getName(), header.getValue());
             }
         }
 
         Header[] cookieHeaders = proxyResponse.getHeaders(HeaderNames.SET_COOKIE_ID);
         if(cookieHeaders!=null) {
-            handleResponseCookies(originalRequestURI, finalResponse, cookieHeaders, session,headersLog);
+            handleResponseCookies(originalRequest, originalRequestURI, finalResponse, cookieHeaders, session, headersLog);
         }
         
-        headersLog
-                .append("==========================================================\n");
-
-        if (logger.isTraceEnabled()) {
-        	logger.trace(headersLog.toString());
+        if (headersLog != null) {
+            headersLog.append(LOG_SEPARATOR).append('\n');
+            logger.trace(headersLog.toString());
         }
     }
 
@@ -305,63 +294,97 @@ public class HeadersManagementStrategy {
     }
     
     
-    private void handleResponseCookies(String originalRequestURI, HttpServletResponse finalResponse, Header[] headers, HttpSession session, StringBuilder headersLog) {
-        String originalPath = originalRequestURI.substring("/sec/".length()).split("/")[0];
+    private void handleResponseCookies(HttpServletRequest originalRequest, String originalRequestURI,
+            HttpServletResponse finalResponse, Header[] headers, HttpSession session, StringBuilder headersLog) {
+        String originalPath = null;
+        JsessionIds jsessionIds = null;
+        StringBuilder cookies = new StringBuilder();
         for (Header header : headers) {
-            String[] parts = header.getValue().split("(?i)Path=",2);
-
-            StringBuilder cookies = new StringBuilder();
-            for (String cookie : parts[0].split(";")) {
-                if(cookie.trim().length() == 0) {
-                    continue;
-                }
-                if(cookie.trim().startsWith(HeaderNames.JSESSION_ID)) {
-                    String path = "";
-                    if(parts.length == 2) {
-                        path = parts[1];
+            String value = header.getValue();
+            int pathIndex = CookieTokenizer.indexOfPath(value);
+            // the attributes after the path are not forwarded
+            CookieTokenizer tokenizer = new CookieTokenizer(value, pathIndex < 0 ? value.length() : pathIndex);
+
+            cookies.setLength(0);
+            while (tokenizer.next()) {
+                if (tokenizer.startsWith(HeaderNames.JSESSION_ID)) {
+                    if (jsessionIds == null) {
+                        jsessionIds = getJsessionIds(originalRequest, session);
                     }
-                    storeJsessionHeader(session, path.trim(), cookie,headersLog);
+                    storeJsessionHeader(jsessionIds, CookieTokenizer.path(value, pathIndex), tokenizer.token(),
+                            headersLog);
                 } else {
-                    if(cookies.length()>0) cookies.append("; ");
-                    cookies.append(cookie);
+                    if (cookies.length() > 0) cookies.append("; ");
+                    tokenizer.appendTo(cookies);
                 }
             }
 
-            if(cookies.length() > 0) {
-                cookies.append("; Path= /" + originalPath);
+            if (cookies.length() > 0) {
+                if (originalPath == null) {
+                    originalPath = firstSegment(originalRequestURI, "/sec/".length());
+                }
+                cookies.append("; Path= /").append(originalPath);
                 finalResponse.addHeader(HeaderNames.SET_COOKIE_ID, cookies.toString());
-                headersLog.append("\t" + HeaderNames.SET_COOKIE_ID);
-                headersLog.append("=");
-                headersLog.append(cookies);
-                headersLog.append("\n");
+                log(headersLog, HeaderNames.SET_COOKIE_ID, cookies);
             }
 
         }
+        if (jsessionIds != null && cookieJar != null) {
+            String jar = cookieJar.toSetCookie(jsessionIds);
+            if (jar != null) {
+                finalResponse.addHeader(HeaderNames.SET_COOKIE_ID, jar);
+                log(headersLog, HeaderNames.SET_COOKIE_ID, jar);
+            }
+        }
     }
 
-    private void storeJsessionHeader(HttpSession session, String path, String cookie, StringBuilder headersLog) {
-        Map<String,String> map = (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
-        if(map==null) {
-            map = new HashMap<String,String>();
-            session.setAttribute(HeaderNames.JSESSION_ID, map);
-        }
-        if(path.length() > 0) {
-            // clean out session IDs with longer path since this should supercede them
-            for (String key : new HashMap<String,String>(map).keySet()) {
-                if(key.startsWith(path)) {
-                    map.remove(key);
-                }
-            }
+    private static String firstSegment(String uri, int start) {
+        int slash = uri.indexOf('/', start);
+        return uri.substring(start, slash < 0 ? uri.length() : slash);
+    }
 
+    private void storeJsessionHeader(JsessionIds jsessionIds, String path, String cookie, StringBuilder headersLog) {
+        // session IDs with a longer path are cleaned out since this should supercede them
+        jsessionIds.put(path, cookie);
+
+        if (headersLog != null) {
+            headersLog.append("\tStoring JSESSION cookie ").append(cookie).append(" for path ").append(path).append('\n');
         }
-        map.put(path,cookie);
+    }
 
-        headersLog.append("\tStoring JSESSION cookie ");
-        headersLog.append(cookie);
-        headersLog.append(" for path ");
-        headersLog.append(path);
-        headersLog.append("\n");
+    /**
+     * @return the session ids to update: the ones of the cookie jar if there is one, of the session otherwise
+     */
+    private JsessionIds getJsessionIds(HttpServletRequest originalRequest, HttpSession session) {
+        if (cookieJar == null) {
+            return getJsessionIds(session, true);
+        }
+        return cookieJar.get(originalRequest, true);
+    }
 
+    /**
+     * The backend session ids are kept in the user's session. Concurrent requests of the same user may update
+     * them, the session is only locked while they are created.
+     *
+     * @return the session ids of the session, null if there are none and create is false
+     */
+    @SuppressWarnings("unchecked")
+    private JsessionIds getJsessionIds(HttpSession session, boolean create) {
+        Object ids = session.getAttribute(HeaderNames.JSESSION_ID);
+        if (ids instanceof JsessionIds || (ids == null && !create)) {
+            return (JsessionIds) ids;
+        }
+        synchronized (session) {
+            ids = session.getAttribute(HeaderNames.JSESSION_ID);
+            if (ids instanceof JsessionIds) {
+                return (JsessionIds) ids;
+            }
+            // a session created before the ids were sorted holds a map
+            JsessionIds jsessionIds = ids instanceof Map ? JsessionIds.fromMap((Map<String, String>) ids)
+                    : new JsessionIds();
+            session.setAttribute(HeaderNames.JSESSION_ID, jsessionIds);
+            return jsessionIds;
+        }
     }
 
     private boolean defaultIgnores(Header header) {
@@ -384,4 +407,11 @@ public class HeadersManagementStrategy {
 
     public void setReferer(String referer){
         this.referer = referer;
+    }
+
+    /**
+     * @param cookieJar keeps the backend session ids in a cookie of the client, so that the proxy creates no session
+     */
+    public void setCookieJar(ClientCookieJar cookieJar) {
+        this.cookieJar = cookieJar;
     }}
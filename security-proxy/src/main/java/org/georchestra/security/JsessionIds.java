@@ -0,0 +1,143 @@
+package org.georchestra.security;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JSESSIONID cookies of the backends kept in the session of a user, by cookie path.
+ * <p>
+ * The entries are kept sorted from the longest path to the shortest, so that the cookie of a request is the first
+ * entry whose path is a prefix of the request path, found without any allocation. The array is replaced on each
+ * update, which only happens when a backend sets a new JSESSIONID, so that concurrent requests of the same user
+ * read it without locking.
+ * </p>
+ * <p>
+ * With a {@link ClientCookieJar}, the backends the balanced targets of the user are bound to are kept along with
+ * the ids.
+ * </p>
+ */
+final class JsessionIds implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private static final Comparator<Entry> LONGEST_PATH_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            int diff = o2.path.length() - o1.path.length();
+            return diff != 0 ? diff : o1.path.compareTo(o2.path);
+        }
+    };
+
+    private volatile Entry[] entries = EMPTY;
+    /** urls of the backends by key of balanced target, replaced on each update */
+    private volatile Map<String, String> backends;
+
+    /**
+     * @return the cookie with the longest path prefix of requestPath, null if there is none
+     */
+    String find(String requestPath) {
+        for (Entry entry : entries) {
+            if (requestPath.startsWith(entry.path)) {
+                return entry.cookie;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the cookie of the path, replacing the cookies of the same path and of the longer paths under it.
+     *
+     * @param path the Path attribute of the cookie, empty if it has none
+     * @param cookie the JSESSIONID=... pair to send back to the backend
+     */
+    synchronized void put(String path, String cookie) {
+        List<Entry> updated = new ArrayList<Entry>(entries.length + 1);
+        for (Entry entry : entries) {
+            if (!entry.path.equals(path) && (path.length() == 0 || !entry.path.startsWith(path))) {
+                updated.add(entry);
+            }
+        }
+        updated.add(new Entry(path, cookie));
+        entries = sort(updated);
+    }
+
+    private static Entry[] sort(List<Entry> entries) {
+        Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+        Arrays.sort(sorted, LONGEST_PATH_FIRST);
+        return sorted;
+    }
+
+    int size() {
+        return entries.length;
+    }
+
+    /**
+     * @return the url of the backend the target is bound to, null if there is none
+     */
+    String getBackend(String target) {
+        Map<String, String> map = backends;
+        return map == null ? null : map.get(target);
+    }
+
+    synchronized void putBackend(String target, String url) {
+        Map<String, String> updated = backends == null ? new LinkedHashMap<String, String>()
+                : new LinkedHashMap<String, String>(backends);
+        updated.put(target, url);
+        backends = Collections.unmodifiableMap(updated);
+    }
+
+    /**
+     * @return the urls of the backends by key of target
+     */
+    Map<String, String> getBackends() {
+        Map<String, String> map = backends;
+        return map == null ? Collections.<String, String> emptyMap() : map;
+    }
+
+    /**
+     * @return the cookies by path, longest path first
+     */
+    Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (Entry entry : entries) {
+            map.put(entry.path, entry.cookie);
+        }
+        return map;
+    }
+
+    /**
+     * @param attribute map of path (possibly followed by other cookie attributes) to cookie, kept in the sessions
+     *                  created by the previous versions
+     */
+    static JsessionIds fromMap(Map<String, String> attribute) {
+        // the entries are kept as they are, a shorter path may have been stored before a longer one
+        List<Entry> entries = new ArrayList<Entry>(attribute.size());
+        for (Map.Entry<String, String> entry : attribute.entrySet()) {
+            String path = entry.getKey();
+            int semicolon = path.indexOf(';');
+            entries.add(new Entry((semicolon < 0 ? path : path.substring(0, semicolon)).trim(), entry.getValue().trim()));
+        }
+        JsessionIds ids = new JsessionIds();
+        ids.entries = sort(entries);
+        return ids;
+    }
+
+    private static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String path;
+        final String cookie;
+
+        Entry(String path, String cookie) {
+            this.path = path;
+            this.cookie = cookie;
+        }
+    }
+}
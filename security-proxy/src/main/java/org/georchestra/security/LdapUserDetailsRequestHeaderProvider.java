@@ -3,13 +3,34 @@ package org.georchestra.security;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.naming.NamingEnumeration;
 import javax.naming.directory.Attribute;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
@@ -24,7 +45,20 @@ import org.springframework.util.Assert;
 /**
  * Reads information from a user node in LDAP and adds the information as
  * headers to the request.
- * 
+ * <p>
+ * The headers of a user are kept in a cache shared by all the sessions. An entry expires after
+ * {@link #setCacheTimeToLive(long) cacheTimeToLive} seconds and is reloaded in the background once it is older
+ * than {@link #setCacheRefreshAfter(long) cacheRefreshAfter} seconds, the previous value being served meanwhile.
+ * </p>
+ * <p>
+ * The users which are not cached are searched by lookupThreads threads, the refreshes by refreshThreads other
+ * ones, so that the background refreshes never delay the requests waiting for a user. Concurrent requests of the
+ * same user share its search. A request waits at most {@link #setLookupTimeout(long) lookupTimeout} milliseconds
+ * for the attributes of its user: it is then refused with a {@link UserDetailsUnavailableException} rather than
+ * forwarded without them. As before the cache, a request whose user could not be searched is forwarded without
+ * the attributes, which are read again for the next request of the user.
+ * </p>
+ *
  * @author jeichar
  */
 public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
@@ -33,7 +67,19 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
 
     private LdapUserSearch      _userSearch;
     private Map<String, String> _headerMapping;
-    
+
+    private long cacheMaxSize = 10000;
+    private long cacheTimeToLive = 600;
+    private long cacheRefreshAfter = 120;
+    private long lookupTimeout = 5000;
+    private int lookupThreads = 4;
+    private int refreshThreads = 1;
+    private int maxRefreshQueueSize = 1000;
+
+    private volatile LoadingCache<String, Collection<Header>> cache;
+    private ExecutorService lookupExecutor;
+    private ExecutorService refreshExecutor;
+
     public LdapUserDetailsRequestHeaderProvider(LdapUserSearch userSearch, Map<String, String> headerMapping) {
         Assert.notNull(userSearch, "userSearch must not be null");
         Assert.notNull(headerMapping, "headerMapping must not be null");
@@ -41,7 +87,6 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
         this._headerMapping = headerMapping;
     }
 
-    @SuppressWarnings("unchecked")
 	@Override
     protected Collection<Header> getCustomRequestHeaders(HttpSession session, HttpServletRequest originalRequest) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -49,59 +94,207 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
             return Collections.emptyList();
         }
         String username = authentication.getName();
-        DirContextOperations userData;
-
-        Collection<Header> headers = Collections.emptyList();
-
-		synchronized (session) {
-
-			if (session.getAttribute("security-proxy-cached-attrs") != null) {
-				try {
-					headers = (Collection<Header>) session.getAttribute("security-proxy-cached-attrs");
-					String expectedUsername = (String) session.getAttribute("security-proxy-cached-username");
-					
-					if (username.equals(expectedUsername)) {
-						return headers;
-					}
-				} catch (Exception e) {
-					logger.info("Unable to lookup cached user's attributes for user :" + username, e);
-				}
-			} else {
-				try {
-					userData = _userSearch.searchForUser(username);
-				} catch (Exception e) {
-					logger.info("Unable to lookup user:" + username, e);
-					return Collections.emptyList();
-				}
-				headers = new ArrayList<Header>();
-				for (Map.Entry<String, String> entry : _headerMapping
-						.entrySet()) {
-					try {
-						Attribute attributes = userData.getAttributes().get(
-								entry.getValue());
-						if (attributes != null) {
-							NamingEnumeration<?> all = attributes.getAll();
-							StringBuilder value = new StringBuilder();
-							while (all.hasMore()) {
-								if (value.length() > 0) {
-									value.append(',');
-								}
-								value.append(all.next());
-							}
-							headers.add(new BasicHeader(entry.getKey(), value
-									.toString()));
-						}
-					} catch (javax.naming.NamingException e) {
-						logger.error("problem adding headers for request:"
-								+ entry.getKey(), e);
-					}
-				}
-				logger.info("Storing attributes into session for user :" + username);
-				session.setAttribute("security-proxy-cached-username", username);
-				session.setAttribute("security-proxy-cached-attrs", headers);
-			}
-		}
-
-        return headers;
+        try {
+            return getCache().getUnchecked(username);
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                logger.warn("Lookup of user " + username + " took more than " + lookupTimeout + " ms");
+                throw new UserDetailsUnavailableException("The details of the user could not be read in time",
+                        (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(lookupTimeout + 999)));
+            } else {
+                logger.info("Unable to lookup user:" + username, e.getCause());
+            }
+        } catch (ExecutionError e) {
+            logger.info("Unable to lookup user:" + username, e.getCause());
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Searches the user on the lookup threads, waiting at most lookupTimeout milliseconds.
+     */
+    private Collection<Header> lookup(final String username, ExecutorService executor) throws Exception {
+        if (lookupTimeout <= 0) {
+            return loadHeaders(username);
+        }
+        Future<Collection<Header>> lookup = executor.submit(new Callable<Collection<Header>>() {
+            @Override
+            public Collection<Header> call() {
+                return loadHeaders(username);
+            }
+        });
+        try {
+            return lookup.get(lookupTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // a search already running goes on, a queued one is dropped
+            lookup.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private Collection<Header> loadHeaders(String username) {
+        DirContextOperations userData = _userSearch.searchForUser(username);
+        List<Header> headers = new ArrayList<Header>();
+        for (Map.Entry<String, String> entry : _headerMapping.entrySet()) {
+            try {
+                Attribute attributes = userData.getAttributes().get(entry.getValue());
+                if (attributes != null) {
+                    NamingEnumeration<?> all = attributes.getAll();
+                    StringBuilder value = new StringBuilder();
+                    while (all.hasMore()) {
+                        if (value.length() > 0) {
+                            value.append(',');
+                        }
+                        value.append(all.next());
+                    }
+                    headers.add(new BasicHeader(entry.getKey(), value.toString()));
+                }
+            } catch (javax.naming.NamingException e) {
+                logger.error("problem adding headers for request:" + entry.getKey(), e);
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Caching attributes of user :" + username);
+        }
+        return ImmutableList.copyOf(headers);
+    }
+
+    private LoadingCache<String, Collection<Header>> getCache() {
+        LoadingCache<String, Collection<Header>> result = this.cache;
+        if (result == null) {
+            synchronized (this) {
+                result = this.cache;
+                if (result == null) {
+                    result = createCache();
+                    this.cache = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private LoadingCache<String, Collection<Header>> createCache() {
+        final ExecutorService lookups = new ThreadPoolExecutor(lookupThreads, lookupThreads, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("security-proxy-ldap-lookup-%d").setDaemon(true).build());
+        final ExecutorService refreshes = new ThreadPoolExecutor(refreshThreads, refreshThreads, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(maxRefreshQueueSize),
+                new ThreadFactoryBuilder().setNameFormat("security-proxy-ldap-refresh-%d").setDaemon(true).build());
+        lookupExecutor = lookups;
+        refreshExecutor = refreshes;
+        CacheLoader<String, Collection<Header>> loader = new CacheLoader<String, Collection<Header>>() {
+            @Override
+            public Collection<Header> load(String username) throws Exception {
+                return lookup(username, lookups);
+            }
+
+            @Override
+            public ListenableFuture<Collection<Header>> reload(final String username, Collection<Header> oldValue) {
+                // in the background, the previous value is served meanwhile
+                ListenableFutureTask<Collection<Header>> task = ListenableFutureTask.create(
+                        new Callable<Collection<Header>>() {
+                            @Override
+                            public Collection<Header> call() {
+                                return loadHeaders(username);
+                            }
+                        });
+                try {
+                    refreshes.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // too many refreshes pending, the previous value is kept until the next refresh
+                    return Futures.immediateFuture(oldValue);
+                }
+                return task;
+            }
+        };
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterWrite(cacheTimeToLive, TimeUnit.SECONDS)
+                .recordStats();
+        if (cacheRefreshAfter > 0 && cacheRefreshAfter < cacheTimeToLive) {
+            builder.refreshAfterWrite(cacheRefreshAfter, TimeUnit.SECONDS);
+        }
+        return builder.build(loader);
+    }
+
+    /**
+     * Stops the lookup threads.
+     */
+    public synchronized void destroy() {
+        if (lookupExecutor != null) {
+            lookupExecutor.shutdownNow();
+        }
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the hit/miss/load statistics of the user attributes cache
+     */
+    public CacheStats getCacheStats() {
+        return getCache().stats();
+    }
+
+    /**
+     * Drops the cached attributes of a user, they will be read from LDAP on the next request.
+     */
+    public void invalidate(String username) {
+        getCache().invalidate(username);
+    }
+
+    /**
+     * @param cacheMaxSize max number of users kept in the cache
+     */
+    public void setCacheMaxSize(long cacheMaxSize) {
+        this.cacheMaxSize = cacheMaxSize;
+    }
+
+    /**
+     * @param cacheTimeToLive number of seconds after which the attributes of a user are read again from LDAP
+     */
+    public void setCacheTimeToLive(long cacheTimeToLive) {
+        this.cacheTimeToLive = cacheTimeToLive;
+    }
+
+    /**
+     * @param cacheRefreshAfter number of seconds after which the attributes of a user are reloaded in the background.
+     *                          0 disables the refresh-ahead.
+     */
+    public void setCacheRefreshAfter(long cacheRefreshAfter) {
+        this.cacheRefreshAfter = cacheRefreshAfter;
+    }
+
+    /**
+     * @param lookupTimeout max number of milliseconds a request waits for the attributes of a user which are not
+     *                      cached before being refused, 0 to wait for the LDAP search to end
+     */
+    public void setLookupTimeout(long lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+    }
+
+    /**
+     * @param lookupThreads number of threads searching the users which are not cached
+     */
+    public void setLookupThreads(int lookupThreads) {
+        this.lookupThreads = lookupThreads;
+    }
+
+    /**
+     * @param refreshThreads number of threads reloading the attributes of the cached users in the background
+     */
+    public void setRefreshThreads(int refreshThreads) {
+        this.refreshThreads = refreshThreads;
+    }
+
+    /**
+     * @param maxRefreshQueueSize max number of pending refreshes, the users over it keep their attributes until
+     *                            their next refresh
+     */
+    public void setMaxRefreshQueueSize(int maxRefreshQueueSize) {
+        this.maxRefreshQueueSize = maxRefreshQueueSize;
     }
 }
@@ -0,0 +1,291 @@
+package org.georchestra.security;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.georchestra.security.metrics.TimingRequestExecutor;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.ProxySelector;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the single {@link HttpClient} shared by all the requests forwarded by the {@link Proxy}.
+ * <p>
+ * Connections to the backends are kept alive and pooled so that a proxied request does not have to pay
+ * for a new TCP connection each time.  The pool is bounded globally and per route (a route being a
+ * scheme/host/port of a backend), and a background thread regularly evicts the expired and idle
+ * connections so that no stale socket is handed out to a request.
+ * </p>
+ */
+public class PoolingHttpClientFactory implements FactoryBean<HttpClient>, DisposableBean {
+    protected static final Log logger = LogFactory.getLog(Proxy.class.getPackage().getName());
+
+    private int maxTotalConnections = 200;
+    private int maxConnectionsPerRoute = 20;
+    private Map<String, Integer> maxConnectionsPerTarget = Collections.emptyMap();
+    private int connectTimeout = 30000;
+    private int socketTimeout = 300000;
+    private long connectionRequestTimeout = 30000;
+    private long idleConnectionTimeout = 60000;
+    private long evictionInterval = 30000;
+    private boolean staleConnectionCheck = true;
+    private DnsResolver dnsResolver;
+
+    private PoolingClientConnectionManager connectionManager;
+    private DefaultHttpClient httpClient;
+    private ScheduledExecutorService evictor;
+
+    @Override
+    public synchronized HttpClient getObject() throws MalformedURLException {
+        if (httpClient == null) {
+            httpClient = createHttpClient();
+        }
+        return httpClient;
+    }
+
+    @Override
+    public Class<?> getObjectType() {
+        return HttpClient.class;
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
+    }
+
+    private DefaultHttpClient createHttpClient() throws MalformedURLException {
+        connectionManager = dnsResolver == null
+                ? new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault())
+                : new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault(), dnsResolver);
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        //
+        // Handle http proxy for external request.
+        // Proxy must be configured by system variables (e.g.: -Dhttp.proxyHost=proxy -Dhttp.proxyPort=3128)
+        //
+        HttpRoutePlanner routePlanner = new ProxySelectorRoutePlanner(connectionManager.getSchemeRegistry(),
+                ProxySelector.getDefault());
+        for (Map.Entry<String, Integer> entry : maxConnectionsPerTarget.entrySet()) {
+            try {
+                // the route of the requests, through the http proxy if there is one
+                connectionManager.setMaxPerRoute(toRoute(routePlanner, entry.getKey()), entry.getValue());
+            } catch (HttpException e) {
+                throw new IllegalArgumentException("No route to " + entry.getKey(), e);
+            }
+        }
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(params, staleConnectionCheck);
+        params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, connectionRequestTimeout);
+        params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
+
+        DefaultHttpClient client = new DefaultHttpClient(connectionManager, params) {
+            @Override
+            protected HttpRequestExecutor createRequestExecutor() {
+                // records the connect time and time to first byte of the requests, see ProxyMetrics
+                return new TimingRequestExecutor();
+            }
+        };
+        client.setRoutePlanner(routePlanner);
+
+        if (evictionInterval > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("security-proxy-connection-evictor").setDaemon(true).build());
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictConnections();
+                }
+            }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Created pooled http client: maxTotal=" + maxTotalConnections + ", maxPerRoute="
+                    + maxConnectionsPerRoute + ", routes=" + maxConnectionsPerTarget);
+        }
+        return client;
+    }
+
+    private void evictConnections() {
+        try {
+            connectionManager.closeExpiredConnections();
+            if (idleConnectionTimeout > 0) {
+                connectionManager.closeIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS);
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("Connection pool after eviction: " + connectionManager.getTotalStats());
+            }
+        } catch (RuntimeException e) {
+            logger.error("Unable to evict idle connections from the pool", e);
+        }
+    }
+
+    /**
+     * Opens connections to a backend and returns them to the pool, so that the first requests forwarded to it do
+     * not pay for the TCP connection (and the TLS handshake).
+     * <p>
+     * The connections are taken from the pool at the same time, so count connections are available once they have
+     * been released, the ones already in the pool included. They are closed like the other ones once they have been
+     * idle for idleConnectionTimeout milliseconds.
+     * </p>
+     *
+     * @param target url of the backend, only scheme, host and port are used
+     * @param count  number of connections, at most the max number of connections of the route
+     * @return number of connections opened
+     * @throws IOException if a connection could not be opened
+     */
+    public int preconnect(String target, int count) throws IOException {
+        DefaultHttpClient client = (DefaultHttpClient) getObject();
+        PoolingClientConnectionManager manager = getConnectionManager();
+        HttpContext context = new BasicHttpContext();
+        HttpRoute route;
+        try {
+            route = toRoute(client.getRoutePlanner(), target);
+        } catch (HttpException e) {
+            throw new ClientProtocolException(e);
+        }
+        if (route.isTunnelled()) {
+            // the tunnel through the http proxy is only created by the requests
+            return 0;
+        }
+        count = Math.min(count, manager.getMaxPerRoute(route));
+        List<ManagedClientConnection> connections = new ArrayList<ManagedClientConnection>(count);
+        int opened = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                ManagedClientConnection connection = manager.requestConnection(route, null)
+                        .getConnection(connectionRequestTimeout, TimeUnit.MILLISECONDS);
+                connections.add(connection);
+                if (!connection.isOpen()) {
+                    connection.open(route, context, client.getParams());
+                    opened++;
+                }
+                connection.markReusable();
+            }
+        } catch (ConnectionPoolTimeoutException e) {
+            // the pool is full, the connections already taken are enough
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (ManagedClientConnection connection : connections) {
+                manager.releaseConnection(connection, idleConnectionTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * @return the route of the requests to the target, through the http proxy if one is configured
+     */
+    static HttpRoute toRoute(HttpRoutePlanner routePlanner, String target) throws MalformedURLException,
+            HttpException {
+        URL url = new URL(target);
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return routePlanner.determineRoute(new HttpHost(url.getHost(), port, url.getProtocol()), new HttpGet(target),
+                new BasicHttpContext());
+    }
+
+    /**
+     * @return the connection manager of the client, null until the client has been created.
+     */
+    public synchronized PoolingClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        httpClient = null;
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * Overrides the per route limit for some backends.
+     *
+     * @param maxConnectionsPerTarget url of the backend (only scheme, host and port are used) to the max number of
+     *                                connections
+     */
+    public void setMaxConnectionsPerTarget(Map<String, Integer> maxConnectionsPerTarget) {
+        this.maxConnectionsPerTarget = maxConnectionsPerTarget;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public void setConnectionRequestTimeout(long connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+
+    public void setStaleConnectionCheck(boolean staleConnectionCheck) {
+        this.staleConnectionCheck = staleConnectionCheck;
+    }
+
+    /**
+     * @param dnsResolver resolves the hosts of the backends, the DnsCache of the proxy so that the requests of the
+     *                    url parameter connect to the addresses checked against the permissions
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+}
@@ -20,16 +20,30 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpTrace;
-import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
 import org.georchestra.ogcservstatistics.log4j.OGCServiceMessageFormatter;
+import org.georchestra.security.cache.CachedResponse;
+import org.georchestra.security.cache.OgcResponseCache;
+import org.georchestra.security.cache.RequestCoalescer;
+import org.georchestra.security.balancer.LoadBalancer;
+import org.georchestra.security.compression.CompressedResponse;
+import org.georchestra.security.compression.ResponseCompression;
 import org.georchestra.security.healthcenter.DatabaseHealthCenter;
+import org.georchestra.security.isolation.TargetIsolation;
+import org.georchestra.security.isolation.TargetUnavailableException;
+import org.georchestra.security.lanes.LaneUnavailableException;
+import org.georchestra.security.lanes.PriorityLanes;
+import org.georchestra.security.metrics.ProxyMetrics;
+import org.georchestra.security.metrics.RequestSample;
+import org.georchestra.security.permissions.DnsCache;
 import org.georchestra.security.permissions.Permissions;
 import org.georchestra.security.permissions.UriMatcher;
+import org.georchestra.security.ratelimit.RateLimiter;
+import org.georchestra.security.timeouts.AdaptiveTimeouts;
 import org.springframework.oxm.xstream.XStreamMarshaller;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -44,9 +58,9 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
-import java.net.ProxySelector;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -58,12 +72,6 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -107,6 +115,11 @@ public class Proxy {
     protected static final Log logger = LogFactory.getLog(Proxy.class.getPackage().getName());
     protected static final Log statsLogger = LogFactory.getLog(Proxy.class.getPackage().getName() + ".statistics");
 
+    /**
+     * size of the buffers used to forward the responses
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     protected enum RequestType {
         GET, POST, DELETE, PUT, TRACE, OPTIONS, HEAD
     }
@@ -116,6 +129,58 @@ public class Proxy {
      */
     private String                    defaultTarget;
     private Map<String, String>       targets = Collections.emptyMap();
+    /**
+     * Built from the targets and the default target on first use.
+     */
+    private volatile TargetRouter     router;
+    /**
+     * Optional cache of the responses to the OGC metadata requests.
+     */
+    private OgcResponseCache          responseCache;
+    /**
+     * Optional instrumentation of the forwarded requests.
+     */
+    private ProxyMetrics              metrics;
+    /**
+     * Path of the Prometheus scrape endpoint of the metrics, in the proxy webapp.
+     */
+    private String                    metricsPath = "/_proxy/metrics";
+    /**
+     * Optional concurrency limits and queues of the classes of requests.
+     */
+    private PriorityLanes             lanes;
+    /**
+     * Optional bulkheads and circuit breakers of the targets.
+     */
+    private TargetIsolation           isolation;
+    /**
+     * Optional compression of the uncompressed responses.
+     */
+    private ResponseCompression       compression;
+    /**
+     * Optional logging of the statistics from a dedicated thread, they are logged by the request thread otherwise.
+     */
+    private AsyncStatisticsLogger     statisticsLogger;
+    /**
+     * Optional balancing of the requests to some targets over several backends.
+     */
+    private LoadBalancer              balancer;
+    /**
+     * Optional coalescing of the identical GET requests forwarded at the same time.
+     */
+    private RequestCoalescer          coalescer;
+    /**
+     * Optional limit of the rate of the requests of each user, client address or target.
+     */
+    private RateLimiter               rateLimiter;
+    /**
+     * Optional timeouts of the requests derived from the latencies of their targets.
+     */
+    private AdaptiveTimeouts          timeouts;
+    /**
+     * Optional warm-up of the targets and of the request handling, when the proxy is initialized.
+     */
+    private Warmup                    warmup;
     /**
      * must be defined
      */
@@ -128,6 +193,16 @@ public class Proxy {
 
     private Permissions proxyPermissions = new Permissions();
     private String proxyPermissionsFile;
+    private DnsCache dnsCache = new DnsCache();
+
+    /**
+     * shared by all the requests so that the connections to the backends are pooled.
+     * Created with the default pool settings if it is not injected, an injected client must resolve the hosts
+     * with the dnsCache.
+     */
+    private volatile HttpClient httpClient;
+    /** creates the client when none is injected, destroyed with the proxy */
+    private PoolingHttpClientFactory httpClientFactory;
 
     
     /*  ----------  Required for  DatabaseHealthCenter -------------------- */
@@ -137,12 +212,15 @@ public class Proxy {
     private String user;
     private String password;
     private Integer maxDatabaseConnections;
+    /** milliseconds between two samples of the database connections */
+    private long healthCheckInterval = 30000;
+    private DatabaseHealthCenter healthCenter;
 
     public void init() throws IOException, ClassNotFoundException {
-        if (targets != null) {
-            for (String url : targets.values()) {
-                new URL(url); // test that it is a valid URL
-            }
+        router = new TargetRouter(targets, defaultTarget); // test that the targets are valid URLs
+        if (metrics != null && router.findRoute(metricsPath) != null) {
+            logger.warn("The metrics path " + metricsPath + " shadows the target "
+                    + router.findRoute(metricsPath).getKey() + ", see the metricsPath property of the proxy");
         }
         if (proxyPermissionsFile != null) {
             Closer closer = Closer.create();
@@ -159,6 +237,28 @@ public class Proxy {
                 closer.close();
             }
         }
+        if (isCheckHealth()) {
+            healthCenter = DatabaseHealthCenter.getInstance(this.database, this.user, this.password, Proxy.class.getSimpleName());
+            healthCenter.startSampling(this.maxDatabaseConnections, this.healthCheckInterval);
+        }
+        if (warmup != null) {
+            // before the first request, the webapp is only started once the proxy is initialized
+            warmup.run(this, router.getRoutes(), balancer);
+        }
+    }
+
+    public void destroy() {
+        if (healthCenter != null) {
+            healthCenter.stopSampling();
+        }
+        dnsCache.destroy();
+        synchronized (this) {
+            if (httpClientFactory != null) {
+                httpClientFactory.destroy();
+                httpClientFactory = null;
+                httpClient = null;
+            }
+        }
     }
 
     /*  ----------  start work around for no gateway option  -------------- */
@@ -169,6 +269,24 @@ public class Proxy {
         gateway.loadCredentialsPage(request, response);
     }
 
+    /**
+     * Prometheus scrape endpoint on the metricsPath, only answering the requests from the local host.
+     */
+    private void metrics(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!isLocalRequest(request)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        metrics.writePrometheus(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+    }
+
+    private boolean isLocalRequest(HttpServletRequest request) throws UnknownHostException {
+        // a request forwarded by a front server has the address of this server
+        return request.getHeader("X-Forwarded-For") == null
+                && InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress();
+    }
+
     @RequestMapping(value="/testPage", method={GET} )
     public void testPage(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         gateway.testPage(response);
@@ -252,11 +370,17 @@ public class Proxy {
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
                 return;
             }
-            if (proxyPermissions.isDenied(url) || urlIsProtected(request, url)) {
-                response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "URL is not allowed.");
-                return;
+            // the connection to the host is made to the addresses checked, see DnsCache
+            DnsCache.Pin pin = dnsCache.pin(url.getHost());
+            try {
+                if (proxyPermissions.isDenied(url) || urlIsProtected(request, url)) {
+                    response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "URL is not allowed.");
+                    return;
+                }
+                handleRequest(request, response, type, sURL, false);
+            } finally {
+                pin.release();
             }
-            handleRequest(request, response, type, sURL, false);
         } else {
             handlePathEncodedRequests(request, response, type);
         }
@@ -266,8 +390,8 @@ public class Proxy {
         if (isSameServer(request, url)) {
             String requestURI = url.getPath();
             String[] requestSegments = splitRequestPath(requestURI);
-            for (String target : targets.values()) {
-                if (samePathPrefix(requestSegments, target)) {
+            for (TargetRouter.Route route : getRouter().getRoutes()) {
+                if (samePathPrefix(requestSegments, route.getPathSegments())) {
                     return true;
                 }
             }
@@ -275,10 +399,12 @@ public class Proxy {
         return false;
     }
     private boolean isSameServer(HttpServletRequest request, URL url) throws UnknownHostException {
-        return InetAddress.getByName(request.getServerName()).equals(InetAddress.getByName(url.getHost()));
+        return dnsCache.resolve(request.getServerName())[0].equals(dnsCache.resolve(url.getHost())[0]);
     }
-    private boolean samePathPrefix(String[] requestSegments, String target) throws MalformedURLException {
-        String[] targetSegments = splitRequestPath(new URL(target).getPath());
+    private boolean samePathPrefix(String[] requestSegments, String[] targetSegments) {
+        if (requestSegments.length < targetSegments.length) {
+            return false;
+        }
         for (int i = 0; i < targetSegments.length; i++) {
             String targetSegment = targetSegments[i];
             if (!targetSegment.equals(requestSegments[i])) {
@@ -320,6 +446,14 @@ public class Proxy {
     // ----------------- Method calls where request is encoded in path of request ----------------- //
     @RequestMapping(params={"!url","!login"}, method=RequestMethod.GET)
     public void handleGETRequest(HttpServletRequest request, HttpServletResponse response) {
+        if (metrics != null && metricsPath.equals(buildForwardRequestURL(request))) {
+            try {
+                metrics(request, response);
+            } catch (IOException e) {
+                logger.warn("Unable to write the metrics: " + e.getMessage());
+            }
+            return;
+        }
         handlePathEncodedRequests(request, response, RequestType.GET);
     }
     @RequestMapping(params={"!url","!login"}, method=RequestMethod.POST)
@@ -360,9 +494,7 @@ public class Proxy {
                     .length());
         }
 
-        forwardRequestURI = forwardRequestURI.replaceAll("//", "/");
-
-        return forwardRequestURI;
+        return TargetRouter.normalize(forwardRequestURI);
     }
 
     /**
@@ -393,7 +525,13 @@ public class Proxy {
                 response.sendError(403, forwardRequestURI + " is a recursive call to this service.  That is not a legal request");
             }
 
-            if (request.getQueryString() != null && !isFormContentType(request)) {
+            if (request.getQueryString() != null && isFormContentType(request)) {
+                // the parameters of a form post are sent in its body, unless the body is forwarded as is: the
+                // parameters of the query string are then the ones of the url
+                if (getUnreadFormBody(request) != null) {
+                    sURL += "?" + request.getQueryString();
+                }
+            } else if (request.getQueryString() != null) {
                 StringBuilder query = new StringBuilder("?");
                 Enumeration paramNames = request.getParameterNames();
                 while(paramNames.hasMoreElements()) {
@@ -422,91 +560,51 @@ public class Proxy {
     }
 
     private String findTarget(String requestURI) {
-        String[] segments;
-        if(requestURI.charAt(0) == '/') {
-            segments = requestURI.substring(1).split("/");
-        } else {
-            segments = requestURI.split("/");
-        }
-
-        if(segments.length == 0){
-            return concat(defaultTarget, new StringBuilder(requestURI));
-        }
-        String target = targets.get(segments[0]);
-        if(target==null){
-            target=defaultTarget;
-            return concat(defaultTarget, new StringBuilder(requestURI));
-        } else {
-            StringBuilder builder = new StringBuilder("/");
-            for (int i = 1; i < segments.length; i++) {
-                String segment = segments[i];
-                builder.append(segment);
-                if(i+1 < segments.length)
-                    builder.append("/");
-            }
-
-            if (requestURI.endsWith("/") && builder.charAt(builder.length()-1) != '/') {
-                builder.append('/');
-            }
-
-            return concat(target,builder);
-        }
-    }
-
-    private String concat(String target, StringBuilder builder) {
-        if(target == null){
-            return null;
-        }
-        String target2 = target;
-        if(target.endsWith("/")){
-            target2=target.substring(0, target.length()-1);
-        }
-        if(builder.charAt(0) != '/'){
-            builder.insert(0, '/');
-        }
-        return target2+builder;
-
+        return getRouter().findTarget(requestURI);
     }
 
-    private String findMatchingTarget(HttpServletRequest request) {
-    	String requestURI = buildForwardRequestURL(request);
-    	return findMatchingTarget(requestURI);
+    private TargetRouter.Route findMatchingTarget(HttpServletRequest request) {
+        return getRouter().findRoute(buildForwardRequestURL(request));
     }
 
-    private String findMatchingTarget(String requestURI) {
-        String[] segments = splitRequestPath(requestURI);
-        
-        if(segments.length == 0){
-        	return null;
-        }
-
-        if (targets.containsKey(segments[0])){
-        	return segments[0];
-        } else {
-        	return null;
+    private TargetRouter getRouter() {
+        TargetRouter result = this.router;
+        if (result == null) {
+            synchronized (this) {
+                result = this.router;
+                if (result == null) {
+                    try {
+                        result = new TargetRouter(targets, defaultTarget);
+                    } catch (MalformedURLException e) {
+                        throw new IllegalStateException("Invalid target url", e);
+                    }
+                    this.router = result;
+                }
+            }
         }
+        return result;
     }
 
     private void handleRequest(HttpServletRequest request, HttpServletResponse finalResponse, RequestType requestType, String sURL, boolean localProxy) {
-        HttpClient httpclient = new DefaultHttpClient();
-        httpclient.getParams().setParameter("http.socket.timeout", new Integer(300000));
-        httpclient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
+        HttpClient httpclient = getHttpClient();
 
-        if( isCheckHealth() ){
-            DatabaseHealthCenter.getInstance(this.database, this.user, this.password, Proxy.class.getSimpleName())
-				.checkConnections(this.maxDatabaseConnections);
+        if (healthCenter != null && !healthCenter.isHealthy() && logger.isDebugEnabled()) {
+            // the connections are sampled in the background, see init()
+            logger.debug("Database connections over the configured limit, proxying " + sURL);
         }
 
-        //
-        // Handle http proxy for external request.
-        // Proxy must be configured by system variables (e.g.: -Dhttp.proxyHost=proxy -Dhttp.proxyPort=3128)
-        //
-        ProxySelectorRoutePlanner routePlanner = new ProxySelectorRoutePlanner(
-                     httpclient.getConnectionManager().getSchemeRegistry(),
-                     ProxySelector.getDefault());
-
-        ((DefaultHttpClient)httpclient).setRoutePlanner(routePlanner);
-
+        RequestSample sample = null;
+        if (metrics != null) {
+            sample = metrics.start(finalResponse);
+            finalResponse = sample.getResponse();
+        }
+        HttpRequestBase proxyingRequest = null;
+        PriorityLanes.Ticket ticket = null;
+        TargetIsolation.Permit permit = null;
+        LoadBalancer.Lease lease = null;
+        RequestCoalescer.Flight flight = null;
+        String balancedTarget = null;
+        CompressedResponse compressed = null;
         try {
             URL url = null;
             try {
@@ -515,6 +613,9 @@ public class Proxy {
                 finalResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
                 return;
             }
+            if (sample != null) {
+                sample.setTarget(metricsTarget(request, url, localProxy));
+            }
 
             // HTTP protocol is required
             if (!"http".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(url.getProtocol())) {
@@ -532,8 +633,26 @@ public class Proxy {
 
             logger.debug("Final request -- " + sURL);
 
-            HttpRequestBase proxyingRequest = makeRequest(request, requestType, sURL);
-            headerManagement.configureRequestHeaders(request, proxyingRequest);
+            proxyingRequest = makeRequest(request, requestType, sURL);
+            try {
+                headerManagement.configureRequestHeaders(request, proxyingRequest);
+            } catch (UserDetailsUnavailableException e) {
+                // not forwarded without the headers identifying the user
+                finalResponse.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+                finalResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                return;
+            }
+
+            if (rateLimiter != null) {
+                // checked once the security headers are set, the quotas depend on the user and its roles
+                long retryAfter = rateLimiter.checkQuota(request, proxyingRequest,
+                        metricsTarget(request, url, localProxy));
+                if (retryAfter > 0) {
+                    finalResponse.setHeader("Retry-After", String.valueOf(retryAfter));
+                    finalResponse.sendError(RateLimiter.SC_TOO_MANY_REQUESTS, "Too many requests, retry later");
+                    return;
+                }
+            }
 
             try {
             	Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -542,7 +661,11 @@ public class Proxy {
         		for (Header originalHeader : originalHeaders) {
         			org = originalHeader.getValue();
         		}
-            	statsLogger.info(OGCServiceMessageFormatter.format(authentication.getName(), sURL, org));
+            	if (statisticsLogger != null) {
+            		statisticsLogger.log(authentication.getName(), sURL, org);
+            	} else {
+            		statsLogger.info(OGCServiceMessageFormatter.format(authentication.getName(), sURL, org));
+            	}
             } catch (Exception e) {
             	logger.error("Unable to log the request into the statistics logger", e);
             }
@@ -561,7 +684,108 @@ public class Proxy {
 		        }
             }
 
-            HttpResponse proxiedResponse = executeHttpRequest(httpclient, proxyingRequest);
+            HttpResponse proxiedResponse = null;
+            String cacheKey = responseCache == null ? null : responseCache.key(proxyingRequest);
+            if (cacheKey != null) {
+                CachedResponse cached = responseCache.get(cacheKey);
+                if (cached != null) {
+                    if (responseCache.isStale(cached)) {
+                        responseCache.revalidate(cacheKey, cached, proxyingRequest, httpclient);
+                    }
+                    // sent like the response of the backend, with the same headers and charset handling
+                    proxiedResponse = responseCache.serve(cached, request, finalResponse);
+                    if (proxiedResponse == null) {
+                        return;
+                    }
+                    cacheKey = null;
+                }
+            }
+
+            String flightKey = coalescer == null || proxiedResponse != null ? null : coalescer.key(proxyingRequest);
+            if (flightKey != null) {
+                flight = coalescer.join(flightKey);
+                if (!flight.isLeader()) {
+                    // a copy of the response to the identical request being forwarded, null if it is not shared
+                    proxiedResponse = flight.await();
+                }
+            }
+
+            if (proxiedResponse == null) {
+                if (lanes != null) {
+                    // only the requests forwarded to the backends wait in the lanes, not the cached or coalesced ones
+                    try {
+                        ticket = lanes.acquire(sURL, metricsTarget(request, url, localProxy));
+                    } catch (LaneUnavailableException e) {
+                        finalResponse.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+                        finalResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                        return;
+                    }
+                }
+
+                if (isolation != null && localProxy) {
+                    try {
+                        permit = isolation.acquire(targetKey(request));
+                    } catch (TargetUnavailableException e) {
+                        finalResponse.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+                        finalResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                        return;
+                    }
+                }
+
+                if (balancer != null && localProxy) {
+                    // chosen once the response cache has been looked up, which is keyed by the url of the target
+                    TargetRouter.Route route = findMatchingTarget(request);
+                    String uri = proxyingRequest.getURI().toString();
+                    if (route != null && uri.startsWith(route.getTarget())) {
+                        lease = balancer.acquire(route.getKey(), request);
+                        if (lease != null) {
+                            balancedTarget = route.getTarget();
+                            proxyingRequest.setURI(URI.create(lease.toBackend(uri, balancedTarget)));
+                        }
+                    }
+                }
+
+                HttpContext context = new BasicHttpContext();
+                if (sample != null) {
+                    sample.setHttpContext(context);
+                }
+                AdaptiveTimeouts.Timeout timeout = null;
+                if (timeouts != null) {
+                    timeout = timeouts.start(metricsTarget(request, url, localProxy), proxyingRequest.getMethod(),
+                            sURL);
+                    timeout.apply(proxyingRequest);
+                }
+                try {
+                    proxiedResponse = executeHttpRequest(httpclient, proxyingRequest, context);
+                } catch (IOException e) {
+                    if (timeout != null) {
+                        timeout.failed(e);
+                    }
+                    if (permit != null) {
+                        permit.failed();
+                    }
+                    if (lease != null) {
+                        lease.failed();
+                    }
+                    throw e;
+                }
+                if (timeout != null) {
+                    timeout.completed(context);
+                }
+                if (permit != null) {
+                    permit.responded(proxiedResponse.getStatusLine().getStatusCode());
+                }
+                if (lease != null) {
+                    lease.responded(proxiedResponse, request);
+                    restoreLocations(proxiedResponse, lease, balancedTarget);
+                }
+                if (flight != null && flight.isLeader()) {
+                    proxiedResponse = flight.share(proxiedResponse);
+                }
+            }
+            if (cacheKey != null) {
+                proxiedResponse = responseCache.store(cacheKey, proxiedResponse);
+            }
 
             org.apache.http.StatusLine statusLine = proxiedResponse.getStatusLine();
 
@@ -589,6 +813,13 @@ public class Proxy {
                 }
             }
 
+            if (compression != null) {
+                compressed = compression.compress(request, requestType == RequestType.HEAD, proxiedResponse, finalResponse);
+                if (compressed != null) {
+                    finalResponse = compressed;
+                }
+            }
+
             headerManagement.copyResponseHeaders(request, request.getRequestURI(), proxiedResponse, finalResponse, this.targets);
 
             if (statusCode == 302 || statusCode == 301)
@@ -619,13 +850,67 @@ public class Proxy {
                 finalResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             }
         } finally {
-            httpclient.getConnectionManager().shutdown();
+            if (compressed != null) {
+                try {
+                    compressed.finish();
+                } catch (IOException e) {
+                    logger.error("Error while compressing the response to the client", e);
+                }
+            }
+            // gives the connection back to the pool, or closes it if the response has not been fully read
+            if (proxyingRequest != null) {
+                proxyingRequest.releaseConnection();
+            }
+            if (permit != null) {
+                permit.release();
+            }
+            if (lease != null) {
+                lease.release();
+            }
+            if (flight != null) {
+                flight.release();
+            }
+            if (ticket != null) {
+                ticket.release();
+            }
+            if (sample != null) {
+                sample.stop();
+            }
+        }
+    }
+
+    /**
+     * @return the name of the target in the metrics: the key of the target or the host of the url parameter
+     */
+    private String metricsTarget(HttpServletRequest request, URL url, boolean localProxy) {
+        return localProxy ? targetKey(request) : url.getHost();
+    }
+
+    /**
+     * @return the key of the target of a path encoded request, "default" for the default target
+     */
+    private String targetKey(HttpServletRequest request) {
+        TargetRouter.Route route = findMatchingTarget(request);
+        return route == null ? "default" : route.getKey();
+    }
+
+    /**
+     * Rewrites the Location headers pointing to the backend a request was balanced to, so that they are adjusted
+     * like the ones of the target.
+     */
+    private void restoreLocations(HttpResponse proxiedResponse, LoadBalancer.Lease lease, String target) {
+        for (Header location : proxiedResponse.getHeaders("Location")) {
+            String restored = lease.toTarget(location.getValue(), target);
+            if (!restored.equals(location.getValue())) {
+                proxiedResponse.removeHeader(location);
+                proxiedResponse.addHeader("Location", restored);
+            }
         }
     }
 
     @VisibleForTesting
-    protected HttpResponse executeHttpRequest(HttpClient httpclient, HttpRequestBase proxyingRequest) throws IOException {
-        return httpclient.execute(proxyingRequest);
+    protected HttpResponse executeHttpRequest(HttpClient httpclient, HttpRequestBase proxyingRequest, HttpContext context) throws IOException {
+        return httpclient.execute(proxyingRequest, context);
     }
 
     private void copyLocationHeaders(HttpResponse proxiedResponse, HttpServletResponse finalResponse) {
@@ -638,26 +923,18 @@ public class Proxy {
     	if (logger.isDebugEnabled()) {
     		logger.debug("adjustLocation called for request: " + request.getRequestURI());
     	}
-    	String target = findMatchingTarget(request);
+    	TargetRouter.Route target = findMatchingTarget(request);
 
     	if (logger.isDebugEnabled()) {
     		logger.debug("adjustLocation found target: " + target + " for request: " + request.getRequestURI());
     	}
 
-    	if (target == null) {
+    	if (target == null || target.getBaseURI() == null) {
     		copyLocationHeaders(proxiedResponse, finalResponse);
     		return;
     	}
 
-    	String baseURL = targets.get(target);
-    	URI baseURI = null;
-
-    	try {
-	        baseURI = new URI(baseURL);
-        } catch (URISyntaxException e) {
-        	copyLocationHeaders(proxiedResponse, finalResponse);
-	        return;
-        }
+    	URI baseURI = target.getBaseURI();
 
     	for (Header locationHeader : proxiedResponse.getHeaders("Location")) {
     		if (logger.isDebugEnabled()) {
@@ -672,7 +949,7 @@ public class Proxy {
 	            }
 	            if (resolvedURI.toString().startsWith(baseURI.toString())) {
 	            	// proxiedResponse.removeHeader(locationHeader);
-	            	String newLocation = "/" + target + "/" + resolvedURI.toString().substring(baseURI.toString().length());
+	            	String newLocation = "/" + target.getKey() + "/" + resolvedURI.toString().substring(baseURI.toString().length());
 	            	finalResponse.addHeader("Location", newLocation);
 	            	// Header newLocationHeader = new BasicHeader("Location", newLocation);
 	            	if (logger.isDebugEnabled()) {
@@ -732,7 +1009,11 @@ public class Proxy {
                 HttpPost post = new HttpPost(uri);
                 HttpEntity entity;
                 request.setCharacterEncoding("UTF8");
-                if (isFormContentType(request)) {
+                InputStream formBody = isFormContentType(request) ? getUnreadFormBody(request) : null;
+                if (formBody != null) {
+                    logger.debug("Post is recognized as a form post, its body is forwarded as is.");
+                    entity = new InputStreamEntity(formBody, request.getContentLength());
+                } else if (isFormContentType(request)) {
                     logger.debug("Post is recognized as a form post.");
                     List<NameValuePair> parameters = new ArrayList<NameValuePair>();
                     for (Enumeration e = request.getParameterNames(); e.hasMoreElements(); ) {
@@ -753,7 +1034,6 @@ public class Proxy {
                         charset = defaultCharset;
                     }
                     entity = new UrlEncodedFormEntity(parameters,charset);
-                    post.setEntity(entity);
 
                 } else {
                     logger.debug("Post is NOT recognized as a form post. (Not an error just a comment)");
@@ -823,6 +1103,17 @@ public class Proxy {
         return targetRequest;
     }
 
+    /**
+     * @return the body of a form post left unread by the {@link FormBodyPassThroughFilter}, null if its parameters
+     *         have to be encoded again
+     */
+    private InputStream getUnreadFormBody(HttpServletRequest request) throws IOException {
+        if (request instanceof FormBodyPassThroughFilter.PassThroughRequest) {
+            return ((FormBodyPassThroughFilter.PassThroughRequest) request).getUnreadBody();
+        }
+        return null;
+    }
+
     private boolean isFormContentType(HttpServletRequest request) {
         if(request.getContentType() == null){
             return false;
@@ -836,9 +1127,8 @@ public class Proxy {
     /**
      * For certain requests (OGC Web services mainly) the charset is absolutely
      * required. So for certain content types (xml based normally) this method
-     * is called to detect the charset of the data. This method is a slow way of
-     * transferring data so data of any significant size should not enter this
-     * method.
+     * is called to detect the charset of the data. Only the beginning of the
+     * data is looked at, the rest is streamed as is to the client.
      */
     private void doHandleRequestCharsetRequired(HttpServletRequest orignalRequest, HttpServletResponse finalResponse,
             RequestType requestType, HttpResponse proxiedResponse, String contentType) {
@@ -861,17 +1151,16 @@ public class Proxy {
              *     Nothing special, just send back the stream to the client
              * B. There is no charset provided:
              *     The encoding has to be extracted from the file.
-             *     The file is read in ASCII, which is common to many charsets,
-             *     like that the encoding located in the first not can be retrieved.
+             *     The first bytes of the file are read in ASCII, which is common to many charsets,
+             *     like that the encoding located in the first node can be retrieved.
              *     Once the charset is found, the content-type header is overridden and the
              *     charset is appended.
              *
-             *     /!\ Special case: whenever data are compressed in gzip/deflate the stream has to
-             *     be uncompressed and compressed
+             *     /!\ Special case: whenever data are compressed in gzip/deflate only the first
+             *     bytes are uncompressed to find the charset, the compressed stream is sent as is
              */
 
             boolean isCharsetKnown = proxiedResponse.getEntity().getContentType().getValue().toLowerCase().contains("charset");
-            // String contentEncoding = getContentEncoding(proxiedResponse.getAllHeaders());
             String contentEncoding = getContentEncoding(proxiedResponse.getHeaders("Content-Encoding"));
 
             if(logger.isDebugEnabled()) {
@@ -881,96 +1170,56 @@ public class Proxy {
                 logger.debug("Charset is required so verifying that it has been added to the headers\n"+cskString+"\n"+cEString);
             }
 
-            if(contentEncoding == null || isCharsetKnown) {
-                // A simple stream can do the job for data that is not in content encoded
-                // but also for data content encoded with a known charset
-                streamFromServer = proxiedResponse.getEntity().getContent();
-                streamToClient = finalResponse.getOutputStream();
-            }
-            else if (!isCharsetKnown && ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding))) {
-                // the charset is unknown and the data are compressed in gzip
-                // we add the gzip wrapper to be able to read/write the stream content
-                streamFromServer = new GZIPInputStream(proxiedResponse.getEntity().getContent());
-                streamToClient = new GZIPOutputStream(finalResponse.getOutputStream());
-            }
-            else if("deflate".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // same but with deflate
-                streamFromServer = new DeflaterInputStream(proxiedResponse.getEntity().getContent());
-                streamToClient = new DeflaterOutputStream(finalResponse.getOutputStream());
-            } else {
+            if (!isCharsetKnown && contentEncoding != null && !isSniffableContentEncoding(contentEncoding)) {
                 doHandleRequest(orignalRequest, finalResponse, requestType, proxiedResponse);
                 return;
             }
 
-            byte[] buf = new byte[1024]; // read maximum 1024 bytes
-            int len;                     // number of bytes read from the stream
-            boolean first = true;        // helps to find the encoding once and only once
-            String s = "";               // piece of file that should contain the encoding
-            while ((len = streamFromServer.read(buf)) > 0) {
-
-                if (first && !isCharsetKnown) {
-                    // charset is unknown try to find it in the file content
-                    for(int i=0; i < len; i++) {
-                        s += (char) buf[i]; // get the beginning of the file as ASCII
-                    }
-                    // s has to be long enough to contain the encoding
-                    if(s.length() > 200) {
-
-                       if(logger.isTraceEnabled()) {
-                           logger.trace("attempting to read charset from: " + s);
-                       }
-                       String charset = getCharset(s); // extract charset
+            streamFromServer = proxiedResponse.getEntity().getContent();
+            streamToClient = finalResponse.getOutputStream();
 
-                        if (charset == null) {
-                            if(logger.isTraceEnabled()) {
-                               logger.trace("unable to find charset from raw ASCII data.  Trying to unzip it");
-                            }
+            byte[] buf = new byte[BUFFER_SIZE];
+            if (!isCharsetKnown) {
+                // charset is unknown try to find it in the beginning of the file content
+                int len = readAtLeast(streamFromServer, buf, CharsetSniffer.SNIFF_WINDOW);
+                String charset = CharsetSniffer.sniff(buf, len, contentEncoding);
 
-                            // the charset cannot be found, IE users must be warned
-                            // that the request cannot be fulfilled, nothing good would happen otherwise
+                if (charset == null) {
+                    if(logger.isDebugEnabled()) {
+                        logger.debug("unable to find charset so using the first one from the accept-charset request header");
+                    }
+                    String calculateDefaultCharset = calculateDefaultCharset(orignalRequest);
+                    if (calculateDefaultCharset !=null ) {
+                        charset = calculateDefaultCharset;
+                        if(logger.isDebugEnabled()) {
+                            logger.debug("hopefully the server responded with this charset: "+calculateDefaultCharset);
                         }
-                        if(charset == null) {
-                            String guessedCharset = null;
-                            if(logger.isDebugEnabled()) {
-                                logger.debug("unable to find charset so using the first one from the accept-charset request header");
-                            }
-                            String calculateDefaultCharset = calculateDefaultCharset(orignalRequest);
-                            if (calculateDefaultCharset !=null ) {
-                                guessedCharset = calculateDefaultCharset;
-                                if(logger.isDebugEnabled()) {
-                                    logger.debug("hopefully the server responded with this charset: "+calculateDefaultCharset);
-                                }
-                            } else {
-                                guessedCharset = defaultCharset;
-                                if(logger.isDebugEnabled()) {
-                                    logger.debug("unable to find charset, so using default:"+defaultCharset);
-                                }
-                            }
-                            String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + guessedCharset;
-                            finalResponse.setHeader("Content-Type", adjustedContentType);
-                            first = false; // we found the encoding, don't try to do it again
-                            finalResponse.setCharacterEncoding(guessedCharset);
-
-                        } else {
-                            if(logger.isDebugEnabled()) {
-                                logger.debug("found charset: "+charset);
-                            }
-                            String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + charset;
-                            finalResponse.setHeader("Content-Type", adjustedContentType);
-                            first = false; // we found the encoding, don't try to do it again
-                            finalResponse.setCharacterEncoding(charset);
+                    } else {
+                        charset = defaultCharset;
+                        if(logger.isDebugEnabled()) {
+                            logger.debug("unable to find charset, so using default:"+defaultCharset);
                         }
                     }
+                } else if(logger.isDebugEnabled()) {
+                    logger.debug("found charset: "+charset);
                 }
+                String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + charset;
+                finalResponse.setHeader("Content-Type", adjustedContentType);
+                finalResponse.setCharacterEncoding(charset);
+
+                streamToClient.write(buf, 0, len);
+            }
 
-                // for everyone, the stream is just forwarded to the client
+            // for everyone, the stream is just forwarded to the client
+            int len;
+            while ((len = streamFromServer.read(buf)) > 0) {
                 streamToClient.write(buf, 0, len);
             }
 
         }
         catch (IOException e) {
             // connection problem with the host
-            e.printStackTrace();
+            logger.error("Error while forwarding the response to the client", e);
         } finally {
             IOException exc = close(streamFromServer);
             exc = close(streamToClient, exc);
@@ -980,6 +1229,25 @@ public class Proxy {
         }
     }
 
+    private boolean isSniffableContentEncoding(String contentEncoding) {
+        return "gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)
+                || "deflate".equalsIgnoreCase(contentEncoding) || "identity".equalsIgnoreCase(contentEncoding);
+    }
+
+    /**
+     * Reads from the stream until at least min bytes are in buf or the end of the stream is reached
+     *
+     * @return the number of bytes read
+     */
+    private int readAtLeast(InputStream in, byte[] buf, int min) throws IOException {
+        int len = 0;
+        int n;
+        while (len < min && (n = in.read(buf, len, buf.length - len)) > 0) {
+            len += n;
+        }
+        return len;
+    }
+
     private String calculateDefaultCharset(HttpServletRequest originalRequest) {
         String acceptCharset = originalRequest.getHeader("accept-charset");
 
@@ -1009,31 +1277,6 @@ public class Proxy {
         return null;
     }
 
-    /**
-     * Extract the encoding from a string which is the header node of an xml file
-     * @param header String that should contain the encoding attribute and its value
-     * @return the charset. null if not found
-     */
-    private String getCharset(String header) {
-        Pattern pattern = null;
-        String charset = null;
-        try {
-            // use a regexp but we could also use string functions such as
-            // indexOf...
-            pattern = Pattern.compile("encoding=(['\"])([A-Za-z]([A-Za-z0-9._]|-)*)");
-        } catch (Exception e) {
-            throw new RuntimeException("expression syntax invalid");
-        }
-
-        Matcher matcher = pattern.matcher(header);
-        if (matcher.find()) {
-            String encoding = matcher.group();
-            charset = encoding.split("['\"]")[1];
-        }
-
-        return charset;
-    }
-
     /**
      * Gets the encoding of the content sent by the remote host: extracts the
      * content-encoding header
@@ -1132,9 +1375,51 @@ public class Proxy {
 
     public void setDefaultTarget(String defaultTarget) {
         this.defaultTarget = defaultTarget;
+        this.router = null;
+    }
+    public void setMetrics(ProxyMetrics metrics) {
+        this.metrics = metrics;
+    }
+    /**
+     * @param metricsPath path of the Prometheus scrape endpoint in the proxy webapp, /_proxy/metrics by default.
+     *                    The GET requests to this path are not forwarded to the targets when the metrics are enabled.
+     */
+    public void setMetricsPath(String metricsPath) {
+        this.metricsPath = TargetRouter.normalize(metricsPath.startsWith("/") ? metricsPath : "/" + metricsPath);
+    }
+    public void setLanes(PriorityLanes lanes) {
+        this.lanes = lanes;
+    }
+    public void setIsolation(TargetIsolation isolation) {
+        this.isolation = isolation;
+    }
+    public void setCompression(ResponseCompression compression) {
+        this.compression = compression;
+    }
+    public void setStatisticsLogger(AsyncStatisticsLogger statisticsLogger) {
+        this.statisticsLogger = statisticsLogger;
+    }
+    public void setBalancer(LoadBalancer balancer) {
+        this.balancer = balancer;
+    }
+    public void setCoalescer(RequestCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+    public void setTimeouts(AdaptiveTimeouts timeouts) {
+        this.timeouts = timeouts;
+    }
+    public void setWarmup(Warmup warmup) {
+        this.warmup = warmup;
+    }
+    public void setResponseCache(OgcResponseCache responseCache) {
+        this.responseCache = responseCache;
     }
     public void setTargets(Map<String,String> targets) {
         this.targets = targets;
+        this.router = null;
     }
     public void setContextpath(String contextpath) {
 //        this.contextpath = contextpath;
@@ -1160,6 +1445,13 @@ public class Proxy {
     	this.maxDatabaseConnections = maxDatabaseConnections;
     }
 
+    /**
+     * @param healthCheckInterval milliseconds between two samples of the database connections
+     */
+    public void setHealthCheckInterval(long healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
     public Boolean getCheckHealth() {
 		return this.checkHealth;
 	}
@@ -1202,9 +1494,41 @@ public class Proxy {
     }
     public void setProxyPermissions(Permissions proxyPermissions) throws UnknownHostException {
         this.proxyPermissions = proxyPermissions;
+        this.proxyPermissions.setDnsCache(dnsCache);
         this.proxyPermissions.init();
     }
+    public void setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+    }
+    public DnsCache getDnsCache() {
+        return dnsCache;
+    }
     public Permissions getProxyPermissions() {
         return proxyPermissions;
     }
+
+    public void setHttpClient(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    public HttpClient getHttpClient() {
+        HttpClient client = this.httpClient;
+        if (client == null) {
+            synchronized (this) {
+                client = this.httpClient;
+                if (client == null) {
+                    try {
+                        PoolingHttpClientFactory factory = new PoolingHttpClientFactory();
+                        factory.setDnsResolver(dnsCache);
+                        client = factory.getObject();
+                        this.httpClientFactory = factory;
+                    } catch (MalformedURLException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    this.httpClient = client;
+                }
+            }
+        }
+        return client;
+    }
 }
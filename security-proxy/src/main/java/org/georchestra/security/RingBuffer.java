@@ -0,0 +1,89 @@
+package org.georchestra.security;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock free queue, offered to by any number of threads and polled by a single one.
+ * <p>
+ * Each slot has a sequence telling whether it may be written for the current lap (sequence equal to the position),
+ * or read (sequence one past the position). The producers claim a position with a compare and set on the tail and
+ * never wait for each other, the full queue refusing the element at once.
+ * </p>
+ */
+final class RingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    /**
+     * @param capacity rounded up to a power of 2, at least 2 so that a written slot cannot be taken for a free one
+     */
+    RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+        }
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * May be called by any thread.
+     *
+     * @return false if the queue is full
+     */
+    boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (available < 0) {
+                return false;
+            }
+            // else another producer claimed the position first
+        }
+    }
+
+    /**
+     * Must only be called by the consumer thread.
+     *
+     * @return the oldest element, null if the queue is empty
+     */
+    E poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+        head = position + 1;
+        return element;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
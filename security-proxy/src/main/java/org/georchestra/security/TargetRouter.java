@@ -0,0 +1,287 @@
+package org.georchestra.security;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Routing table of the {@link Proxy}: finds the target of a request path.
+ * <p>
+ * The table is built once from the targets of the proxy. The keys are indexed in a trie of path segments, so
+ * that finding the target of a path is a walk of its first segments without splitting it, and the target urls
+ * are parsed when the table is built instead of on every request.
+ * </p>
+ */
+final class TargetRouter {
+
+    private final Node root = new Node();
+    private final List<Route> routes;
+    private final String defaultTarget;
+
+    /**
+     * @param targets       the targets of the proxy by key, the key being the first segment(s) of the path
+     * @param defaultTarget the target of the paths matching no key, may be null
+     * @throws MalformedURLException if one of the targets is not a valid url
+     */
+    TargetRouter(Map<String, String> targets, String defaultTarget) throws MalformedURLException {
+        List<Route> list = new ArrayList<Route>();
+        if (targets != null) {
+            for (Map.Entry<String, String> entry : targets.entrySet()) {
+                Route route = new Route(entry.getKey(), entry.getValue());
+                add(route);
+                list.add(route);
+            }
+        }
+        this.routes = Collections.unmodifiableList(list);
+        this.defaultTarget = defaultTarget == null ? null : stripTrailingSlash(defaultTarget);
+    }
+
+    private void add(Route route) {
+        Node node = root;
+        for (String segment : StringUtils.split(route.key, '/')) {
+            node = node.getOrCreateChild(segment);
+        }
+        node.route = route;
+    }
+
+    /**
+     * @return the routes of all the targets
+     */
+    List<Route> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @param path a path normalized by {@link #normalize(String)}
+     * @return the route with the longest key matching the first segments of the path, null if there is none
+     */
+    Route findRoute(String path) {
+        return findRoute(path, firstSegmentStart(path));
+    }
+
+    /**
+     * Builds the url the request is forwarded to: the target of the route of the path followed by the
+     * rest of the path, or the default target followed by the path when no route matches.
+     *
+     * @param path a path normalized by {@link #normalize(String)}
+     * @return the url or null if no route matches and there is no default target
+     */
+    String findTarget(String path) {
+        int start = firstSegmentStart(path);
+        Route route = findRoute(path, start);
+        if (route == null) {
+            if (defaultTarget == null) {
+                return null;
+            }
+            return start == 0 ? defaultTarget + '/' + path : defaultTarget + path;
+        }
+        int end = route.endOf(path, start);
+        if (end == path.length()) {
+            return route.target + '/';
+        }
+        return route.target + path.substring(end);
+    }
+
+    private Route findRoute(String path, int start) {
+        Route match = null;
+        Node node = root;
+        int length = path.length();
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            node = node.child(path, start, end);
+            if (node == null) {
+                break;
+            }
+            if (node.route != null) {
+                match = node.route;
+            }
+            start = end + 1;
+        }
+        return match;
+    }
+
+    private static int firstSegmentStart(String path) {
+        return path.length() > 0 && path.charAt(0) == '/' ? 1 : 0;
+    }
+
+    /**
+     * Collapses the sequences of slashes of a path.
+     *
+     * @return the path itself if it has no sequence of slashes
+     */
+    static String normalize(String path) {
+        int i = path.indexOf("//");
+        if (i < 0) {
+            return path;
+        }
+        StringBuilder builder = new StringBuilder(path.length());
+        builder.append(path, 0, i + 1);
+        for (i = i + 2; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c != '/' || builder.charAt(builder.length() - 1) != '/') {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String stripTrailingSlash(String target) {
+        return target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+    }
+
+    /**
+     * A target of the proxy, with its url parsed once.
+     */
+    static final class Route {
+        private final String key;
+        private final int keySegments;
+        private final String target;
+        private final URI baseURI;
+        private final String[] pathSegments;
+
+        Route(String key, String target) throws MalformedURLException {
+            this.key = key;
+            this.keySegments = StringUtils.split(key, '/').length;
+            this.target = stripTrailingSlash(target);
+            this.pathSegments = StringUtils.split(new URL(target).getPath(), '/');
+            URI uri;
+            try {
+                uri = new URI(target);
+            } catch (URISyntaxException e) {
+                uri = null;
+            }
+            this.baseURI = uri;
+        }
+
+        /**
+         * @return the key of the target in the proxy configuration
+         */
+        String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the url of the target, without trailing slash
+         */
+        String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return the url of the target as configured, null if it is not a valid URI
+         */
+        URI getBaseURI() {
+            return baseURI;
+        }
+
+        /**
+         * @return the segments of the path of the target url
+         */
+        String[] getPathSegments() {
+            return pathSegments;
+        }
+
+        /**
+         * @return the index in path of the end of the key
+         */
+        private int endOf(String path, int start) {
+            int end = start;
+            for (int i = 0; i < keySegments; i++) {
+                end = path.indexOf('/', start);
+                if (end < 0) {
+                    return path.length();
+                }
+                start = end + 1;
+            }
+            return end;
+        }
+
+        @Override
+        public String toString() {
+            return key + " -> " + target;
+        }
+    }
+
+    /**
+     * Children are kept sorted by segment, so that the child of a segment is found by a binary search on the
+     * characters of the path, without extracting the segment.
+     */
+    private static final class Node {
+        private static final String[] NO_KEYS = new String[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        String[] keys = NO_KEYS;
+        Node[] children = NO_CHILDREN;
+        Route route;
+
+        /**
+         * @return the child for the segment of path between start and end, null if there is none
+         */
+        Node child(String path, int start, int end) {
+            int i = indexOf(path, start, end);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node getOrCreateChild(String segment) {
+            int i = indexOf(segment, 0, segment.length());
+            if (i >= 0) {
+                return children[i];
+            }
+            int insert = -(i + 1);
+            Node child = new Node();
+            String[] newKeys = new String[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            newKeys[insert] = segment;
+            newChildren[insert] = child;
+            System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+
+        /**
+         * @return the index of the segment, or (-(insertion point) - 1) if it is not a key
+         */
+        private int indexOf(String path, int start, int end) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(keys[mid], path, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        private static int compare(String key, String path, int start, int end) {
+            int length = end - start;
+            int n = Math.min(key.length(), length);
+            for (int i = 0; i < n; i++) {
+                int diff = key.charAt(i) - path.charAt(start + i);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return key.length() - length;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.georchestra.security;
+
+/**
+ * Thrown by a {@link HeaderProvider} when the details of the user could not be read in time, the request being
+ * refused rather than forwarded without the headers identifying the user.
+ */
+public class UserDetailsUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfter;
+
+    public UserDetailsUnavailableException(String message, int retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return seconds after which the request may be sent again
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,415 @@
+package org.georchestra.security;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.security.balancer.Backend;
+import org.georchestra.security.balancer.LoadBalancer;
+import org.georchestra.security.permissions.DnsCache;
+import org.georchestra.security.permissions.Permissions;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Warms the {@link Proxy} up when it is initialized, before the webapp gets its first request.
+ * <p>
+ * For each target (or each backend of a balanced target):
+ * </p>
+ * <ul>
+ * <li>its host is resolved into the {@link DnsCache} of the proxy, which the permissions use as well</li>
+ * <li>its url is checked against the permissions, filling their decision cache</li>
+ * <li>connectionsPerTarget connections are opened in the pool of the httpClientFactory, if it is set</li>
+ * </ul>
+ * <p>
+ * The requests, paths relative to the proxy like <code>/geoserver/wms?SERVICE=WMS&amp;REQUEST=GetCapabilities</code>,
+ * are then handled repetitions times by the proxy as anonymous GET requests from the local host, their responses
+ * being discarded, so that the code forwarding the requests is compiled and the caches of the responses are filled.
+ * They go through the whole pipeline of the proxy and are counted by its metrics and statistics.
+ * </p>
+ * <p>
+ * The targets are warmed up in parallel by threads threads. A warm-up failure is logged and never prevents the
+ * proxy from starting, and the warm-up is abandoned after maxDuration milliseconds.
+ * </p>
+ */
+public class Warmup {
+    protected static final Log logger = LogFactory.getLog(Warmup.class.getPackage().getName());
+
+    private boolean resolveHosts = true;
+    private int connectionsPerTarget = 2;
+    private PoolingHttpClientFactory httpClientFactory;
+    private List<String> requests = Collections.emptyList();
+    private int repetitions = 1;
+    private int threads = 4;
+    private long maxDuration = 60000;
+
+    /**
+     * @param routes   the targets of the proxy
+     * @param balancer the balancer of the proxy, may be null
+     */
+    void run(final Proxy proxy, List<TargetRouter.Route> routes, LoadBalancer balancer) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxDuration);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (TargetRouter.Route route : routes) {
+            List<Backend> backends = balancer == null ? Collections.<Backend> emptyList()
+                    : balancer.getBackends(route.getKey());
+            if (backends.isEmpty()) {
+                tasks.add(warmUpTask(proxy, route.getTarget()));
+            }
+            for (Backend backend : backends) {
+                tasks.add(warmUpTask(proxy, backend.getUrl()));
+            }
+        }
+        if (!tasks.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactoryBuilder()
+                    .setNameFormat("security-proxy-warmup-%d").setDaemon(true).build());
+            try {
+                for (Future<Void> future : executor.invokeAll(tasks, maxDuration, TimeUnit.MILLISECONDS)) {
+                    if (future.isCancelled()) {
+                        logger.warn("The targets were not all warmed up within " + maxDuration + " ms");
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        int handled = 0;
+        for (int i = 0; i < repetitions && System.nanoTime() < deadline; i++) {
+            for (String path : requests) {
+                if (System.nanoTime() >= deadline || Thread.currentThread().isInterrupted()) {
+                    logger.warn("The warm-up requests were not all handled within " + maxDuration + " ms");
+                    break;
+                }
+                handle(proxy, path);
+                handled++;
+            }
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Warmed up " + tasks.size() + " targets and handled " + handled + " requests in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+    }
+
+    private Callable<Void> warmUpTask(final Proxy proxy, final String target) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                warmUp(proxy, target);
+                return null;
+            }
+        };
+    }
+
+    void warmUp(Proxy proxy, String target) {
+        try {
+            URL url = new URL(target);
+            if (resolveHosts) {
+                proxy.getDnsCache().resolve(url.getHost());
+            }
+            Permissions permissions = proxy.getProxyPermissions();
+            if (permissions != null && permissions.isDenied(url)) {
+                logger.debug(target + " is denied by the permissions");
+            }
+            if (httpClientFactory != null && connectionsPerTarget > 0) {
+                int opened = httpClientFactory.preconnect(target, connectionsPerTarget);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Opened " + opened + " connections to " + target);
+                }
+            }
+        } catch (UnknownHostException e) {
+            logger.warn("Unable to resolve the host of " + target);
+        } catch (IOException e) {
+            logger.warn("Unable to warm up " + target + ": " + e);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to warm up " + target, e);
+        }
+    }
+
+    private void handle(Proxy proxy, String path) {
+        SecurityContextHolder.getContext().setAuthentication(new AnonymousAuthenticationToken("warmup",
+                "anonymousUser", AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS")));
+        try {
+            proxy.handleGETRequest(request(path), response());
+        } catch (RuntimeException e) {
+            logger.warn("Unable to handle the warm-up request " + path, e);
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    /**
+     * @return an anonymous GET request of the path from the local host, in the root context
+     */
+    static HttpServletRequest request(String path) {
+        int question = path.indexOf('?');
+        final String uri = question < 0 ? path : path.substring(0, question);
+        final String query = question < 0 ? null : path.substring(question + 1);
+        final Map<String, String[]> parameters = parameters(query);
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+            private HttpSession session;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getMethod".equals(name)) {
+                    return "GET";
+                } else if ("getRequestURI".equals(name)) {
+                    return uri;
+                } else if ("getRequestURL".equals(name)) {
+                    return new StringBuffer("http://localhost").append(uri);
+                } else if ("getQueryString".equals(name)) {
+                    return query;
+                } else if ("getContextPath".equals(name) || "getServletPath".equals(name)) {
+                    return "";
+                } else if ("getScheme".equals(name)) {
+                    return "http";
+                } else if ("getProtocol".equals(name)) {
+                    return "HTTP/1.1";
+                } else if ("getServerName".equals(name) || "getRemoteHost".equals(name)) {
+                    return "localhost";
+                } else if ("getRemoteAddr".equals(name)) {
+                    return "127.0.0.1";
+                } else if ("getServerPort".equals(name)) {
+                    return 80;
+                } else if ("getParameter".equals(name)) {
+                    String[] values = parameters.get(args[0]);
+                    return values == null ? null : values[0];
+                } else if ("getParameterValues".equals(name)) {
+                    return parameters.get(args[0]);
+                } else if ("getParameterNames".equals(name)) {
+                    return Collections.enumeration(parameters.keySet());
+                } else if ("getParameterMap".equals(name)) {
+                    return parameters;
+                } else if ("getHeaders".equals(name) || "getHeaderNames".equals(name)
+                        || "getAttributeNames".equals(name)) {
+                    return Collections.enumeration(Collections.emptyList());
+                } else if ("getAttribute".equals(name)) {
+                    return attributes.get(args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    attributes.put((String) args[0], args[1]);
+                } else if ("removeAttribute".equals(name)) {
+                    attributes.remove(args[0]);
+                } else if ("getLocale".equals(name)) {
+                    return Locale.getDefault();
+                } else if ("getLocales".equals(name)) {
+                    return Collections.enumeration(Collections.singletonList(Locale.getDefault()));
+                } else if ("getInputStream".equals(name)) {
+                    return new ServletInputStream() {
+                        @Override
+                        public int read() {
+                            return -1;
+                        }
+                    };
+                } else if ("getSession".equals(name)) {
+                    if (session == null && (args == null || (Boolean) args[0])) {
+                        session = session();
+                    }
+                    return session;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * @return a response discarding everything written to it
+     */
+    static HttpServletResponse response() {
+        return proxy(HttpServletResponse.class, new InvocationHandler() {
+            private final ServletOutputStream out = new ServletOutputStream() {
+                private final OutputStream sink = ByteStreams.nullOutputStream();
+
+                @Override
+                public void write(int b) throws IOException {
+                    sink.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    sink.write(b, off, len);
+                }
+            };
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getOutputStream".equals(name)) {
+                    return out;
+                } else if ("getWriter".equals(name)) {
+                    return new PrintWriter(out);
+                } else if ("getCharacterEncoding".equals(name)) {
+                    return "UTF-8";
+                } else if ("encodeURL".equals(name) || "encodeRedirectURL".equals(name)
+                        || "encodeUrl".equals(name) || "encodeRedirectUrl".equals(name)) {
+                    return args[0];
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private static HttpSession session() {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return proxy(HttpSession.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getId".equals(name)) {
+                    return "warmup";
+                } else if ("getAttribute".equals(name)) {
+                    return attributes.get(args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    attributes.put((String) args[0], args[1]);
+                } else if ("removeAttribute".equals(name)) {
+                    attributes.remove(args[0]);
+                } else if ("getAttributeNames".equals(name)) {
+                    return Collections.enumeration(attributes.keySet());
+                } else if ("isNew".equals(name)) {
+                    return true;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    static Map<String, String[]> parameters(String query) {
+        Map<String, List<String>> lists = new LinkedHashMap<String, List<String>>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int equals = pair.indexOf('=');
+                String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+                String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+                List<String> values = lists.get(name);
+                if (values == null) {
+                    values = new ArrayList<String>(1);
+                    lists.put(name, values);
+                }
+                values.add(value);
+            }
+        }
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, List<String>> entry : lists.entrySet()) {
+            parameters.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        return parameters;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(java.lang.reflect.Proxy.newProxyInstance(Warmup.class.getClassLoader(),
+                new Class<?>[] { type }, handler));
+    }
+
+    /**
+     * @return the value of the methods which are not simulated: null, false, 0 or -1 for a length or a date
+     */
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return method.getName().endsWith("Length") || method.getName().equals("getIntHeader") ? -1 : 0;
+        } else if (type == long.class) {
+            return -1L;
+        } else if (method.getName().equals("toString")) {
+            return "warm-up " + method.getDeclaringClass().getSimpleName();
+        }
+        return null;
+    }
+
+    /**
+     * @param resolveHosts false not to resolve the hosts of the targets
+     */
+    public void setResolveHosts(boolean resolveHosts) {
+        this.resolveHosts = resolveHosts;
+    }
+
+    /**
+     * @param connectionsPerTarget number of connections opened to each target, 0 not to open any
+     */
+    public void setConnectionsPerTarget(int connectionsPerTarget) {
+        this.connectionsPerTarget = connectionsPerTarget;
+    }
+
+    /**
+     * @param httpClientFactory the factory of the http client of the proxy, whose pool the connections are opened in
+     */
+    public void setHttpClientFactory(PoolingHttpClientFactory httpClientFactory) {
+        this.httpClientFactory = httpClientFactory;
+    }
+
+    /**
+     * @param requests paths of the GET requests handled by the proxy after the targets have been warmed up,
+     *                 relative to the proxy and with their query string
+     */
+    public void setRequests(List<String> requests) {
+        this.requests = requests;
+    }
+
+    /**
+     * @param repetitions number of times the requests are handled
+     */
+    public void setRepetitions(int repetitions) {
+        this.repetitions = repetitions;
+    }
+
+    /**
+     * @param threads number of targets warmed up at the same time
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param maxDuration milliseconds after which the warm-up is abandoned
+     */
+    public void setMaxDuration(long maxDuration) {
+        this.maxDuration = maxDuration;
+    }
+}
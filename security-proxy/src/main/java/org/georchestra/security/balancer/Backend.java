@@ -0,0 +1,96 @@
+package org.georchestra.security.balancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * One of the backends a balanced target is served by, with its outstanding requests and its health.
+ */
+public final class Backend {
+    protected static final Log logger = LogFactory.getLog(Backend.class.getPackage().getName());
+
+    private final String url;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedUntil;
+    private volatile boolean ejected;
+
+    /**
+     * @param url base url of the backend, replacing the url of the target in the forwarded requests
+     */
+    Backend(String url) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * @return the base url of the backend, without trailing slash
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return number of requests forwarded to the backend and not completed yet
+     */
+    public int getOutstandingRequests() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return true if the backend does not get any request until it is reinstated
+     */
+    public boolean isEjected() {
+        return isEjected(System.nanoTime());
+    }
+
+    boolean isEjected(long now) {
+        return ejected && now - ejectedUntil < 0;
+    }
+
+    void started() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * @param failure true if the request failed or was too slow
+     * @param maxConsecutiveFailures number of failures in a row ejecting the backend
+     * @param ejectionNanos duration of the ejection
+     */
+    void completed(boolean failure, int maxConsecutiveFailures, long ejectionNanos, long now) {
+        outstanding.decrementAndGet();
+        if (!failure) {
+            consecutiveFailures.set(0);
+        } else if (consecutiveFailures.incrementAndGet() >= maxConsecutiveFailures && !isEjected(now)) {
+            eject(now, ejectionNanos, maxConsecutiveFailures + " failed or slow requests in a row");
+        }
+    }
+
+    void cancelled() {
+        outstanding.decrementAndGet();
+    }
+
+    void eject(long now, long ejectionNanos, String reason) {
+        ejectedUntil = now + ejectionNanos;
+        ejected = true;
+        consecutiveFailures.set(0);
+        if (logger.isWarnEnabled()) {
+            logger.warn("Backend " + url + " ejected for " + ejectionNanos / 1000000 + " ms: " + reason);
+        }
+    }
+
+    void reinstate() {
+        if (ejected) {
+            ejected = false;
+            if (logger.isInfoEnabled()) {
+                logger.info("Backend " + url + " reinstated");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
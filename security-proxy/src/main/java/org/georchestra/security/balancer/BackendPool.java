@@ -0,0 +1,61 @@
+package org.georchestra.security.balancer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The backends of a balanced target.
+ * <p>
+ * A request goes to the backend with the fewest outstanding requests among the ones not ejected, the scan starting
+ * at a rotating index so that the idle backends share the requests. When all the backends are ejected the requests
+ * are spread over all of them rather than refused.
+ * </p>
+ */
+final class BackendPool {
+    private final List<Backend> backends;
+    private final AtomicInteger next = new AtomicInteger();
+
+    BackendPool(List<String> urls) {
+        List<Backend> list = new ArrayList<Backend>(urls.size());
+        for (String url : urls) {
+            list.add(new Backend(url));
+        }
+        this.backends = Collections.unmodifiableList(list);
+    }
+
+    List<Backend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * @param sticky url of the backend the session of the user is bound to, may be null
+     * @return the backend of a request
+     */
+    Backend select(String sticky, long now) {
+        int size = backends.size();
+        if (sticky != null) {
+            for (int i = 0; i < size; i++) {
+                Backend backend = backends.get(i);
+                if (backend.getUrl().equals(sticky) && !backend.isEjected(now)) {
+                    return backend;
+                }
+            }
+        }
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Backend best = null;
+        Backend leastLoaded = null;
+        for (int i = 0; i < size; i++) {
+            Backend backend = backends.get((start + i) % size);
+            int outstanding = backend.getOutstandingRequests();
+            if (leastLoaded == null || outstanding < leastLoaded.getOutstandingRequests()) {
+                leastLoaded = backend;
+            }
+            if (!backend.isEjected(now) && (best == null || outstanding < best.getOutstandingRequests())) {
+                best = backend;
+            }
+        }
+        return best != null ? best : leastLoaded;
+    }
+}
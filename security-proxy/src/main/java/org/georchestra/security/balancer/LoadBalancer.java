@@ -0,0 +1,340 @@
+package org.georchestra.security.balancer;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.util.EntityUtils;
+import org.georchestra.security.ClientCookieJar;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Spreads the requests to a target over several backends.
+ * <p>
+ * The url of a target in the targets of the proxy is still the one its paths are matched and its locations
+ * rewritten with, the requests to a balanced target being forwarded to one of its backends instead:
+ * </p>
+ * <ul>
+ * <li>the backend with the fewest outstanding requests, see {@link BackendPool}</li>
+ * <li>a backend is ejected for ejectionDuration milliseconds after maxConsecutiveFailures requests in a row failed
+ * (an I/O error or a 5xx status) or took more than slowResponseTime milliseconds</li>
+ * <li>if healthCheckInterval is set, each backend is probed in the background with a GET of healthCheckPath: a
+ * probe getting a 5xx status or no answer ejects the backend, a successful one reinstates it</li>
+ * <li>once a backend has set a JSESSIONID cookie, the session of the user is bound to it so that the following
+ * requests of the user reach the backend holding its session, unless it is ejected. The backend is kept in the
+ * cookie of the cookieJar if there is one, in the session of the proxy otherwise.</li>
+ * </ul>
+ */
+public class LoadBalancer {
+    protected static final Log logger = LogFactory.getLog(LoadBalancer.class.getPackage().getName());
+
+    private static final String STICKY_ATTRIBUTE = LoadBalancer.class.getName() + ".";
+    private static final String JSESSIONID = "JSESSIONID";
+
+    private Map<String, List<String>> backends = Collections.emptyMap();
+    private int maxConsecutiveFailures = 5;
+    private long slowResponseTime = 30000;
+    private long ejectionDuration = 30000;
+    private boolean stickySessions = true;
+    private String healthCheckPath = "";
+    private long healthCheckInterval = 0;
+    private int healthCheckTimeout = 5000;
+    private HttpClient httpClient;
+    private ClientCookieJar cookieJar;
+
+    private volatile Map<String, BackendPool> pools;
+    private ScheduledExecutorService prober;
+
+    public synchronized void init() {
+        Map<String, BackendPool> map = new HashMap<String, BackendPool>();
+        for (Map.Entry<String, List<String>> entry : backends.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                throw new IllegalArgumentException("No backend for the target " + entry.getKey());
+            }
+            for (String url : entry.getValue()) {
+                try {
+                    new URI(url);
+                } catch (URISyntaxException e) {
+                    throw new IllegalArgumentException(url + " is not a valid backend url", e);
+                }
+            }
+            map.put(entry.getKey(), new BackendPool(entry.getValue()));
+        }
+        pools = map;
+        if (healthCheckInterval > 0 && prober == null) {
+            if (httpClient == null) {
+                throw new IllegalStateException("The httpClient is required to probe the backends");
+            }
+            prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("security-proxy-backend-prober").setDaemon(true).build());
+            prober.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    probeAll();
+                }
+            }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void destroy() {
+        if (prober != null) {
+            prober.shutdownNow();
+            prober = null;
+        }
+    }
+
+    private Map<String, BackendPool> getPools() {
+        Map<String, BackendPool> result = pools;
+        if (result == null) {
+            init();
+            result = pools;
+        }
+        return result;
+    }
+
+    /**
+     * @param target key of the target
+     * @param request the request of the user, its session is not created
+     * @return the lease of the backend the request is forwarded to, to be released once the response has been
+     *         copied, null if the target is not balanced
+     */
+    public Lease acquire(String target, HttpServletRequest request) {
+        BackendPool pool = getPools().get(target);
+        if (pool == null) {
+            return null;
+        }
+        String sticky = null;
+        if (stickySessions) {
+            sticky = getStickyBackend(target, request);
+        }
+        long now = System.nanoTime();
+        Backend backend = pool.select(sticky, now);
+        backend.started();
+        return new Lease(target, backend, now);
+    }
+
+    private String getStickyBackend(String target, HttpServletRequest request) {
+        if (cookieJar != null) {
+            return cookieJar.getBackend(request, target);
+        }
+        HttpSession session = request.getSession(false);
+        return session == null ? null : (String) session.getAttribute(STICKY_ATTRIBUTE + target);
+    }
+
+    /**
+     * @return the backends of a balanced target, an empty list if it is not balanced
+     */
+    public List<Backend> getBackends(String target) {
+        BackendPool pool = getPools().get(target);
+        return pool == null ? Collections.<Backend> emptyList() : pool.getBackends();
+    }
+
+    private void probeAll() {
+        for (BackendPool pool : getPools().values()) {
+            for (Backend backend : pool.getBackends()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                probe(backend);
+            }
+        }
+    }
+
+    void probe(Backend backend) {
+        HttpGet get = new HttpGet(backend.getUrl() + '/' + healthCheckPath);
+        get.getParams().setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, healthCheckTimeout);
+        get.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, healthCheckTimeout);
+        String failure;
+        try {
+            HttpResponse response = httpClient.execute(get);
+            int status = response.getStatusLine().getStatusCode();
+            EntityUtils.consume(response.getEntity());
+            failure = status >= 500 ? "health check returned " + status : null;
+        } catch (Exception e) {
+            failure = "health check failed: " + e;
+        } finally {
+            get.releaseConnection();
+        }
+        if (failure == null) {
+            backend.reinstate();
+        } else if (!backend.isEjected()) {
+            backend.eject(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(ejectionDuration), failure);
+        }
+    }
+
+    /**
+     * A request forwarded to a backend. Its outcome is recorded by
+     * {@link #responded(HttpResponse, HttpServletRequest)} or {@link #failed()}, and {@link #release()} must be
+     * called once it is done.
+     */
+    public final class Lease {
+        private final String target;
+        private final Backend backend;
+        private final long start;
+        private boolean completed;
+
+        private Lease(String target, Backend backend, long start) {
+            this.target = target;
+            this.backend = backend;
+            this.start = start;
+        }
+
+        public Backend getBackend() {
+            return backend;
+        }
+
+        /**
+         * @param url an url of the target, starting with targetUrl
+         * @param targetUrl the url of the target in the targets of the proxy
+         * @return the url on the backend
+         */
+        public String toBackend(String url, String targetUrl) {
+            return backend.getUrl() + url.substring(targetUrl.length());
+        }
+
+        /**
+         * @param url an url on the backend, like a Location header
+         * @param targetUrl the url of the target in the targets of the proxy
+         * @return the same url on the target, or the url itself if it is not on the backend
+         */
+        public String toTarget(String url, String targetUrl) {
+            return url.startsWith(backend.getUrl()) ? targetUrl + url.substring(backend.getUrl().length()) : url;
+        }
+
+        /**
+         * Records the response of the backend, and binds the session of the user to the backend if it set a
+         * JSESSIONID.
+         */
+        public void responded(HttpResponse response, HttpServletRequest request) {
+            complete(response.getStatusLine().getStatusCode() >= 500);
+            if (stickySessions && setsSessionId(response)) {
+                if (cookieJar != null) {
+                    // sent back with the session id, in the cookie of the jar
+                    cookieJar.setBackend(request, target, backend.getUrl());
+                } else {
+                    request.getSession().setAttribute(STICKY_ATTRIBUTE + target, backend.getUrl());
+                }
+            }
+        }
+
+        /**
+         * The backend could not be reached or did not answer.
+         */
+        public void failed() {
+            complete(true);
+        }
+
+        private void complete(boolean failure) {
+            if (!completed) {
+                completed = true;
+                long now = System.nanoTime();
+                boolean slow = now - start >= TimeUnit.MILLISECONDS.toNanos(slowResponseTime);
+                backend.completed(failure || slow, maxConsecutiveFailures,
+                        TimeUnit.MILLISECONDS.toNanos(ejectionDuration), now);
+            }
+        }
+
+        public void release() {
+            if (!completed) {
+                completed = true;
+                backend.cancelled();
+            }
+        }
+    }
+
+    private static boolean setsSessionId(HttpResponse response) {
+        for (Header header : response.getHeaders("Set-Cookie")) {
+            if (header.getValue().trim().startsWith(JSESSIONID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param backends urls of the backends by key of target
+     */
+    public void setBackends(Map<String, List<String>> backends) {
+        this.backends = backends;
+        this.pools = null;
+    }
+
+    /**
+     * @param maxConsecutiveFailures number of failed or slow requests in a row ejecting a backend
+     */
+    public void setMaxConsecutiveFailures(int maxConsecutiveFailures) {
+        this.maxConsecutiveFailures = maxConsecutiveFailures;
+    }
+
+    /**
+     * @param slowResponseTime milliseconds after which a response counts as a failure
+     */
+    public void setSlowResponseTime(long slowResponseTime) {
+        this.slowResponseTime = slowResponseTime;
+    }
+
+    /**
+     * @param ejectionDuration milliseconds an ejected backend does not get any request, unless a health check
+     *                         reinstates it before
+     */
+    public void setEjectionDuration(long ejectionDuration) {
+        this.ejectionDuration = ejectionDuration;
+    }
+
+    /**
+     * @param stickySessions false to balance every request, even of the users having a session on a backend
+     */
+    public void setStickySessions(boolean stickySessions) {
+        this.stickySessions = stickySessions;
+    }
+
+    /**
+     * @param healthCheckPath path requested on the backends by the health checks, relative to their url
+     */
+    public void setHealthCheckPath(String healthCheckPath) {
+        this.healthCheckPath = healthCheckPath.startsWith("/") ? healthCheckPath.substring(1) : healthCheckPath;
+    }
+
+    /**
+     * @param healthCheckInterval milliseconds between the health checks of the backends, 0 to disable them
+     */
+    public void setHealthCheckInterval(long healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    /**
+     * @param healthCheckTimeout connect and read timeout of the health checks, in milliseconds
+     */
+    public void setHealthCheckTimeout(int healthCheckTimeout) {
+        this.healthCheckTimeout = healthCheckTimeout;
+    }
+
+    public void setHttpClient(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * @param cookieJar the cookie jar of the headers management, keeping the backend of each target of the user in
+     *                  its cookie so that the proxy creates no session
+     */
+    public void setCookieJar(ClientCookieJar cookieJar) {
+        this.cookieJar = cookieJar;
+    }
+}
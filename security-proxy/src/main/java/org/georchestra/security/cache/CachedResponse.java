@@ -0,0 +1,167 @@
+package org.georchestra.security.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * A response kept by the {@link OgcResponseCache}: its body and the headers of the backend, so that it is served
+ * again like the response of the backend, and revalidated against the backend.
+ * <p>
+ * Instances are immutable apart from the revalidation flag, a new instance replaces the entry of the cache when
+ * the response is revalidated or moved to disk.
+ * </p>
+ */
+public final class CachedResponse {
+    private final String contentType;
+    private final String contentEncoding;
+    private final String etag;
+    private final String lastModified;
+    private final Header[] headers;
+    private final byte[] body;
+    private final File file;
+    private final int length;
+    private final long storedAt;
+    private final AtomicBoolean revalidating = new AtomicBoolean();
+
+    private CachedResponse(String contentType, String contentEncoding, String etag, String lastModified,
+                           Header[] headers, byte[] body, File file, int length, long storedAt) {
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.headers = headers;
+        this.body = body;
+        this.file = file;
+        this.length = length;
+        this.storedAt = storedAt;
+    }
+
+    static CachedResponse create(HttpResponse response, byte[] body) {
+        HttpEntity entity = response.getEntity();
+        return new CachedResponse(value(entity.getContentType()), value(entity.getContentEncoding()),
+                value(response.getFirstHeader("ETag")), value(response.getFirstHeader("Last-Modified")),
+                response.getAllHeaders(), body, null, body.length, System.currentTimeMillis());
+    }
+
+    private static String value(Header header) {
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * @return a copy of this response considered fresh again, with the validators and the other headers of a 304
+     *         response
+     */
+    CachedResponse revalidated(HttpResponse notModified) {
+        String newEtag = value(notModified.getFirstHeader("ETag"));
+        String newLastModified = value(notModified.getFirstHeader("Last-Modified"));
+        List<Header> updated = new ArrayList<Header>();
+        for (Header header : headers) {
+            if (!updates(notModified, header.getName())) {
+                updated.add(header);
+            }
+        }
+        for (Header header : notModified.getAllHeaders()) {
+            if (updates(notModified, header.getName())) {
+                updated.add(header);
+            }
+        }
+        return new CachedResponse(contentType, contentEncoding, newEtag == null ? etag : newEtag,
+                newLastModified == null ? lastModified : newLastModified, updated.toArray(new Header[updated.size()]),
+                body, file, length, System.currentTimeMillis());
+    }
+
+    /**
+     * @return true if the header of the 304 response replaces the stored one, the ones describing the body are kept
+     */
+    private static boolean updates(HttpResponse notModified, String name) {
+        String lowerCase = name.toLowerCase(Locale.ENGLISH);
+        return notModified.containsHeader(name) && !lowerCase.startsWith("content-")
+                && !lowerCase.equals("transfer-encoding");
+    }
+
+    /**
+     * @return a copy of this response whose body is in file
+     */
+    CachedResponse onDisk(File file) {
+        return new CachedResponse(contentType, contentEncoding, etag, lastModified, headers, null, file, length,
+                storedAt);
+    }
+
+    /**
+     * @return a copy of this response with its body in memory
+     */
+    CachedResponse inMemory(byte[] body) {
+        return new CachedResponse(contentType, contentEncoding, etag, lastModified, headers, body, null, length,
+                storedAt);
+    }
+
+    /**
+     * @return the response of the backend this response was stored from, with its body in memory
+     */
+    HttpResponse toHttpResponse() {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.setHeaders(headers);
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setContentType(contentType);
+        entity.setContentEncoding(contentEncoding);
+        response.setEntity(entity);
+        return response;
+    }
+
+    /**
+     * @return true if this thread has to revalidate the response, false if it is already being revalidated
+     */
+    boolean startRevalidation() {
+        return revalidating.compareAndSet(false, true);
+    }
+
+    void endRevalidation() {
+        revalidating.set(false);
+    }
+
+    long getAge() {
+        return System.currentTimeMillis() - storedAt;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the body, null if it is on disk
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,145 @@
+package org.georchestra.security.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Second level of the {@link OgcResponseCache}: the responses evicted from memory are written to a directory,
+ * the least recently used ones being deleted when the total size of the files goes over the max size.
+ * <p>
+ * The index of the files is only kept in memory, so the files left by a previous store are deleted when the store is
+ * created. Only the files named like the ones of the store are deleted, the other files of the directory are left
+ * alone.
+ * </p>
+ */
+final class DiskStore {
+    private static final Log logger = LogFactory.getLog(DiskStore.class.getPackage().getName());
+
+    private static final String SUFFIX = ".ogc-response";
+    /** the names of the files of the store: the SHA-1 of the key and the suffix */
+    private static final Pattern FILE_NAME = Pattern.compile("[0-9a-f]{40}" + Pattern.quote(SUFFIX));
+
+    private final File directory;
+    private final long maxSize;
+    private final LinkedHashMap<String, CachedResponse> index = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    private long size;
+
+    DiskStore(File directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the cache directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && FILE_NAME.matcher(file.getName()).matches()) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the body of the response to disk.
+     */
+    void put(String key, CachedResponse response) {
+        if (response.getLength() > maxSize) {
+            return;
+        }
+        File file = new File(directory, Hashing.sha1().hashString(key, Charsets.UTF_8).toString() + SUFFIX);
+        try {
+            Files.write(response.getBody(), file);
+        } catch (IOException e) {
+            logger.warn("Unable to write " + file + " to the cache directory", e);
+            delete(file);
+            return;
+        }
+        synchronized (this) {
+            CachedResponse previous = index.put(key, response.onDisk(file));
+            if (previous != null) {
+                size -= previous.getLength();
+            }
+            size += response.getLength();
+            Iterator<Map.Entry<String, CachedResponse>> eldest = index.entrySet().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                CachedResponse evicted = eldest.next().getValue();
+                eldest.remove();
+                size -= evicted.getLength();
+                delete(evicted.getFile());
+            }
+        }
+    }
+
+    /**
+     * Removes a response from disk.
+     *
+     * @return the response with its body read back in memory, null if it is not on disk
+     */
+    CachedResponse remove(String key) {
+        CachedResponse response;
+        synchronized (this) {
+            response = index.remove(key);
+            if (response == null) {
+                return null;
+            }
+            size -= response.getLength();
+        }
+        try {
+            return response.inMemory(Files.toByteArray(response.getFile()));
+        } catch (IOException e) {
+            logger.warn("Unable to read " + response.getFile() + " from the cache directory", e);
+            return null;
+        } finally {
+            delete(response.getFile());
+        }
+    }
+
+    /**
+     * Removes a response from disk without reading it.
+     */
+    void discard(String key) {
+        CachedResponse response;
+        synchronized (this) {
+            response = index.remove(key);
+            if (response == null) {
+                return;
+            }
+            size -= response.getLength();
+        }
+        delete(response.getFile());
+    }
+
+    synchronized void clear() {
+        for (CachedResponse response : index.values()) {
+            delete(response.getFile());
+        }
+        index.clear();
+        size = 0;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized int count() {
+        return index.size();
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Unable to delete " + file + " from the cache directory");
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package org.georchestra.security.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.georchestra.security.HeaderNames;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Caches the responses to the OGC metadata requests (GetCapabilities, DescribeFeatureType, ...) forwarded by the
+ * proxy.
+ * <p>
+ * Only GET requests whose REQUEST parameter is one of the configured operations are cached. A response is stored
+ * for a target url, query (parameters sorted, names in lower case) and value of the sec-roles header, so that users
+ * with different roles never share a response. The responses are kept in memory up to maxMemorySize bytes, the
+ * least recently used ones being moved to the optional disk directory.
+ * </p>
+ * <p>
+ * A response is fresh for timeToLive seconds. Once it is older it is still served while a background thread
+ * revalidates it with a conditional request (If-None-Match / If-Modified-Since). A response which could not be
+ * revalidated is dropped after maxStale more seconds, and it is dropped at once if the backend now refuses the
+ * request.
+ * </p>
+ */
+public class OgcResponseCache implements DisposableBean {
+    protected static final Log logger = LogFactory.getLog(OgcResponseCache.class.getPackage().getName());
+
+    private static final int ENTRY_OVERHEAD = 512;
+
+    private Set<String> operations = Sets.newHashSet("getcapabilities", "describefeaturetype", "describelayer");
+    private long maxMemorySize = 64 * 1024 * 1024;
+    private int maxEntrySize = 16 * 1024 * 1024;
+    private File diskDirectory;
+    private long maxDiskSize = 512 * 1024 * 1024;
+    private long timeToLive = 300;
+    private long maxStale = 3600;
+    private int revalidationThreads = 2;
+
+    private volatile Cache<String, CachedResponse> memory;
+    private volatile DiskStore disk;
+    private volatile ExecutorService executor;
+
+    /**
+     * @param proxyingRequest the request to the backend, with the security headers set
+     * @return the key of the response to the request, null if it must not be cached
+     */
+    public String key(HttpRequestBase proxyingRequest) {
+        if (!"GET".equals(proxyingRequest.getMethod())) {
+            return null;
+        }
+        URI uri = proxyingRequest.getURI();
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        String[] parameters = query.split("&");
+        String operation = null;
+        for (int i = 0; i < parameters.length; i++) {
+            String parameter = parameters[i];
+            int equals = parameter.indexOf('=');
+            String name = (equals < 0 ? parameter : parameter.substring(0, equals)).toLowerCase(Locale.ENGLISH);
+            String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            if ("request".equals(name)) {
+                operation = value.toLowerCase(Locale.ENGLISH);
+            }
+            parameters[i] = name + '=' + value;
+        }
+        if (operation == null || !operations.contains(operation)) {
+            return null;
+        }
+        Arrays.sort(parameters);
+
+        StringBuilder key = new StringBuilder();
+        key.append(uri.getScheme()).append("://").append(uri.getRawAuthority().toLowerCase(Locale.ENGLISH));
+        key.append(uri.getRawPath()).append('?');
+        for (String parameter : parameters) {
+            if (parameter.length() > 1) {
+                key.append(parameter).append('&');
+            }
+        }
+        Header roles = proxyingRequest.getFirstHeader(HeaderNames.SEC_ROLES);
+        key.append('|').append(roles == null ? "" : roles.getValue());
+        // the body is stored as sent by the backend, which depends on the encodings accepted by the client
+        Header acceptEncoding = proxyingRequest.getFirstHeader("Accept-Encoding");
+        key.append('|').append(acceptEncoding == null ? "" : acceptEncoding.getValue());
+        return key.toString();
+    }
+
+    /**
+     * @return the response stored for the key, null if there is none or if it is too old to be served
+     */
+    public CachedResponse get(String key) {
+        Cache<String, CachedResponse> cache = getMemory();
+        CachedResponse response = cache.getIfPresent(key);
+        if (response == null && disk != null) {
+            response = disk.remove(key);
+            if (response != null) {
+                cache.put(key, response);
+            }
+        }
+        if (response != null && response.getAge() > (timeToLive + maxStale) * 1000) {
+            cache.invalidate(key);
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * @return true if the response is older than timeToLive and has to be revalidated
+     */
+    public boolean isStale(CachedResponse response) {
+        return response.getAge() > timeToLive * 1000;
+    }
+
+    /**
+     * Stores the response of the backend if it can be cached.
+     *
+     * @return the response to send to the client: its body may have been read by the cache
+     */
+    public HttpResponse store(String key, HttpResponse response) throws IOException {
+        if (!isCacheable(response)) {
+            return response;
+        }
+        HttpEntity entity = response.getEntity();
+        long length = entity.getContentLength();
+        if (length > maxEntrySize) {
+            return response;
+        }
+        InputStream in = entity.getContent();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(length > 0 ? (int) length : 8192);
+        long read = ByteStreams.copy(ByteStreams.limit(in, maxEntrySize + 1L), buffer);
+        byte[] body = buffer.toByteArray();
+        if (read > maxEntrySize) {
+            // too big, the client gets the bytes already read followed by the rest of the stream
+            BasicHttpEntity remaining = new BasicHttpEntity();
+            remaining.setContent(new SequenceInputStream(new ByteArrayInputStream(body), in));
+            remaining.setContentLength(length);
+            remaining.setContentType(entity.getContentType());
+            remaining.setContentEncoding(entity.getContentEncoding());
+            remaining.setChunked(entity.isChunked());
+            response.setEntity(remaining);
+            return response;
+        }
+        in.close();
+        ByteArrayEntity buffered = new ByteArrayEntity(body);
+        buffered.setContentType(entity.getContentType());
+        buffered.setContentEncoding(entity.getContentEncoding());
+        response.setEntity(buffered);
+        getMemory().put(key, CachedResponse.create(response, body));
+        return response;
+    }
+
+    private boolean isCacheable(HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() != HttpServletResponse.SC_OK || response.getEntity() == null
+                || response.containsHeader("Set-Cookie")) {
+            return false;
+        }
+        for (Header header : response.getHeaders("Cache-Control")) {
+            String value = header.getValue().toLowerCase(Locale.ENGLISH);
+            if (value.contains("no-store") || value.contains("private")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends a 304 response if the client already has the cached response, otherwise returns it to be sent like the
+     * response of the backend, through the same handling of the headers and of the charset.
+     *
+     * @return the response to send to the client, null if a 304 response has been sent
+     */
+    public HttpResponse serve(CachedResponse response, HttpServletRequest request, HttpServletResponse finalResponse) {
+        if (response.getEtag() != null) {
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null && ifNoneMatch.contains(response.getEtag())) {
+                finalResponse.setHeader("ETag", response.getEtag());
+                finalResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return null;
+            }
+        }
+        return response.toHttpResponse();
+    }
+
+    /**
+     * Revalidates a stale response in the background, unless it is already being revalidated.
+     *
+     * @param proxyingRequest the request to the backend, its headers are copied to the conditional request
+     */
+    public void revalidate(final String key, final CachedResponse stale, HttpRequestBase proxyingRequest,
+                           final HttpClient httpClient) {
+        if (!stale.startRevalidation()) {
+            return;
+        }
+        final HttpGet conditionalRequest = new HttpGet(proxyingRequest.getURI());
+        for (Header header : proxyingRequest.getAllHeaders()) {
+            if (!header.getName().toLowerCase(Locale.ENGLISH).startsWith("if-")) {
+                conditionalRequest.addHeader(header);
+            }
+        }
+        if (stale.getEtag() != null) {
+            conditionalRequest.setHeader("If-None-Match", stale.getEtag());
+        }
+        if (stale.getLastModified() != null) {
+            conditionalRequest.setHeader("If-Modified-Since", stale.getLastModified());
+        }
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    doRevalidate(key, stale, conditionalRequest, httpClient);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stale.endRevalidation();
+        }
+    }
+
+    void doRevalidate(String key, CachedResponse stale, HttpGet conditionalRequest, HttpClient httpClient) {
+        try {
+            HttpResponse response = executeHttpRequest(httpClient, conditionalRequest);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+                getMemory().put(key, stale.revalidated(response));
+            } else if (statusCode == HttpServletResponse.SC_OK && isCacheable(response)) {
+                EntityUtils.consume(store(key, response).getEntity());
+            } else if (statusCode < 500) {
+                // the backend no longer serves this response, as is, to these roles
+                invalidate(key);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Revalidated " + conditionalRequest.getURI() + ": " + statusCode);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to revalidate " + conditionalRequest.getURI(), e);
+        } finally {
+            conditionalRequest.releaseConnection();
+            stale.endRevalidation();
+        }
+    }
+
+    @VisibleForTesting
+    protected HttpResponse executeHttpRequest(HttpClient httpClient, HttpGet conditionalRequest) throws IOException {
+        return httpClient.execute(conditionalRequest);
+    }
+
+    public void invalidate(String key) {
+        getMemory().invalidate(key);
+        if (disk != null) {
+            disk.discard(key);
+        }
+    }
+
+    public void invalidateAll() {
+        getMemory().invalidateAll();
+        if (disk != null) {
+            disk.clear();
+        }
+    }
+
+    /**
+     * @return the statistics of the memory level of the cache
+     */
+    public CacheStats getStats() {
+        return getMemory().stats();
+    }
+
+    /**
+     * @return the number of bytes of the responses stored on disk
+     */
+    public long getDiskSize() {
+        getMemory();
+        return disk == null ? 0 : disk.size();
+    }
+
+    private Cache<String, CachedResponse> getMemory() {
+        Cache<String, CachedResponse> result = this.memory;
+        if (result == null) {
+            synchronized (this) {
+                result = this.memory;
+                if (result == null) {
+                    if (diskDirectory != null) {
+                        try {
+                            disk = new DiskStore(diskDirectory, maxDiskSize);
+                        } catch (IOException e) {
+                            logger.error("The responses will only be cached in memory", e);
+                        }
+                    }
+                    result = CacheBuilder.newBuilder()
+                            .maximumWeight(maxMemorySize)
+                            .weigher(new Weigher<String, CachedResponse>() {
+                                @Override
+                                public int weigh(String key, CachedResponse response) {
+                                    return ENTRY_OVERHEAD + 2 * key.length() + response.getLength();
+                                }
+                            })
+                            .removalListener(new RemovalListener<String, CachedResponse>() {
+                                @Override
+                                public void onRemoval(RemovalNotification<String, CachedResponse> notification) {
+                                    if (notification.getCause() == RemovalCause.SIZE) {
+                                        spill(notification.getKey(), notification.getValue());
+                                    }
+                                }
+                            })
+                            .recordStats()
+                            .build();
+                    this.memory = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private void spill(final String key, final CachedResponse response) {
+        final DiskStore store = this.disk;
+        if (store == null || response.getBody() == null) {
+            return;
+        }
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    store.put(key, response);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the response is dropped
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        ExecutorService result = this.executor;
+        if (result == null) {
+            synchronized (this) {
+                result = this.executor;
+                if (result == null) {
+                    result = new ThreadPoolExecutor(revalidationThreads, revalidationThreads, 0, TimeUnit.MILLISECONDS,
+                            new LinkedBlockingQueue<Runnable>(1000), new ThreadFactoryBuilder()
+                            .setNameFormat("security-proxy-response-cache-%d").setDaemon(true).build());
+                    this.executor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (disk != null) {
+            disk.clear();
+        }
+    }
+
+    /**
+     * @param operations the values of the REQUEST parameter of the requests to cache (case insensitive)
+     */
+    public void setOperations(List<String> operations) {
+        Set<String> set = Sets.newHashSet();
+        for (String operation : operations) {
+            set.add(operation.toLowerCase(Locale.ENGLISH));
+        }
+        this.operations = Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * @param maxMemorySize max number of bytes of the responses kept in memory
+     */
+    public void setMaxMemorySize(long maxMemorySize) {
+        this.maxMemorySize = maxMemorySize;
+    }
+
+    /**
+     * @param maxEntrySize max number of bytes of a cached response
+     */
+    public void setMaxEntrySize(int maxEntrySize) {
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * @param diskDirectory directory of the responses evicted from memory, no disk cache if null
+     */
+    public void setDiskDirectory(File diskDirectory) {
+        this.diskDirectory = diskDirectory;
+    }
+
+    /**
+     * @param maxDiskSize max number of bytes of the responses kept on disk
+     */
+    public void setMaxDiskSize(long maxDiskSize) {
+        this.maxDiskSize = maxDiskSize;
+    }
+
+    /**
+     * @param timeToLive number of seconds during which a response is served without being revalidated
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param maxStale number of seconds after timeToLive during which a response which could not be revalidated
+     *                 is still served
+     */
+    public void setMaxStale(long maxStale) {
+        this.maxStale = maxStale;
+    }
+
+    /**
+     * @param revalidationThreads number of threads revalidating the stale responses and writing them to disk
+     */
+    public void setRevalidationThreads(int revalidationThreads) {
+        this.revalidationThreads = revalidationThreads;
+    }
+}
@@ -0,0 +1,274 @@
+package org.georchestra.security.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.georchestra.security.HeaderNames;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Coalesces the identical GET requests forwarded at the same time, like the GetCapabilities or GetLegendGraphic
+ * requests of all the users opening a map.
+ * <p>
+ * Only the GET requests whose url matches one of the patterns are coalesced, by url and value of the sec-roles
+ * header (and Accept-Encoding, the body being shared as sent by the backend). The first request is forwarded, the
+ * identical ones arriving before its response wait for it and get a copy, without being forwarded.
+ * </p>
+ * <p>
+ * The response is only shared if it sets no cookie and its body is at most maxResponseSize bytes, it is buffered
+ * for that. Otherwise, or if the first request fails or takes more than maxWait milliseconds, the waiting requests
+ * are forwarded on their own.
+ * </p>
+ */
+public class RequestCoalescer {
+    protected static final Log logger = LogFactory.getLog(RequestCoalescer.class.getPackage().getName());
+
+    private List<Pattern> patterns = Collections.emptyList();
+    private int maxResponseSize = 1024 * 1024;
+    private long maxWait = 30000;
+
+    private final ConcurrentMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param proxyingRequest the request to the backend, with the security headers set
+     * @return the key of the request, null if it must not be coalesced
+     */
+    public String key(HttpRequestBase proxyingRequest) {
+        if (!"GET".equals(proxyingRequest.getMethod()) || patterns.isEmpty()) {
+            return null;
+        }
+        String uri = proxyingRequest.getURI().toString();
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(uri).find()) {
+                Header roles = proxyingRequest.getFirstHeader(HeaderNames.SEC_ROLES);
+                Header acceptEncoding = proxyingRequest.getFirstHeader("Accept-Encoding");
+                return uri + '|' + (roles == null ? "" : roles.getValue()) + '|'
+                        + (acceptEncoding == null ? "" : acceptEncoding.getValue());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the flight of the request: it leads it if no identical request is being forwarded, and follows the
+     *         identical request otherwise
+     */
+    public Flight join(String key) {
+        Call call = new Call(key);
+        Call current = calls.putIfAbsent(key, call);
+        if (current == null) {
+            forwarded.incrementAndGet();
+            return new Flight(call, true);
+        }
+        return new Flight(current, false);
+    }
+
+    /**
+     * The part of a request in a coalesced call. The leader forwards the request and passes its response to
+     * {@link #share(HttpResponse)}, a follower gets a copy with {@link #await()}. {@link #release()} must be called
+     * once the request is done.
+     */
+    public final class Flight {
+        private final Call call;
+        private final boolean leader;
+
+        private Flight(Call call, boolean leader) {
+            this.call = call;
+            this.leader = leader;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Called by a follower.
+         *
+         * @return a copy of the response of the leader, null if it could not be shared in time
+         */
+        public HttpResponse await() {
+            try {
+                if (!call.done.await(maxWait, TimeUnit.MILLISECONDS)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("No response within " + maxWait + " ms for " + call.key);
+                    }
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            SharedResponse shared = call.response;
+            if (shared == null) {
+                return null;
+            }
+            coalesced.incrementAndGet();
+            return shared.copy();
+        }
+
+        /**
+         * Called by the leader, shares its response with the followers.
+         *
+         * @return the response to send to the client: its body may have been read to be shared
+         */
+        public HttpResponse share(HttpResponse response) throws IOException {
+            try {
+                if (response.containsHeader("Set-Cookie")) {
+                    return response;
+                }
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    call.response = new SharedResponse(response, null);
+                    return response;
+                }
+                long length = entity.getContentLength();
+                if (length > maxResponseSize) {
+                    return response;
+                }
+                InputStream in = entity.getContent();
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(length > 0 ? (int) length : 8192);
+                long read = ByteStreams.copy(ByteStreams.limit(in, maxResponseSize + 1L), buffer);
+                byte[] body = buffer.toByteArray();
+                if (read > maxResponseSize) {
+                    // too big, the client gets the bytes already read followed by the rest of the stream
+                    BasicHttpEntity remaining = new BasicHttpEntity();
+                    remaining.setContent(new SequenceInputStream(new ByteArrayInputStream(body), in));
+                    remaining.setContentLength(length);
+                    remaining.setContentType(entity.getContentType());
+                    remaining.setContentEncoding(entity.getContentEncoding());
+                    remaining.setChunked(entity.isChunked());
+                    response.setEntity(remaining);
+                    return response;
+                }
+                in.close();
+                response.setEntity(entity(body, entity.getContentType(), entity.getContentEncoding()));
+                call.response = new SharedResponse(response, body);
+                return response;
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Ends the call if this request leads it and has not shared its response, the followers are then forwarded
+         * on their own.
+         */
+        public void release() {
+            if (leader && call.done.getCount() > 0) {
+                calls.remove(call.key, call);
+                call.done.countDown();
+            }
+        }
+    }
+
+    private static final class Call {
+        final String key;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile SharedResponse response;
+
+        Call(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The status, headers and body of a response, copied for each follower.
+     */
+    private static final class SharedResponse {
+        private final StatusLine statusLine;
+        private final Header[] headers;
+        private final Header contentType;
+        private final Header contentEncoding;
+        private final byte[] body;
+
+        SharedResponse(HttpResponse response, byte[] body) {
+            this.statusLine = response.getStatusLine();
+            this.headers = response.getAllHeaders();
+            HttpEntity entity = response.getEntity();
+            this.contentType = entity == null ? null : entity.getContentType();
+            this.contentEncoding = entity == null ? null : entity.getContentEncoding();
+            this.body = body;
+        }
+
+        HttpResponse copy() {
+            BasicHttpResponse response = new BasicHttpResponse(statusLine);
+            response.setHeaders(headers);
+            if (body != null) {
+                response.setEntity(entity(body, contentType, contentEncoding));
+            }
+            return response;
+        }
+    }
+
+    private static HttpEntity entity(byte[] body, Header contentType, Header contentEncoding) {
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setContentType(contentType);
+        entity.setContentEncoding(contentEncoding);
+        return entity;
+    }
+
+    /**
+     * @return number of requests forwarded as the leader of their call
+     */
+    public long getForwardedCount() {
+        return forwarded.get();
+    }
+
+    /**
+     * @return number of requests served with the response of an identical request
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @param patterns regular expressions, one of which must be found in the url of a GET request for it to be
+     *                 coalesced
+     */
+    public void setPatterns(List<String> patterns) {
+        List<Pattern> list = new ArrayList<Pattern>(patterns.size());
+        for (String pattern : patterns) {
+            list.add(Pattern.compile(pattern, Pattern.CASE_INSENSITIVE));
+        }
+        this.patterns = list;
+    }
+
+    /**
+     * @param maxResponseSize max number of bytes of a body buffered to be shared
+     */
+    public void setMaxResponseSize(int maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * @param maxWait milliseconds a request waits for the response of an identical one before being forwarded
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+}
@@ -0,0 +1,155 @@
+package org.georchestra.security.compression;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response whose body is gzipped on the fly. The length of the body being unknown, the Content-Length set on
+ * it is dropped. {@link #finish()} must be called once the body has been written.
+ * <p>
+ * The Content-Encoding and Vary headers are only set when the first byte of the body is written, so that an error
+ * sent instead of the body or an empty body are not announced as gzipped.
+ * </p>
+ */
+public final class CompressedResponse extends HttpServletResponseWrapper {
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    private final DeflaterPool pool;
+    private final int bufferSize;
+    private GzipOutputStream gzip;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+    private boolean closed;
+
+    CompressedResponse(HttpServletResponse response, DeflaterPool pool, int bufferSize) {
+        super(response);
+        this.pool = pool;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the gzip stream, opened with the gzip headers of the response on first use
+     */
+    private GzipOutputStream gzip() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (gzip == null) {
+            super.setHeader("Content-Encoding", "gzip");
+            super.addHeader("Vary", "Accept-Encoding");
+            gzip = new GzipOutputStream(super.getOutputStream(), pool, bufferSize);
+        }
+        return gzip;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    gzip().write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (len > 0) {
+                        gzip().write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (gzip != null) {
+                        gzip.flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    closeStream();
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    private void closeStream() throws IOException {
+        if (!closed) {
+            closed = true;
+            if (gzip != null) {
+                gzip.close();
+            } else {
+                // empty body, sent as is
+                super.getOutputStream().close();
+            }
+        }
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        // the length of the compressed body is not known
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        } else if (outputStream != null) {
+            outputStream.flush();
+        }
+        super.flushBuffer();
+    }
+
+    /**
+     * Writes the end of the gzip stream, if the body has been started, and gives the deflater back to the pool.
+     */
+    public void finish() throws IOException {
+        if (writer != null) {
+            writer.close();
+        } else if (gzip != null) {
+            closeStream();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.georchestra.security.compression;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Reuses the {@link Deflater}s of the compressed responses: each one holds a native zlib stream, costly to create
+ * and only freed by {@link Deflater#end()} or the finalizer.
+ */
+final class DeflaterPool {
+    private final int level;
+    private final BlockingQueue<Deflater> idle;
+
+    DeflaterPool(int level, int maxIdle) {
+        this.level = level;
+        this.idle = new ArrayBlockingQueue<Deflater>(Math.max(1, maxIdle));
+    }
+
+    /**
+     * @return a deflater writing raw deflate data, to be given back by {@link #release(Deflater)}
+     */
+    Deflater borrow() {
+        Deflater deflater = idle.poll();
+        return deflater == null ? new Deflater(level, true) : deflater;
+    }
+
+    void release(Deflater deflater) {
+        deflater.reset();
+        if (!idle.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    void clear() {
+        Deflater deflater;
+        while ((deflater = idle.poll()) != null) {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.georchestra.security.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzip stream like {@link java.util.zip.GZIPOutputStream}, with a deflater taken from a {@link DeflaterPool} and
+ * given back once the stream is closed.
+ */
+final class GzipOutputStream extends DeflaterOutputStream {
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final DeflaterPool pool;
+    private final CRC32 crc = new CRC32();
+    private boolean finished;
+    private boolean closed;
+
+    GzipOutputStream(OutputStream out, DeflaterPool pool, int bufferSize) throws IOException {
+        super(out, pool.borrow(), bufferSize);
+        this.pool = pool;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            super.finish();
+            writeInt((int) crc.getValue());
+            writeInt((int) def.getBytesRead());
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                finish();
+            } finally {
+                pool.release(def);
+                out.close();
+            }
+        }
+    }
+}
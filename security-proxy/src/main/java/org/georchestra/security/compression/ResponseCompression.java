@@ -0,0 +1,181 @@
+package org.georchestra.security.compression;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Gzips on the fly the uncompressed responses of the backends when the client accepts it.
+ * <p>
+ * A response is compressed when it is a 200 with a body, has no Content-Encoding, its content type is one of the
+ * configured ones and it is at least minSize bytes long. A response without Content-Length (chunked) is
+ * compressed whatever its size, dynamic content like GML or JSON features being sent that way.
+ * </p>
+ * <p>
+ * The {@link Deflater}s are pooled, so that compressing a response does not allocate a new native zlib stream.
+ * </p>
+ */
+public class ResponseCompression implements DisposableBean {
+
+    private Set<String> contentTypes = Collections.emptySet();
+    private long minSize = 1024;
+    private int level = 6;
+    private int maxIdleDeflaters = 64;
+    private int bufferSize = 8192;
+
+    private volatile DeflaterPool pool;
+
+    /**
+     * Checks whether the response of the backend is to be compressed, and if so adjusts its headers.
+     *
+     * @param head true for a HEAD request, which has no body
+     * @return the response to write the headers and body to, null if the response is not to be compressed
+     */
+    public CompressedResponse compress(HttpServletRequest request, boolean head, HttpResponse proxiedResponse,
+            HttpServletResponse response) {
+        if (head || !acceptsGzip(request.getHeader("Accept-Encoding")) || !isCompressible(proxiedResponse)) {
+            return null;
+        }
+        proxiedResponse.removeHeaders("Content-Length");
+        Header etag = proxiedResponse.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            // the compressed body is not the same bytes
+            proxiedResponse.setHeader("ETag", "W/" + etag.getValue());
+        }
+        return new CompressedResponse(response, getPool(), bufferSize);
+    }
+
+    boolean isCompressible(HttpResponse proxiedResponse) {
+        HttpEntity entity = proxiedResponse.getEntity();
+        if (proxiedResponse.getStatusLine().getStatusCode() != HttpServletResponse.SC_OK || entity == null) {
+            return false;
+        }
+        Header encoding = proxiedResponse.getFirstHeader("Content-Encoding");
+        if (encoding != null && !"identity".equalsIgnoreCase(encoding.getValue().trim())) {
+            return false;
+        }
+        Header contentType = proxiedResponse.getFirstHeader("Content-Type");
+        if (contentType == null || !contentTypes.contains(mimeType(contentType.getValue()))) {
+            return false;
+        }
+        long length = entity.getContentLength();
+        return length < 0 || length >= minSize;
+    }
+
+    static String mimeType(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        String type = semicolon < 0 ? contentType : contentType.substring(0, semicolon);
+        return type.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return true if gzip is one of the codings of the Accept-Encoding header, with a non zero quality
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            int semicolon = coding.indexOf(';');
+            String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+            if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                return semicolon < 0 || quality(coding.substring(semicolon + 1)) > 0;
+            }
+        }
+        return false;
+    }
+
+    private static double quality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && "q".equalsIgnoreCase(parameter.substring(0, equals).trim())) {
+                try {
+                    return Double.parseDouble(parameter.substring(equals + 1).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private DeflaterPool getPool() {
+        DeflaterPool result = this.pool;
+        if (result == null) {
+            synchronized (this) {
+                result = this.pool;
+                if (result == null) {
+                    result = new DeflaterPool(level, maxIdleDeflaters);
+                    this.pool = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of deflaters waiting in the pool
+     */
+    public int getIdleDeflaters() {
+        DeflaterPool result = this.pool;
+        return result == null ? 0 : result.getIdleCount();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (pool != null) {
+            pool.clear();
+            pool = null;
+        }
+    }
+
+    /**
+     * @param contentTypes the mime types of the responses to compress, without parameters
+     */
+    public void setContentTypes(List<String> contentTypes) {
+        Set<String> types = new HashSet<String>();
+        for (String contentType : contentTypes) {
+            types.add(mimeType(contentType));
+        }
+        this.contentTypes = types;
+    }
+
+    /**
+     * @param minSize min Content-Length in bytes of the responses to compress
+     */
+    public void setMinSize(long minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * @param level compression level, from 1 (fastest) to 9 (smallest)
+     */
+    public void setLevel(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * @param maxIdleDeflaters max number of deflaters kept for reuse
+     */
+    public void setMaxIdleDeflaters(int maxIdleDeflaters) {
+        this.maxIdleDeflaters = maxIdleDeflaters;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+}
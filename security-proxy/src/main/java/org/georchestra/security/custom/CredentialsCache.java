@@ -0,0 +1,113 @@
+package org.georchestra.security.custom;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers the credentials which were successfully verified, with the value the verification produced.
+ * <p>
+ * The passwords are not kept: an entry holds a random salt and the PBKDF2 hash of the password with that salt, so
+ * that a heap dump does not reveal them and brute forcing them stays expensive. There is one entry per username,
+ * storing the credentials of a user again (after a password change) replaces the previous ones. An entry expires
+ * timeToLive seconds after it was stored, the least recently used ones are evicted beyond maxSize entries.
+ * </p>
+ *
+ * @param <V> the result of the verification, returned as long as the same password is given
+ */
+final class CredentialsCache<V> {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 160;
+
+    private final Cache<String, Entry<V>> cache;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param iterations number of iterations of the hash, the cost of every verification done by the cache
+     */
+    CredentialsCache(long maxSize, long timeToLive, int iterations) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                .<String, Entry<V>> build();
+        this.iterations = iterations;
+    }
+
+    /**
+     * @return the value stored with the same username and password, null if there is none
+     */
+    V get(String username, String password) {
+        Entry<V> entry = cache.getIfPresent(username);
+        // a wrong password, or a new one not verified yet, is a miss
+        if (entry == null || !MessageDigest.isEqual(entry.hash, hash(password, entry.salt))) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Stores verified credentials, replacing the previous ones of the user.
+     */
+    void put(String username, String password, V value) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        cache.put(username, new Entry<V>(salt, hash(password, salt), value));
+    }
+
+    void invalidate(String username) {
+        cache.invalidate(username);
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    private byte[] hash(String password, byte[] salt) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static final class Entry<V> {
+        final byte[] salt;
+        final byte[] hash;
+        final V value;
+
+        Entry(byte[] salt, byte[] hash, V value) {
+            this.salt = salt;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+}
@@ -21,11 +21,13 @@ import org.springframework.ldap.core.DistinguishedName;
 import org.springframework.ldap.core.support.BaseLdapPathContextSource;
 import org.springframework.ldap.support.LdapUtils;
 import org.springframework.security.authentication.AccountExpiredException;
+import org.springframework.security.authentication.AccountStatusException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.CredentialsExpiredException;
 import org.springframework.security.authentication.DisabledException;
 import org.springframework.security.authentication.LockedException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.ldap.SpringSecurityLdapTemplate;
@@ -58,6 +60,20 @@ import org.springframework.util.StringUtils;
  * Last resort seemed to be this copy-paste, which is obviously not the better
  * approach.
  *
+ * Scripted clients send their HTTP Basic credentials with every request, so
+ * the verified credentials are cached for cacheTimeToLive seconds (see
+ * {@link CredentialsCache}): a request with the same username and password
+ * is then authenticated without binding to the directories nor loading the
+ * authorities again. Failed attempts are not cached, and verifying a new
+ * password of a user replaces the cached one.
+ *
+ * Nothing tells the proxy when a password is changed in the directories: the
+ * old password of a user keeps being accepted until its entry expires, and a
+ * disabled account or a revoked role is only seen after the same delay. The
+ * cacheTimeToLive is thus kept short, 30 seconds by default, which still
+ * spares most of the binds of the clients sending several requests per
+ * second. Set it to 0 where this window is not acceptable.
+ *
  * @author pmauduit
  *
  */
@@ -85,6 +101,11 @@ public class CustomAuthenticationProvider extends AbstractLdapAuthenticationProv
     private ContextSource ldapContextSource;
     private String ldapUserDnPattern;
 
+    private long cacheMaxSize = 10000;
+    private long cacheTimeToLive = 30;
+    private int hashIterations = 1000;
+    private volatile CredentialsCache<Authentication> credentialsCache;
+
     // Only used to allow tests to substitute a mock LdapContext
     ContextFactory contextFactory = new ContextFactory();
 
@@ -106,6 +127,96 @@ public class CustomAuthenticationProvider extends AbstractLdapAuthenticationProv
         ldapUserDnPattern = _ldapUserDnPattern;
     }
 
+    @Override
+    public Authentication authenticate(Authentication authentication) {
+        CredentialsCache<Authentication> cache = getCredentialsCache();
+        if (cache == null || !(authentication instanceof UsernamePasswordAuthenticationToken)
+                || !(authentication.getCredentials() instanceof String)) {
+            return super.authenticate(authentication);
+        }
+        String username = authentication.getName();
+        String password = (String) authentication.getCredentials();
+        if (!StringUtils.hasLength(username) || !StringUtils.hasLength(password)) {
+            return super.authenticate(authentication);
+        }
+        Authentication verified = cache.get(username, password);
+        if (verified != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Credentials of " + username + " found in the cache");
+            }
+            UsernamePasswordAuthenticationToken result = new UsernamePasswordAuthenticationToken(
+                    verified.getPrincipal(), password, verified.getAuthorities());
+            result.setDetails(authentication.getDetails());
+            return result;
+        }
+        // a failed attempt throws an exception and is not cached
+        Authentication result;
+        try {
+            result = super.authenticate(authentication);
+        } catch (AccountStatusException e) {
+            // the account was disabled, locked or expired since its credentials were cached
+            cache.invalidate(username);
+            throw e;
+        }
+        cache.put(username, password,
+                new UsernamePasswordAuthenticationToken(result.getPrincipal(), null, result.getAuthorities()));
+        return result;
+    }
+
+    private CredentialsCache<Authentication> getCredentialsCache() {
+        if (cacheTimeToLive <= 0) {
+            return null;
+        }
+        CredentialsCache<Authentication> result = this.credentialsCache;
+        if (result == null) {
+            synchronized (this) {
+                result = this.credentialsCache;
+                if (result == null) {
+                    result = new CredentialsCache<Authentication>(cacheMaxSize, cacheTimeToLive, hashIterations);
+                    this.credentialsCache = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of authentications served by the credentials cache
+     */
+    public long getCacheHitCount() {
+        CredentialsCache<Authentication> cache = getCredentialsCache();
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    /**
+     * @return number of authentications which had to bind to the directories
+     */
+    public long getCacheMissCount() {
+        CredentialsCache<Authentication> cache = getCredentialsCache();
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    /**
+     * Drops the cached credentials of a user, for the code changing its password or disabling its account in the
+     * same application; the changes made elsewhere are only seen once the entry expires.
+     */
+    public void invalidate(String username) {
+        CredentialsCache<Authentication> cache = getCredentialsCache();
+        if (cache != null) {
+            cache.invalidate(username);
+        }
+    }
+
+    /**
+     * Drops all the cached credentials.
+     */
+    public void invalidateAll() {
+        CredentialsCache<Authentication> cache = getCredentialsCache();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
     @Override
     protected DirContextOperations doAuthentication(UsernamePasswordAuthenticationToken auth) {
         String username = auth.getName();
@@ -382,6 +493,32 @@ public class CustomAuthenticationProvider extends AbstractLdapAuthenticationProv
         this.convertSubErrorCodesToExceptions = convertSubErrorCodesToExceptions;
     }
 
+    /**
+     * @param cacheMaxSize max number of users whose credentials are cached
+     */
+    public void setCacheMaxSize(long cacheMaxSize) {
+        this.cacheMaxSize = cacheMaxSize;
+        this.credentialsCache = null;
+    }
+
+    /**
+     * @param cacheTimeToLive seconds during which verified credentials are accepted without binding again, and an
+     *                        old password still accepted after a change in the directories, 0 to disable the
+     *                        cache
+     */
+    public void setCacheTimeToLive(long cacheTimeToLive) {
+        this.cacheTimeToLive = cacheTimeToLive;
+        this.credentialsCache = null;
+    }
+
+    /**
+     * @param hashIterations iterations of the PBKDF2 hash of the cached passwords
+     */
+    public void setHashIterations(int hashIterations) {
+        this.hashIterations = hashIterations;
+        this.credentialsCache = null;
+    }
+
     static class ContextFactory {
         DirContext createContext(Hashtable<?, ?> env) throws NamingException {
             return new InitialLdapContext(env, null);
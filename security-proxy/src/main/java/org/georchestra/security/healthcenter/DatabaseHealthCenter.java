@@ -3,13 +3,22 @@ package org.georchestra.security.healthcenter;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 
 /**
  * Checks the database connection health.
+ * <p>
+ * The connections can be sampled by a background thread (see {@link #startSampling(int, long)}), the last
+ * result being available through {@link #getSnapshot()} without any database access.
+ * </p>
  * 
  * @author Mauricio Pazos
  *
@@ -27,6 +36,13 @@ public class DatabaseHealthCenter {
 	private String clientName;
 
 	private String database;
+
+	/** once unhealthy, the database is healthy again when the connections go under this ratio of the max */
+	private double recoveryRatio = 0.7;
+
+	private volatile HealthSnapshot snapshot = new HealthSnapshot(0, 0, true, 0);
+
+	private ScheduledExecutorService sampler;
     
 	private DatabaseHealthCenter(){
 		// singleton
@@ -88,6 +104,87 @@ public class DatabaseHealthCenter {
 		
 		
 	}
+
+	/**
+	 * Starts a thread which samples the database connections every interval milliseconds.
+	 * 
+	 * @param maxConnections max connections allowed
+	 * @param interval milliseconds between two samples
+	 */
+	public synchronized void startSampling(final int maxConnections, final long interval) {
+		if(maxConnections <= 0 ){
+			throw new IllegalArgumentException("maxDatabaseConnection must be greater than 0 ");
+		}
+		stopSampling();
+		this.sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("security-proxy-health-sampler").setDaemon(true).build());
+		this.sampler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sample(maxConnections);
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopSampling() {
+		if (this.sampler != null) {
+			this.sampler.shutdownNow();
+			this.sampler = null;
+		}
+	}
+
+	/**
+	 * Samples the live connections and publishes a new snapshot.
+	 */
+	void sample(final int maxConnections) {
+		try {
+			List<Map<String,Object>> listConnections = CheckPostgresConnections.findConnections(this.database,  this.user, this.password, this.clientName);
+			sample(maxConnections, listConnections);
+		} catch (IOException e) {
+			LOGGER.error("Unable to sample the database connections", e);
+		} catch (RuntimeException e) {
+			LOGGER.error("Unable to sample the database connections", e);
+		}
+	}
+
+	/**
+	 * Publishes the snapshot of the given live connections. The reports are only logged when the
+	 * health changes: the database becomes unhealthy at 80% of the max connections and healthy again under
+	 * recoveryRatio of the max, so that the status does not flip around the threshold.
+	 */
+	void sample(final int maxConnections, final List<Map<String,Object>> listConnections) {
+		final int liveConnections = listConnections.size();
+		final long healthLimit = Math.round( maxConnections * 0.8 );
+		final long recoveryLimit = Math.round( maxConnections * this.recoveryRatio );
+
+		HealthSnapshot previous = this.snapshot;
+		boolean healthy = previous.isHealthy() ? liveConnections < healthLimit : liveConnections < recoveryLimit;
+
+		if (!healthy && liveConnections >= maxConnections && previous.getLiveConnections() < maxConnections) {
+			unstableReport(liveConnections, healthLimit, maxConnections, listConnections);
+		} else if (!healthy && previous.isHealthy()) {
+			warningReport(liveConnections, healthLimit, maxConnections, listConnections);
+		} else if (healthy && !previous.isHealthy()) {
+			LOGGER.info("Database connections back to normal. " + connectionStatusMessage(liveConnections, maxConnections));
+		}
+		this.snapshot = new HealthSnapshot(liveConnections, maxConnections, healthy, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the result of the last sample
+	 */
+	public HealthSnapshot getSnapshot() {
+		return this.snapshot;
+	}
+
+	public boolean isHealthy() {
+		return this.snapshot.isHealthy();
+	}
+
+	public void setRecoveryRatio(double recoveryRatio) {
+		this.recoveryRatio = recoveryRatio;
+	}
+
 	/**
 	 * The system has open all available connection. 
 	 * The information of live connection will be log in order to provide a report
@@ -140,4 +237,39 @@ public class DatabaseHealthCenter {
 		return msg.toString();
 	}
 
+	/**
+	 * Immutable result of a sample of the database connections.
+	 */
+	public static final class HealthSnapshot {
+		private final int liveConnections;
+		private final int maxConnections;
+		private final boolean healthy;
+		private final long timestamp;
+
+		HealthSnapshot(int liveConnections, int maxConnections, boolean healthy, long timestamp) {
+			this.liveConnections = liveConnections;
+			this.maxConnections = maxConnections;
+			this.healthy = healthy;
+			this.timestamp = timestamp;
+		}
+
+		public int getLiveConnections() {
+			return liveConnections;
+		}
+
+		public int getMaxConnections() {
+			return maxConnections;
+		}
+
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		/**
+		 * @return time of the sample in milliseconds, 0 if no sample has been taken yet
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
 }
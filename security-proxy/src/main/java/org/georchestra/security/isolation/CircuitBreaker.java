@@ -0,0 +1,164 @@
+package org.georchestra.security.isolation;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Circuit breaker of a target, over the outcomes of its last windowSize calls.
+ * <p>
+ * While closed every call is let through. When at least minimumCalls calls have been recorded and the rate of the
+ * failed or of the slow ones reaches its threshold, the breaker opens: the calls are refused during openDuration,
+ * then a single probe call is let through (half open). The breaker closes again if the probe succeeds in time and
+ * opens for another openDuration otherwise.
+ * </p>
+ */
+final class CircuitBreaker {
+    protected static final Log logger = LogFactory.getLog(CircuitBreaker.class.getPackage().getName());
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+
+    private final boolean[] failures;
+    private final boolean[] slows;
+    private int next;
+    private int calls;
+    private int failureCount;
+    private int slowCount;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+
+    CircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold,
+            double slowCallRateThreshold, long slowCallNanos, long openNanos) {
+        this.name = name;
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, windowSize));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = slowCallNanos;
+        this.openNanos = openNanos;
+        this.failures = new boolean[windowSize];
+        this.slows = new boolean[windowSize];
+    }
+
+    /**
+     * @return {@link Boolean#FALSE} if the call may proceed, {@link Boolean#TRUE} if it may proceed as the probe of
+     *         the half open breaker, null if it is refused
+     */
+    synchronized Boolean tryAcquire(long now) {
+        switch (state) {
+        case CLOSED:
+            return Boolean.FALSE;
+        case OPEN:
+            if (now - openedAt < openNanos) {
+                return null;
+            }
+            state = State.HALF_OPEN;
+            probing = true;
+            if (logger.isInfoEnabled()) {
+                logger.info("Circuit of " + name + " half open, probing the target");
+            }
+            return Boolean.TRUE;
+        default:
+            if (probing) {
+                return null;
+            }
+            probing = true;
+            return Boolean.TRUE;
+        }
+    }
+
+    /**
+     * Records the outcome of a call let through by {@link #tryAcquire(long)}.
+     */
+    synchronized void record(boolean probe, boolean failure, long durationNanos, long now) {
+        boolean slow = durationNanos >= slowCallNanos;
+        if (probe) {
+            probing = false;
+            if (failure || slow) {
+                open(now, failure ? "probe failed" : "probe too slow");
+            } else {
+                close();
+            }
+        } else if (state == State.CLOSED) {
+            add(failure, slow);
+            if (calls >= minimumCalls) {
+                if (failureCount >= failureRateThreshold * calls) {
+                    open(now, failureCount + " failures in the last " + calls + " calls");
+                } else if (slowCount >= slowCallRateThreshold * calls) {
+                    open(now, slowCount + " slow calls in the last " + calls + " calls");
+                }
+            }
+        }
+        // else: a call started before the breaker opened
+    }
+
+    /**
+     * Releases a call let through by {@link #tryAcquire(long)} without any outcome.
+     */
+    synchronized void cancel(boolean probe) {
+        if (probe) {
+            probing = false;
+        }
+    }
+
+    /**
+     * @return the nanoseconds before a call may be let through again, 0 if it may already be
+     */
+    synchronized long getRemainingOpenNanos(long now) {
+        return state == State.OPEN ? Math.max(0, openNanos - (now - openedAt)) : 0;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private void add(boolean failure, boolean slow) {
+        if (calls == failures.length) {
+            if (failures[next]) {
+                failureCount--;
+            }
+            if (slows[next]) {
+                slowCount--;
+            }
+        } else {
+            calls++;
+        }
+        failures[next] = failure;
+        slows[next] = slow;
+        if (failure) {
+            failureCount++;
+        }
+        if (slow) {
+            slowCount++;
+        }
+        next = (next + 1) % failures.length;
+    }
+
+    private void open(long now, String reason) {
+        state = State.OPEN;
+        openedAt = now;
+        if (logger.isWarnEnabled()) {
+            logger.warn("Circuit of " + name + " open for " + openNanos / 1000000 + " ms: " + reason);
+        }
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        calls = 0;
+        next = 0;
+        failureCount = 0;
+        slowCount = 0;
+        if (logger.isInfoEnabled()) {
+            logger.info("Circuit of " + name + " closed");
+        }
+    }
+}
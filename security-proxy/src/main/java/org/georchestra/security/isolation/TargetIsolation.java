@@ -0,0 +1,214 @@
+package org.georchestra.security.isolation;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Isolates the targets of the proxy from each other, so that a hanging backend cannot hold all the threads of the
+ * container.
+ * <p>
+ * Each target has a bulkhead, a max number of requests forwarded to it at the same time, and a
+ * {@link CircuitBreaker} opened by too many failed (an I/O error or a 5xx status) or slow (response headers not
+ * received within slowCallDuration) requests. A request refused by either gets a {@link TargetUnavailableException}
+ * at once instead of waiting for the backend.
+ * </p>
+ */
+public class TargetIsolation {
+    protected static final Log logger = LogFactory.getLog(TargetIsolation.class.getPackage().getName());
+
+    private int maxConcurrentRequests = 50;
+    private Map<String, Integer> maxConcurrentRequestsPerTarget = Collections.emptyMap();
+    private int windowSize = 20;
+    private int minimumCalls = 10;
+    private double failureRateThreshold = 0.5;
+    private double slowCallRateThreshold = 0.8;
+    private long slowCallDuration = 30000;
+    private long openDuration = 30000;
+    private int retryAfter = 10;
+
+    private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<String, Target>();
+
+    /**
+     * @param target key of the target
+     * @return the permit to forward a request to the target, to be released once the response has been copied
+     * @throws TargetUnavailableException if the circuit of the target is open or its bulkhead is full
+     */
+    public Permit acquire(String target) throws TargetUnavailableException {
+        Target isolated = getTarget(target);
+        long now = System.nanoTime();
+        Boolean probe = isolated.breaker.tryAcquire(now);
+        if (probe == null) {
+            long remaining = isolated.breaker.getRemainingOpenNanos(now);
+            throw new TargetUnavailableException(target + " is unavailable",
+                    (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + TimeUnit.SECONDS.toNanos(1) - 1)));
+        }
+        if (!isolated.bulkhead.tryAcquire()) {
+            isolated.breaker.cancel(probe);
+            if (logger.isDebugEnabled()) {
+                logger.debug(isolated.maxConcurrentRequests + " requests already forwarded to " + target);
+            }
+            throw new TargetUnavailableException("Too many requests forwarded to " + target, retryAfter);
+        }
+        return new Permit(isolated, probe, now);
+    }
+
+    private Target getTarget(String name) {
+        Target target = targets.get(name);
+        if (target == null) {
+            Integer max = maxConcurrentRequestsPerTarget.get(name);
+            CircuitBreaker breaker = new CircuitBreaker(name, windowSize, minimumCalls, failureRateThreshold,
+                    slowCallRateThreshold, TimeUnit.MILLISECONDS.toNanos(slowCallDuration),
+                    TimeUnit.MILLISECONDS.toNanos(openDuration));
+            target = new Target(max == null ? maxConcurrentRequests : max, breaker);
+            Target previous = targets.putIfAbsent(name, target);
+            if (previous != null) {
+                target = previous;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * @return the state of the circuit of the target, CLOSED, OPEN or HALF_OPEN
+     */
+    public String getCircuitState(String target) {
+        return getTarget(target).breaker.getState().name();
+    }
+
+    /**
+     * @return number of requests being forwarded to the target
+     */
+    public int getConcurrentRequests(String target) {
+        Target isolated = getTarget(target);
+        return isolated.maxConcurrentRequests - isolated.bulkhead.availablePermits();
+    }
+
+    private static final class Target {
+        final int maxConcurrentRequests;
+        final Semaphore bulkhead;
+        final CircuitBreaker breaker;
+
+        Target(int maxConcurrentRequests, CircuitBreaker breaker) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            this.bulkhead = new Semaphore(maxConcurrentRequests);
+            this.breaker = breaker;
+        }
+    }
+
+    /**
+     * A request being forwarded to a target. Its outcome is recorded by {@link #responded(int)} or
+     * {@link #failed()}, and {@link #release()} must be called once it is done.
+     */
+    public static final class Permit {
+        private final Target target;
+        private final boolean probe;
+        private final long start;
+        private boolean recorded;
+        private boolean released;
+
+        private Permit(Target target, boolean probe, long start) {
+            this.target = target;
+            this.probe = probe;
+            this.start = start;
+        }
+
+        /**
+         * @param statusCode status of the response of the backend, once its headers have been received
+         */
+        public void responded(int statusCode) {
+            record(statusCode >= 500);
+        }
+
+        /**
+         * The backend could not be reached or did not answer.
+         */
+        public void failed() {
+            record(true);
+        }
+
+        private void record(boolean failure) {
+            if (!recorded) {
+                recorded = true;
+                long now = System.nanoTime();
+                target.breaker.record(probe, failure, now - start, now);
+            }
+        }
+
+        public void release() {
+            if (!released) {
+                released = true;
+                if (!recorded) {
+                    target.breaker.cancel(probe);
+                }
+                target.bulkhead.release();
+            }
+        }
+    }
+
+    /**
+     * @param maxConcurrentRequests default max number of requests forwarded to a target at the same time
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * @param maxConcurrentRequestsPerTarget overrides maxConcurrentRequests for some targets, by key
+     */
+    public void setMaxConcurrentRequestsPerTarget(Map<String, Integer> maxConcurrentRequestsPerTarget) {
+        this.maxConcurrentRequestsPerTarget = maxConcurrentRequestsPerTarget;
+    }
+
+    /**
+     * @param windowSize number of the last requests to a target the rates are computed on
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @param minimumCalls number of requests to a target recorded before its circuit may open
+     */
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    public void setFailureRateThreshold(double failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * @param slowCallRateThreshold rate of slow requests opening the circuit, over 1 to only consider the failures
+     */
+    public void setSlowCallRateThreshold(double slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    /**
+     * @param slowCallDuration milliseconds after which a request is slow
+     */
+    public void setSlowCallDuration(long slowCallDuration) {
+        this.slowCallDuration = slowCallDuration;
+    }
+
+    /**
+     * @param openDuration milliseconds the requests are refused once the circuit is open
+     */
+    public void setOpenDuration(long openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @param retryAfter seconds sent in the Retry-After header when the bulkhead of a target is full
+     */
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+}
@@ -0,0 +1,22 @@
+package org.georchestra.security.isolation;
+
+/**
+ * Thrown when a request is refused because its target is isolated, see {@link TargetIsolation}.
+ */
+public class TargetUnavailableException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfter;
+
+    public TargetUnavailableException(String message, int retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return seconds after which the request may be sent again
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,180 @@
+package org.georchestra.security.lanes;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.georchestra.security.metrics.LatencyHistogram;
+
+/**
+ * A class of requests, selected by OGC service, operation and target, with its own limit of requests forwarded at
+ * the same time and its own queue. An empty list of services, operations or targets matches any of them.
+ */
+public class Lane {
+    private String name;
+    private Set<String> services = Collections.emptySet();
+    private Set<String> operations = Collections.emptySet();
+    private Set<String> targets = Collections.emptySet();
+    private int maxConcurrentRequests = 50;
+    private int maxQueueSize = 100;
+    private long maxQueueTime = 5000;
+
+    private volatile Semaphore permits = new Semaphore(maxConcurrentRequests, true);
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong queueFull = new AtomicLong();
+    private final AtomicLong queueTimeout = new AtomicLong();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    /**
+     * @param service the lower case OGC service, null if unknown
+     * @param operation the lower case OGC operation, null if unknown
+     */
+    boolean matches(String service, String operation, String target) {
+        return matches(services, service) && matches(operations, operation) && matches(targets, target);
+    }
+
+    private static boolean matches(Set<String> values, String value) {
+        return values.isEmpty() || (value != null && values.contains(value));
+    }
+
+    /**
+     * Takes a permit, waiting in the queue if there is none.
+     *
+     * @return the nanoseconds waited
+     * @throws LaneUnavailableException if the queue is full or no permit was released within maxQueueTime
+     */
+    long acquire(int retryAfter) throws LaneUnavailableException {
+        Semaphore semaphore = permits;
+        // the queued requests go first
+        if (queued.get() == 0 && semaphore.tryAcquire()) {
+            queueWait.record(0);
+            return 0;
+        }
+        if (queued.incrementAndGet() > maxQueueSize) {
+            queued.decrementAndGet();
+            queueFull.incrementAndGet();
+            throw new LaneUnavailableException("Too many requests queued in the " + name + " lane", retryAfter);
+        }
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            acquired = semaphore.tryAcquire(maxQueueTime, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+        }
+        long waited = System.nanoTime() - start;
+        queueWait.record(waited);
+        if (!acquired) {
+            queueTimeout.incrementAndGet();
+            throw new LaneUnavailableException("No request of the " + name + " lane completed within "
+                    + maxQueueTime + " ms", retryAfter);
+        }
+        return waited;
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of requests of the lane being forwarded
+     */
+    public int getActiveRequests() {
+        return maxConcurrentRequests - permits.availablePermits();
+    }
+
+    /**
+     * @return number of requests waiting for a permit
+     */
+    public int getQueuedRequests() {
+        return queued.get();
+    }
+
+    /**
+     * @return number of requests refused because the queue was full
+     */
+    public long getQueueFullCount() {
+        return queueFull.get();
+    }
+
+    /**
+     * @return number of requests refused after waiting maxQueueTime
+     */
+    public long getQueueTimeoutCount() {
+        return queueTimeout.get();
+    }
+
+    /**
+     * @return the time spent in the queue by the requests, before being forwarded or refused
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param services OGC services (WMS, WFS...), case insensitive
+     */
+    public void setServices(List<String> services) {
+        this.services = lowerCase(services);
+    }
+
+    /**
+     * @param operations OGC operations (GetMap, GetFeature...), case insensitive
+     */
+    public void setOperations(List<String> operations) {
+        this.operations = lowerCase(operations);
+    }
+
+    /**
+     * @param targets keys of the targets
+     */
+    public void setTargets(List<String> targets) {
+        this.targets = new HashSet<String>(targets);
+    }
+
+    private static Set<String> lowerCase(List<String> values) {
+        Set<String> set = new HashSet<String>();
+        for (String value : values) {
+            set.add(value.trim().toLowerCase(Locale.ENGLISH));
+        }
+        return set;
+    }
+
+    /**
+     * Must be set before the lane is used.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.permits = new Semaphore(maxConcurrentRequests, true);
+    }
+
+    /**
+     * @param maxQueueSize max number of requests waiting for a permit, 0 to refuse them at once
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * @param maxQueueTime milliseconds a request waits for a permit before being refused
+     */
+    public void setMaxQueueTime(long maxQueueTime) {
+        this.maxQueueTime = maxQueueTime;
+    }
+}
@@ -0,0 +1,23 @@
+package org.georchestra.security.lanes;
+
+/**
+ * Thrown when a request is refused because the queue of its lane is full or it waited too long in it, see
+ * {@link PriorityLanes}.
+ */
+public class LaneUnavailableException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfter;
+
+    public LaneUnavailableException(String message, int retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return seconds after which the request may be sent again
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,220 @@
+package org.georchestra.security.lanes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Separates the interactive requests (WMS GetMap, tiles...) from the bulk ones (WFS GetFeature, WCS GetCoverage,
+ * WPS Execute...), so that the bulk downloads cannot take all the threads of the container.
+ * <p>
+ * A request goes to the first of the lanes matching its OGC service, operation and target. A lane forwards at most
+ * maxConcurrentRequests requests at the same time, the next ones wait in its queue: a request is refused with a
+ * {@link LaneUnavailableException} if maxQueueSize requests are already waiting, or if it waited maxQueueTime
+ * milliseconds. The requests matching no lane are not limited. The time spent in the queue is measured by lane,
+ * apart from the time spent by the backends.
+ * </p>
+ * <p>
+ * The service and the operation are read from the SERVICE and REQUEST parameters of the query string of the
+ * forwarded url, the service from the last segment of its path (as in /geoserver/wfs) if there is no SERVICE
+ * parameter. The names and the values are URL-decoded.
+ * </p>
+ * <p>
+ * The bodies are not classified: the body of a request is streamed to the backend, and the SERVICE and REQUEST
+ * parameters of a form POST or the operation of an XML POST (a wfs:GetFeature document...) are not read. A POST
+ * request without these parameters in its query string only matches the lanes which do not list operations, for
+ * instance a lane of the wfs and wcs services whose path names the service.
+ * </p>
+ */
+public class PriorityLanes {
+    protected static final Log logger = LogFactory.getLog(PriorityLanes.class.getPackage().getName());
+
+    private static final String[] SERVICES = { "wms", "wmts", "wfs", "wcs", "wps", "csw", "ows" };
+
+    private List<Lane> lanes = Collections.emptyList();
+    private int retryAfter = 10;
+
+    /**
+     * @param url the url the request is forwarded to
+     * @param target the target of the request
+     * @return the ticket of the request, to be released once the response has been copied, null if the request
+     *         matches no lane
+     * @throws LaneUnavailableException if the request could not get a permit of its lane
+     */
+    public Ticket acquire(String url, String target) throws LaneUnavailableException {
+        Lane lane = classify(url, target);
+        if (lane == null) {
+            return null;
+        }
+        long waited = lane.acquire(retryAfter);
+        if (waited > 0 && logger.isDebugEnabled()) {
+            logger.debug("Request queued " + waited / 1000000 + " ms in the " + lane.getName() + " lane: " + url);
+        }
+        return new Ticket(lane, waited);
+    }
+
+    /**
+     * @return the lane of the request, null if it matches none
+     */
+    Lane classify(String url, String target) {
+        if (lanes.isEmpty()) {
+            return null;
+        }
+        String service = parameter(url, "service");
+        if (service == null) {
+            service = serviceFromPath(url);
+        }
+        String operation = parameter(url, "request");
+        service = service == null ? null : service.toLowerCase(Locale.ENGLISH);
+        operation = operation == null ? null : operation.toLowerCase(Locale.ENGLISH);
+        for (Lane lane : lanes) {
+            if (lane.matches(service, operation, target)) {
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name name of the parameter, case insensitive
+     * @return the URL-decoded value of the first parameter of the query string of url whose URL-decoded name is
+     *         name, null if there is none or if its value is empty
+     */
+    public static String parameter(String url, String name) {
+        int start = url.indexOf('?');
+        if (start < 0) {
+            return null;
+        }
+        int length = url.length();
+        start++;
+        while (start < length) {
+            int end = url.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+            int equals = url.indexOf('=', start);
+            if (equals > start && equals < end - 1 && decode(url, start, equals).equalsIgnoreCase(name)) {
+                return decode(url, equals + 1, end);
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * @return the URL-decoded last segment of the path of url if it is the name of an OGC service
+     */
+    static String serviceFromPath(String url) {
+        int end = url.indexOf('?');
+        if (end < 0) {
+            end = url.length();
+        }
+        int start = url.lastIndexOf('/', end - 1) + 1;
+        String segment = decode(url, start, end);
+        for (String service : SERVICES) {
+            if (segment.equalsIgnoreCase(service)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the application/x-www-form-urlencoded characters between start and end, as UTF-8. Unlike
+     * URLDecoder, a malformed escape sequence is kept as is instead of failing.
+     */
+    static String decode(String s, int start, int end) {
+        int i = start;
+        while (i < end && s.charAt(i) != '%' && s.charAt(i) != '+') {
+            i++;
+        }
+        if (i == end) {
+            return s.substring(start, end);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+        for (i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int high = i + 2 < end && c == '%' ? Character.digit(s.charAt(i + 1), 16) : -1;
+            int low = high < 0 ? -1 : Character.digit(s.charAt(i + 2), 16);
+            if (low >= 0) {
+                bytes.write(high << 4 | low);
+                i += 2;
+            } else if (c == '+') {
+                bytes.write(' ');
+            } else if (c < 0x80) {
+                bytes.write(c);
+            } else {
+                byte[] encoded = utf8(String.valueOf(c));
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+        try {
+            return bytes.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public List<Lane> getLanes() {
+        return lanes;
+    }
+
+    /**
+     * A request admitted in a lane, {@link #release()} must be called once it is done.
+     */
+    public static final class Ticket {
+        private final Lane lane;
+        private final long queueTime;
+        private boolean released;
+
+        private Ticket(Lane lane, long queueTime) {
+            this.lane = lane;
+            this.queueTime = queueTime;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        /**
+         * @return nanoseconds spent in the queue
+         */
+        public long getQueueTime() {
+            return queueTime;
+        }
+
+        public void release() {
+            if (!released) {
+                released = true;
+                lane.release();
+            }
+        }
+    }
+
+    /**
+     * @param lanes the lanes, a request going to the first one it matches
+     */
+    public void setLanes(List<Lane> lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * @param retryAfter seconds sent in the Retry-After header of the refused requests
+     */
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+}
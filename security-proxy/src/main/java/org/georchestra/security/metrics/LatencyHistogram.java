@@ -0,0 +1,93 @@
+package org.georchestra.security.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in fixed buckets, as a Prometheus histogram.
+ * <p>
+ * Recording a duration is lock free. The percentiles are estimated from the buckets: the upper bound of the
+ * bucket containing the percentile is returned.
+ * </p>
+ */
+public final class LatencyHistogram {
+    /**
+     * upper bounds of the buckets, in milliseconds
+     */
+    static final long[] BOUNDS = { 1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        sumNanos.addAndGet(nanos);
+        count.incrementAndGet();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+
+    /**
+     * @return the mean duration in milliseconds, 0 if nothing has been recorded
+     */
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : sumNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return the upper bound in milliseconds of the bucket of the quantile, 0 if nothing has been recorded and
+     * Long.MAX_VALUE if it is over the last bound
+     */
+    public long getPercentileMillis(double quantile) {
+        return percentileMillis(getBucketCounts(), quantile);
+    }
+
+    /**
+     * @param counts the number of durations of each bucket
+     * @see #getPercentileMillis(double)
+     */
+    static long percentileMillis(long[] counts, double quantile) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long cumulated = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            cumulated += counts[i];
+            if (cumulated >= rank) {
+                return BOUNDS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of durations of each bucket, the last one being over the last bound
+     */
+    long[] getBucketCounts() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+}
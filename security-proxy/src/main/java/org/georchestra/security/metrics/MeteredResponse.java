@@ -0,0 +1,90 @@
+package org.georchestra.security.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Keeps the status of the response and counts the bytes of its body, which the servlet api does not expose.
+ */
+final class MeteredResponse extends HttpServletResponseWrapper {
+    private int status = SC_OK;
+    private long bytes;
+    private ServletOutputStream outputStream;
+
+    MeteredResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        this.status = sc;
+        super.setStatus(sc);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void setStatus(int sc, String sm) {
+        this.status = sc;
+        super.setStatus(sc, sm);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        this.status = sc;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        this.status = sc;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        this.status = SC_MOVED_TEMPORARILY;
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            final ServletOutputStream out = super.getOutputStream();
+            outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    bytes++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    bytes += len;
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+        return outputStream;
+    }
+}
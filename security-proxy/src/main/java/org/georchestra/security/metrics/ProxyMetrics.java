@@ -0,0 +1,354 @@
+package org.georchestra.security.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.georchestra.security.PoolingHttpClientFactory;
+import org.georchestra.security.lanes.Lane;
+import org.georchestra.security.lanes.PriorityLanes;
+import org.georchestra.security.ratelimit.RateLimiter;
+
+/**
+ * Per target instrumentation of the requests forwarded by the proxy: counts by status class, connect time,
+ * time to first byte and total time histograms, bytes sent to the backend and to the client. The connection pool
+ * and the threads of the JVM are exposed as gauges.
+ * <p>
+ * Everything is written in the Prometheus text format by {@link #writePrometheus(Writer)} and registered as MBeans
+ * in the platform MBean server under the {@link #DOMAIN} domain.
+ * </p>
+ * <p>
+ * The number of targets is bounded by maxTargets (the hosts requested through the url parameter being targets
+ * too), the requests to the targets over that number being counted as the "other" target.
+ * </p>
+ */
+public class ProxyMetrics implements ProxyMetricsMBean {
+    protected static final Log logger = LogFactory.getLog(ProxyMetrics.class.getPackage().getName());
+
+    public static final String DOMAIN = "org.georchestra.security";
+
+    static final String UNKNOWN_TARGET = "unknown";
+    static final String OTHER_TARGET = "other";
+
+    private final ConcurrentMap<String, TargetMetrics> targets = new ConcurrentHashMap<String, TargetMetrics>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private int maxTargets = 200;
+    private boolean jmxEnabled = true;
+    private PoolingHttpClientFactory httpClientFactory;
+    private RateLimiter rateLimiter;
+    private PriorityLanes lanes;
+
+    /**
+     * Starts measuring a request.
+     */
+    public RequestSample start(HttpServletResponse response) {
+        inFlight.incrementAndGet();
+        return new RequestSample(this, response);
+    }
+
+    void requestEnded() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return the metrics of the target, created if needed
+     */
+    public TargetMetrics getTargetMetrics(String target) {
+        String name = target == null ? UNKNOWN_TARGET : target;
+        TargetMetrics metrics = targets.get(name);
+        if (metrics == null) {
+            if (targets.size() >= maxTargets) {
+                name = OTHER_TARGET;
+                metrics = targets.get(name);
+                if (metrics != null) {
+                    return metrics;
+                }
+            }
+            metrics = new TargetMetrics(name);
+            TargetMetrics previous = targets.putIfAbsent(name, metrics);
+            if (previous != null) {
+                return previous;
+            }
+            if (jmxEnabled) {
+                register(objectName(name), metrics);
+            }
+        }
+        return metrics;
+    }
+
+    public void init() {
+        if (jmxEnabled) {
+            register(objectName(null), this);
+        }
+    }
+
+    public void destroy() {
+        if (jmxEnabled) {
+            unregister(objectName(null));
+            for (String name : targets.keySet()) {
+                unregister(objectName(name));
+            }
+        }
+    }
+
+    private static ObjectName objectName(String target) {
+        try {
+            if (target == null) {
+                return new ObjectName(DOMAIN + ":type=ProxyMetrics");
+            }
+            return new ObjectName(DOMAIN + ":type=TargetMetrics,target=" + ObjectName.quote(target));
+        } catch (JMException e) {
+            throw new IllegalArgumentException(target, e);
+        }
+    }
+
+    private static void register(ObjectName name, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                // left by a previous deployment of the webapp
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+        } catch (JMException e) {
+            logger.warn("Unable to register " + name, e);
+        }
+    }
+
+    private static void unregister(ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to unregister " + name, e);
+        }
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        Map<String, TargetMetrics> sorted = new TreeMap<String, TargetMetrics>(targets);
+
+        header(out, "security_proxy_requests_total", "counter", "Requests forwarded by the proxy, by status class.");
+        for (TargetMetrics metrics : sorted.values()) {
+            for (int statusClass = 0; statusClass < 6; statusClass++) {
+                long count = metrics.getStatusCount(statusClass);
+                if (count > 0) {
+                    out.write("security_proxy_requests_total{target=\"" + escape(metrics.getName()) + "\",status=\""
+                            + (statusClass == 0 ? "unknown" : statusClass + "xx") + "\"} " + count + "\n");
+                }
+            }
+        }
+        header(out, "security_proxy_request_bytes_total", "counter", "Bytes of the requests sent to the backends.");
+        for (TargetMetrics metrics : sorted.values()) {
+            sample(out, "security_proxy_request_bytes_total", metrics.getName(), metrics.getRequestBytes());
+        }
+        header(out, "security_proxy_response_bytes_total", "counter", "Bytes of the response bodies sent to the clients.");
+        for (TargetMetrics metrics : sorted.values()) {
+            sample(out, "security_proxy_response_bytes_total", metrics.getName(), metrics.getResponseBytes());
+        }
+        header(out, "security_proxy_connect_seconds", "histogram", "Time to get a connection to the backend.");
+        for (TargetMetrics metrics : sorted.values()) {
+            histogram(out, "security_proxy_connect_seconds", "target", metrics.getName(), metrics.getConnectTime());
+        }
+        header(out, "security_proxy_time_to_first_byte_seconds", "histogram",
+                "Time until the headers of the backend response are received.");
+        for (TargetMetrics metrics : sorted.values()) {
+            histogram(out, "security_proxy_time_to_first_byte_seconds", "target", metrics.getName(),
+                    metrics.getTimeToFirstByte());
+        }
+        header(out, "security_proxy_request_duration_seconds", "histogram",
+                "Total time of the request, including the copy of the response to the client.");
+        for (TargetMetrics metrics : sorted.values()) {
+            histogram(out, "security_proxy_request_duration_seconds", "target", metrics.getName(),
+                    metrics.getTotalTime());
+        }
+
+        if (rateLimiter != null) {
+            header(out, "security_proxy_throttled_requests_total", "counter",
+                    "Requests refused by the rate limiter, by quota.");
+            for (Map.Entry<String, Long> entry : rateLimiter.getThrottledCounts().entrySet()) {
+                out.write("security_proxy_throttled_requests_total{quota=\"" + escape(entry.getKey()) + "\"} "
+                        + entry.getValue() + "\n");
+            }
+            header(out, "security_proxy_rate_limited_clients", "gauge", "Clients tracked by the rate limiter.");
+            out.write("security_proxy_rate_limited_clients " + rateLimiter.getTrackedKeys() + "\n");
+        }
+
+        if (lanes != null) {
+            writeLanes(out, lanes.getLanes());
+        }
+
+        header(out, "security_proxy_in_flight_requests", "gauge", "Requests being forwarded.");
+        out.write("security_proxy_in_flight_requests " + getInFlightRequests() + "\n");
+        header(out, "security_proxy_pool_connections", "gauge", "Connections of the pool to the backends, by state.");
+        out.write("security_proxy_pool_connections{state=\"leased\"} " + getLeasedConnections() + "\n");
+        out.write("security_proxy_pool_connections{state=\"available\"} " + getAvailableConnections() + "\n");
+        out.write("security_proxy_pool_connections{state=\"pending\"} " + getPendingConnections() + "\n");
+        header(out, "security_proxy_pool_max_connections", "gauge", "Max number of connections of the pool.");
+        out.write("security_proxy_pool_max_connections " + getMaxConnections() + "\n");
+        header(out, "security_proxy_jvm_threads", "gauge", "Threads of the JVM.");
+        out.write("security_proxy_jvm_threads{state=\"live\"} " + getThreadCount() + "\n");
+        out.write("security_proxy_jvm_threads{state=\"peak\"} " + getPeakThreadCount() + "\n");
+        out.write("security_proxy_jvm_threads{state=\"daemon\"} " + threads.getDaemonThreadCount() + "\n");
+        out.flush();
+    }
+
+    private static void histogram(Writer out, String name, String labelName, String labelValue,
+            LatencyHistogram histogram) throws IOException {
+        String label = labelName + "=\"" + escape(labelValue) + "\"";
+        long[] counts = histogram.getBucketCounts();
+        long cumulated = 0;
+        for (int i = 0; i < LatencyHistogram.BOUNDS.length; i++) {
+            cumulated += counts[i];
+            out.write(name + "_bucket{" + label + ",le=\"" + LatencyHistogram.BOUNDS[i] / 1000.0 + "\"} "
+                    + cumulated + "\n");
+        }
+        cumulated += counts[counts.length - 1];
+        out.write(name + "_bucket{" + label + ",le=\"+Inf\"} " + cumulated + "\n");
+        out.write(name + "_sum{" + label + "} " + histogram.getSumNanos() / 1e9 + "\n");
+        out.write(name + "_count{" + label + "} " + cumulated + "\n");
+    }
+
+    private static void writeLanes(Writer out, List<Lane> lanes) throws IOException {
+        header(out, "security_proxy_lane_queue_seconds", "histogram",
+                "Time spent by the requests in the queue of their lane, before being forwarded or refused.");
+        for (Lane lane : lanes) {
+            histogram(out, "security_proxy_lane_queue_seconds", "lane", lane.getName(), lane.getQueueWait());
+        }
+        header(out, "security_proxy_lane_requests", "gauge", "Requests of the lanes, by state.");
+        for (Lane lane : lanes) {
+            String label = escape(lane.getName());
+            out.write("security_proxy_lane_requests{lane=\"" + label + "\",state=\"active\"} "
+                    + lane.getActiveRequests() + "\n");
+            out.write("security_proxy_lane_requests{lane=\"" + label + "\",state=\"queued\"} "
+                    + lane.getQueuedRequests() + "\n");
+        }
+        header(out, "security_proxy_lane_rejected_total", "counter", "Requests refused by the lanes, by reason.");
+        for (Lane lane : lanes) {
+            String label = escape(lane.getName());
+            out.write("security_proxy_lane_rejected_total{lane=\"" + label + "\",reason=\"queue_full\"} "
+                    + lane.getQueueFullCount() + "\n");
+            out.write("security_proxy_lane_rejected_total{lane=\"" + label + "\",reason=\"queue_timeout\"} "
+                    + lane.getQueueTimeoutCount() + "\n");
+        }
+    }
+
+    private static void header(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(Writer out, String name, String target, long value) throws IOException {
+        out.write(name + "{target=\"" + escape(target) + "\"} " + value + "\n");
+    }
+
+    static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private PoolStats getPoolStats() {
+        if (httpClientFactory == null) {
+            return null;
+        }
+        PoolingClientConnectionManager connectionManager = httpClientFactory.getConnectionManager();
+        return connectionManager == null ? null : connectionManager.getTotalStats();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        PoolStats stats = getPoolStats();
+        return stats == null ? 0 : stats.getLeased();
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        PoolStats stats = getPoolStats();
+        return stats == null ? 0 : stats.getAvailable();
+    }
+
+    @Override
+    public int getPendingConnections() {
+        PoolStats stats = getPoolStats();
+        return stats == null ? 0 : stats.getPending();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        PoolStats stats = getPoolStats();
+        return stats == null ? 0 : stats.getMax();
+    }
+
+    @Override
+    public long getThrottledRequests() {
+        return rateLimiter == null ? 0 : rateLimiter.getThrottledCount();
+    }
+
+    @Override
+    public int getThreadCount() {
+        return threads.getThreadCount();
+    }
+
+    @Override
+    public int getPeakThreadCount() {
+        return threads.getPeakThreadCount();
+    }
+
+    /**
+     * @param maxTargets max number of targets measured separately
+     */
+    public void setMaxTargets(int maxTargets) {
+        this.maxTargets = maxTargets;
+    }
+
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * @param httpClientFactory the factory of the http client of the proxy, for the connection pool gauges
+     */
+    public void setHttpClientFactory(PoolingHttpClientFactory httpClientFactory) {
+        this.httpClientFactory = httpClientFactory;
+    }
+
+    /**
+     * @param lanes the lanes of the proxy, for their queue time histograms and gauges
+     */
+    public void setLanes(PriorityLanes lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * @param rateLimiter the rate limiter of the proxy, for the throttled requests counters
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+}
@@ -0,0 +1,23 @@
+package org.georchestra.security.metrics;
+
+/**
+ * JMX view of the gauges of the {@link ProxyMetrics}.
+ */
+public interface ProxyMetricsMBean {
+
+    int getInFlightRequests();
+
+    int getLeasedConnections();
+
+    int getAvailableConnections();
+
+    int getPendingConnections();
+
+    int getMaxConnections();
+
+    long getThrottledRequests();
+
+    int getThreadCount();
+
+    int getPeakThreadCount();
+}
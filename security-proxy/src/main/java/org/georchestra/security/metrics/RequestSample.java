@@ -0,0 +1,69 @@
+package org.georchestra.security.metrics;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Measures a request forwarded by the proxy, from {@link ProxyMetrics#start(HttpServletResponse)} to
+ * {@link #stop()}.
+ */
+public final class RequestSample {
+    private final ProxyMetrics metrics;
+    private final MeteredResponse response;
+    private final long start = System.nanoTime();
+    private String target;
+    private HttpContext context;
+
+    RequestSample(ProxyMetrics metrics, HttpServletResponse response) {
+        this.metrics = metrics;
+        this.response = new MeteredResponse(response);
+    }
+
+    /**
+     * @return the response to use for the request, its status and body size being recorded
+     */
+    public HttpServletResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @param target the key of the target or the host the request is forwarded to
+     */
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    /**
+     * @param context the context the request to the backend is executed with, see {@link TimingRequestExecutor}
+     */
+    public void setHttpContext(HttpContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Records the request in the metrics of its target.
+     */
+    public void stop() {
+        long end = System.nanoTime();
+        TargetMetrics targetMetrics = metrics.getTargetMetrics(target);
+        if (context != null) {
+            Long connected = (Long) context.getAttribute(TimingRequestExecutor.CONNECTED);
+            Long firstByte = (Long) context.getAttribute(TimingRequestExecutor.FIRST_BYTE);
+            Long requestBytes = (Long) context.getAttribute(TimingRequestExecutor.REQUEST_BYTES);
+            if (connected != null) {
+                targetMetrics.getConnectTime().record(connected - start);
+            }
+            if (firstByte != null) {
+                targetMetrics.getTimeToFirstByte().record(firstByte - start);
+            }
+            if (requestBytes != null) {
+                targetMetrics.addRequestBytes(requestBytes);
+            }
+        }
+        targetMetrics.recordStatus(response.getStatus());
+        targetMetrics.addResponseBytes(response.getBytes());
+        targetMetrics.getTotalTime().record(end - start);
+        metrics.requestEnded();
+    }
+}
@@ -0,0 +1,62 @@
+package org.georchestra.security.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link LatencyHistogram} of the recent durations: the durations recorded more than two windows ago are
+ * forgotten.
+ * <p>
+ * The durations are recorded in the histogram of the current window, the percentiles are computed over the current
+ * and the previous window so that they do not start from nothing at each new window.
+ * </p>
+ */
+public final class RollingHistogram {
+    private final long window;
+    private final AtomicLong windowStart;
+    private volatile LatencyHistogram current = new LatencyHistogram();
+    private volatile LatencyHistogram previous = new LatencyHistogram();
+
+    /**
+     * @param window duration of a window in nanoseconds
+     * @param now {@link System#nanoTime()}
+     */
+    public RollingHistogram(long window, long now) {
+        this.window = window;
+        this.windowStart = new AtomicLong(now);
+    }
+
+    public void record(long nanos, long now) {
+        rotate(now);
+        current.record(nanos);
+    }
+
+    private void rotate(long now) {
+        long start = windowStart.get();
+        if (now - start >= window && windowStart.compareAndSet(start, now)) {
+            // a window without any request leaves nothing behind
+            previous = now - start >= 2 * window ? new LatencyHistogram() : current;
+            current = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return number of durations of the current and previous windows
+     */
+    public long getCount(long now) {
+        rotate(now);
+        return current.getCount() + previous.getCount();
+    }
+
+    /**
+     * @see LatencyHistogram#getPercentileMillis(double)
+     */
+    public long getPercentileMillis(double quantile, long now) {
+        rotate(now);
+        long[] counts = current.getBucketCounts();
+        long[] previousCounts = previous.getBucketCounts();
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += previousCounts[i];
+        }
+        return LatencyHistogram.percentileMillis(counts, quantile);
+    }
+}
@@ -0,0 +1,117 @@
+package org.georchestra.security.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the requests forwarded to a target.
+ */
+public final class TargetMetrics implements TargetMetricsMBean {
+    private final String name;
+    private final AtomicLongArray statusClasses = new AtomicLongArray(6);
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram totalTime = new LatencyHistogram();
+
+    TargetMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void recordStatus(int status) {
+        int statusClass = status / 100;
+        statusClasses.incrementAndGet(statusClass > 0 && statusClass < 6 ? statusClass : 0);
+    }
+
+    void addRequestBytes(long bytes) {
+        requestBytes.addAndGet(bytes);
+    }
+
+    void addResponseBytes(long bytes) {
+        responseBytes.addAndGet(bytes);
+    }
+
+    public LatencyHistogram getConnectTime() {
+        return connectTime;
+    }
+
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    public LatencyHistogram getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @param statusClass 1 to 5, 0 for the requests without valid status
+     */
+    public long getStatusCount(int statusClass) {
+        return statusClasses.get(statusClass);
+    }
+
+    @Override
+    public long getRequestCount() {
+        return totalTime.getCount();
+    }
+
+    @Override
+    public long getStatus1xxCount() {
+        return getStatusCount(1);
+    }
+
+    @Override
+    public long getStatus2xxCount() {
+        return getStatusCount(2);
+    }
+
+    @Override
+    public long getStatus3xxCount() {
+        return getStatusCount(3);
+    }
+
+    @Override
+    public long getStatus4xxCount() {
+        return getStatusCount(4);
+    }
+
+    @Override
+    public long getStatus5xxCount() {
+        return getStatusCount(5);
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    @Override
+    public double getMeanConnectTime() {
+        return connectTime.getMeanMillis();
+    }
+
+    @Override
+    public double getMeanTimeToFirstByte() {
+        return timeToFirstByte.getMeanMillis();
+    }
+
+    @Override
+    public double getMeanTotalTime() {
+        return totalTime.getMeanMillis();
+    }
+
+    @Override
+    public long getTotalTime99thPercentile() {
+        return totalTime.getPercentileMillis(0.99);
+    }
+}
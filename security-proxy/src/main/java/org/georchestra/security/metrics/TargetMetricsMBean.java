@@ -0,0 +1,31 @@
+package org.georchestra.security.metrics;
+
+/**
+ * JMX view of the {@link TargetMetrics} of a target. The times are in milliseconds.
+ */
+public interface TargetMetricsMBean {
+
+    long getRequestCount();
+
+    long getStatus1xxCount();
+
+    long getStatus2xxCount();
+
+    long getStatus3xxCount();
+
+    long getStatus4xxCount();
+
+    long getStatus5xxCount();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    double getMeanConnectTime();
+
+    double getMeanTimeToFirstByte();
+
+    double getMeanTotalTime();
+
+    long getTotalTime99thPercentile();
+}
@@ -0,0 +1,49 @@
+package org.georchestra.security.metrics;
+
+import java.io.IOException;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+/**
+ * Records in the context of a request when the connection to the backend was ready and when the headers of its
+ * response were received, and the number of bytes sent.
+ * <p>
+ * The request executor is only called once the connection has been leased from the pool and opened, the time
+ * it is called at is therefore the end of the connect phase.
+ * </p>
+ */
+public class TimingRequestExecutor extends HttpRequestExecutor {
+    /**
+     * {@link System#nanoTime()} when the connection was ready
+     */
+    public static final String CONNECTED = "org.georchestra.security.metrics.connected";
+    /**
+     * {@link System#nanoTime()} when the headers of the response were received
+     */
+    public static final String FIRST_BYTE = "org.georchestra.security.metrics.firstByte";
+    /**
+     * number of bytes of the request sent to the backend
+     */
+    public static final String REQUEST_BYTES = "org.georchestra.security.metrics.requestBytes";
+
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        if (context.getAttribute(CONNECTED) == null) {
+            // only the first attempt, not the retries or the authentication round trips
+            context.setAttribute(CONNECTED, System.nanoTime());
+        }
+        HttpConnectionMetrics metrics = conn.getMetrics();
+        long sent = metrics.getSentBytesCount();
+        HttpResponse response = super.execute(request, conn, context);
+        context.setAttribute(FIRST_BYTE, System.nanoTime());
+        context.setAttribute(REQUEST_BYTES, metrics.getSentBytesCount() - sent);
+        return response;
+    }
+}
@@ -0,0 +1,300 @@
+package org.georchestra.security.permissions;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.DnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the resolution of the host names checked by the {@link Permissions}.
+ * <p>
+ * A host is resolved synchronously the first time it is seen and once its entry is older than the positive (or
+ * negative when the host is unknown) time to live, an expired entry is never served. An entry older than half its
+ * time to live is resolved again by a background thread while it keeps being served. If a new resolution fails,
+ * the last known addresses are kept.
+ * </p>
+ * <p>
+ * The cache is also the {@link DnsResolver} of the http client of the proxy, and a host can be pinned to the
+ * addresses checked against the permissions for the current thread, see {@link #pin(String)}: the connections
+ * opened by the request are then made to the very addresses which were checked, even if the host name resolves
+ * to other addresses in between (DNS rebinding).
+ * </p>
+ */
+public class DnsCache implements DnsResolver {
+    protected static final Log logger = LogFactory.getLog(DnsCache.class.getPackage().getName());
+
+    private static final InetAddress[] UNKNOWN_HOST = new InetAddress[0];
+
+    private long positiveTimeToLive = 300000;
+    private long negativeTimeToLive = 10000;
+    private long maxSize = 10000;
+
+    private volatile Cache<String, Resolution> cache;
+    private volatile ExecutorService refreshExecutor;
+    private boolean destroyed;
+
+    private final ThreadLocal<Map<String, InetAddress[]>> pinned = new ThreadLocal<Map<String, InetAddress[]>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @return all the addresses of the host
+     * @throws UnknownHostException if the host could not be resolved
+     */
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        String key = host.toLowerCase(Locale.ENGLISH);
+        Map<String, InetAddress[]> pins = pinned.get();
+        InetAddress[] addresses = pins == null ? null : pins.get(key);
+        if (addresses == null) {
+            addresses = cached(key);
+        }
+        if (addresses == UNKNOWN_HOST) {
+            throw new UnknownHostException(host);
+        }
+        return addresses;
+    }
+
+    /**
+     * @param host the host name in lower case, the key of its entry
+     */
+    private InetAddress[] cached(String host) {
+        Cache<String, Resolution> entries = getCache();
+        Resolution resolution = entries.getIfPresent(host);
+        long now = System.currentTimeMillis();
+        if (resolution == null || resolution.isExpired(now)) {
+            misses.incrementAndGet();
+            resolution = lookup(host, resolution);
+            entries.put(host, resolution);
+        } else {
+            hits.incrementAndGet();
+            if (resolution.isStale(now) && resolution.refreshing.compareAndSet(false, true)) {
+                refresh(host, resolution);
+            }
+        }
+        return resolution.addresses;
+    }
+
+    /**
+     * Resolves the host and binds it to the addresses found for the current thread, until the pin is released:
+     * {@link #resolve(String)} then returns these addresses on this thread, to the http client as well.
+     *
+     * @return the pin, to be released once the request is done
+     */
+    public Pin pin(String host) {
+        String key = host.toLowerCase(Locale.ENGLISH);
+        Map<String, InetAddress[]> pins = pinned.get();
+        InetAddress[] previous = pins == null ? null : pins.get(key);
+        InetAddress[] addresses = previous == null ? cached(key) : previous;
+        if (pins == null) {
+            pins = new HashMap<String, InetAddress[]>();
+            pinned.set(pins);
+        }
+        pins.put(key, addresses);
+        return new Pin(key, addresses, previous);
+    }
+
+    /**
+     * A host bound to its addresses on the thread which pinned it.
+     */
+    public final class Pin {
+        private final String key;
+        private final InetAddress[] addresses;
+        private final InetAddress[] previous;
+        private boolean released;
+
+        private Pin(String key, InetAddress[] addresses, InetAddress[] previous) {
+            this.key = key;
+            this.addresses = addresses;
+            this.previous = previous;
+        }
+
+        /**
+         * @return the addresses of the host, null if it is unknown
+         */
+        public InetAddress[] getAddresses() {
+            return addresses == UNKNOWN_HOST ? null : addresses;
+        }
+
+        /**
+         * Unbinds the host, must be called by the thread which pinned it.
+         */
+        public void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            Map<String, InetAddress[]> pins = pinned.get();
+            if (pins == null) {
+                return;
+            }
+            if (previous != null) {
+                pins.put(key, previous);
+            } else {
+                pins.remove(key);
+                if (pins.isEmpty()) {
+                    pinned.remove();
+                }
+            }
+        }
+    }
+
+    private void refresh(final String host, final Resolution previous) {
+        try {
+            getRefreshExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    refreshes.incrementAndGet();
+                    getCache().put(host, lookup(host, previous));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            previous.refreshing.set(false);
+        }
+    }
+
+    private Resolution lookup(String host, Resolution previous) {
+        try {
+            return new Resolution(InetAddress.getAllByName(host), positiveTimeToLive);
+        } catch (UnknownHostException e) {
+            failures.incrementAndGet();
+            if (previous != null && previous.addresses != UNKNOWN_HOST) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("Unable to resolve " + host + " again, keeping the previous addresses");
+                }
+                return new Resolution(previous.addresses, negativeTimeToLive);
+            }
+            return new Resolution(UNKNOWN_HOST, negativeTimeToLive);
+        }
+    }
+
+    private Cache<String, Resolution> getCache() {
+        Cache<String, Resolution> result = this.cache;
+        if (result == null) {
+            synchronized (this) {
+                result = this.cache;
+                if (result == null) {
+                    result = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+                    this.cache = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private ExecutorService getRefreshExecutor() {
+        ExecutorService result = this.refreshExecutor;
+        if (result == null) {
+            synchronized (this) {
+                result = this.refreshExecutor;
+                if (destroyed) {
+                    throw new RejectedExecutionException("The DNS cache has been destroyed");
+                }
+                if (result == null) {
+                    result = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                            .setNameFormat("security-proxy-dns-refresh").setDaemon(true).build());
+                    this.refreshExecutor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops the background resolutions, the cache keeps answering with synchronous ones.
+     */
+    public synchronized void destroy() {
+        destroyed = true;
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long size() {
+        return getCache().size();
+    }
+
+    @Override
+    public String toString() {
+        return "DnsCache[size=" + size() + ", hits=" + hits + ", misses=" + misses + ", refreshes=" + refreshes
+                + ", failures=" + failures + "]";
+    }
+
+    /**
+     * @param positiveTimeToLive milliseconds after which a resolved host is no longer served, it is resolved again
+     *                           in the background after half of them
+     */
+    public void setPositiveTimeToLive(long positiveTimeToLive) {
+        this.positiveTimeToLive = positiveTimeToLive;
+    }
+
+    /**
+     * @param negativeTimeToLive milliseconds before an unknown host is resolved again
+     */
+    public void setNegativeTimeToLive(long negativeTimeToLive) {
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    /**
+     * @param maxSize max number of hosts kept in the cache
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    private static final class Resolution {
+        final InetAddress[] addresses;
+        final long staleAt;
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Resolution(InetAddress[] addresses, long timeToLive) {
+            long now = System.currentTimeMillis();
+            this.addresses = addresses;
+            this.staleAt = now + timeToLive / 2;
+            this.expiresAt = now + timeToLive;
+        }
+
+        boolean isStale(long now) {
+            return now > staleAt;
+        }
+
+        boolean isExpired(long now) {
+            return now > expiresAt;
+        }
+    }
+}
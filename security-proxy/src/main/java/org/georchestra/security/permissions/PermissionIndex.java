@@ -0,0 +1,303 @@
+package org.georchestra.security.permissions;
+
+import com.google.common.collect.Maps;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The {@link UriMatcher}s of a list of permissions compiled so that checking an url does not depend on the
+ * number of matchers.
+ * <p>
+ * The matchers are first indexed by host: the addresses of the host names in a hash map, the networks in a binary
+ * prefix tree and the matchers without host apart. Each host entry then indexes the matchers by path in a
+ * character trie built from the literal prefix of their path pattern. Matching an url is then a walk of its
+ * path in the tries of its addresses, the regular expression of a matcher only being evaluated when its pattern
+ * is not a plain literal or literal prefix.
+ * </p>
+ */
+final class PermissionIndex {
+    private final DnsCache dnsCache;
+    private final PathTrie anyHost = new PathTrie();
+    private final Map<InetAddress, PathTrie> byAddress = Maps.newHashMap();
+    private final NetworkTrie networks = new NetworkTrie();
+
+    PermissionIndex(List<UriMatcher> matchers, DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+        for (UriMatcher matcher : matchers) {
+            add(matcher);
+        }
+    }
+
+    private void add(UriMatcher matcher) {
+        Rule rule = Rule.create(matcher);
+        if (matcher.getHostAddresses() != null) {
+            for (InetAddress address : matcher.getHostAddresses()) {
+                PathTrie trie = byAddress.get(address);
+                if (trie == null) {
+                    trie = new PathTrie();
+                    byAddress.put(address, trie);
+                }
+                trie.add(rule);
+            }
+        } else if (matcher.getNetwork() != null) {
+            networks.add(matcher.getNetwork(), matcher.getPrefixLength(), rule);
+        } else {
+            anyHost.add(rule);
+        }
+    }
+
+    /**
+     * @return true if one of the indexed matchers matches the url
+     */
+    boolean matches(URL url) {
+        InetAddress[] addresses;
+        try {
+            addresses = dnsCache.resolve(url.getHost());
+        } catch (UnknownHostException e) {
+            addresses = null;
+        }
+        return matches(url, addresses);
+    }
+
+    /**
+     * @param addresses the addresses of the host of the url, null if it is unknown
+     * @return true if one of the indexed matchers matches the url on these addresses
+     */
+    boolean matches(URL url, InetAddress[] addresses) {
+        String path = url.getPath();
+        int port = url.getPort();
+        int defaultPort = url.getDefaultPort();
+        if (anyHost.matches(path, port, defaultPort)) {
+            return true;
+        }
+        if (addresses == null || byAddress.isEmpty() && networks.isEmpty()) {
+            return false;
+        }
+        for (InetAddress address : addresses) {
+            PathTrie trie = byAddress.get(address);
+            if (trie != null && trie.matches(path, port, defaultPort)) {
+                return true;
+            }
+            if (networks.matches(address.getAddress(), path, port, defaultPort)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The port and path conditions of a matcher.
+     */
+    static final class Rule {
+        static final int ANY = 0;
+        static final int EXACT = 1;
+        static final int PREFIX = 2;
+        static final int REGEX = 3;
+
+        final int port;
+        final int kind;
+        final String literal;
+        final Pattern pattern;
+
+        private Rule(int port, int kind, String literal, Pattern pattern) {
+            this.port = port;
+            this.kind = kind;
+            this.literal = literal;
+            this.pattern = pattern;
+        }
+
+        static Rule create(UriMatcher matcher) {
+            Pattern pattern = matcher.getPathPattern();
+            if (pattern == null) {
+                return new Rule(matcher.getPort(), ANY, "", null);
+            }
+            String regex = pattern.pattern();
+            String literal = literalPrefix(regex);
+            if (literal.length() == regex.length()) {
+                return new Rule(matcher.getPort(), EXACT, literal, pattern);
+            }
+            if (regex.length() == literal.length() + 2 && regex.endsWith(".*")) {
+                return new Rule(matcher.getPort(), PREFIX, literal, pattern);
+            }
+            return new Rule(matcher.getPort(), REGEX, literal, pattern);
+        }
+
+        /**
+         * @return the characters at the start of the regular expression that can only match themselves
+         */
+        static String literalPrefix(String regex) {
+            if (regex.indexOf('|') >= 0) {
+                // an alternative could match anything
+                return "";
+            }
+            int i = 0;
+            while (i < regex.length() && "\\.[]{}()*+?^$".indexOf(regex.charAt(i)) < 0) {
+                i++;
+            }
+            if (i < regex.length() && i > 0 && "*+?{".indexOf(regex.charAt(i)) >= 0) {
+                // the quantifier applies to the last literal character
+                i--;
+            }
+            return regex.substring(0, i);
+        }
+
+        /**
+         * @param depth number of characters of the path already matched by the literal prefix of the rule
+         */
+        boolean matches(String path, int depth, int urlPort, int defaultPort) {
+            if (port != -1 && urlPort != port && !(urlPort == -1 && defaultPort == port)) {
+                return false;
+            }
+            switch (kind) {
+            case ANY:
+            case PREFIX:
+                return true;
+            case EXACT:
+                return depth == path.length();
+            default:
+                return pattern.matcher(path).matches();
+            }
+        }
+    }
+
+    /**
+     * Indexes rules by the literal prefix of their path.
+     */
+    static final class PathTrie {
+        private final Node root = new Node();
+        private boolean empty = true;
+
+        void add(Rule rule) {
+            Node node = root;
+            for (int i = 0; i < rule.literal.length(); i++) {
+                node = node.getOrCreateChild(rule.literal.charAt(i));
+            }
+            node.addRule(rule);
+            empty = false;
+        }
+
+        boolean matches(String path, int port, int defaultPort) {
+            if (empty) {
+                return false;
+            }
+            Node node = root;
+            int depth = 0;
+            while (true) {
+                Rule[] rules = node.rules;
+                for (int r = 0; r < rules.length; r++) {
+                    if (rules[r].matches(path, depth, port, defaultPort)) {
+                        return true;
+                    }
+                }
+                if (depth == path.length()) {
+                    return false;
+                }
+                node = node.child(path.charAt(depth++));
+                if (node == null) {
+                    return false;
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        private static final class Node {
+            private static final Rule[] NO_RULES = new Rule[0];
+            private static final Node[] NO_CHILDREN = new Node[0];
+
+            char[] keys = new char[0];
+            Node[] children = NO_CHILDREN;
+            Rule[] rules = NO_RULES;
+
+            Node child(char c) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] == c) {
+                        return children[i];
+                    }
+                }
+                return null;
+            }
+
+            Node getOrCreateChild(char c) {
+                Node child = child(c);
+                if (child == null) {
+                    child = new Node();
+                    keys = Arrays.copyOf(keys, keys.length + 1);
+                    keys[keys.length - 1] = c;
+                    children = Arrays.copyOf(children, children.length + 1);
+                    children[children.length - 1] = child;
+                }
+                return child;
+            }
+
+            void addRule(Rule rule) {
+                rules = Arrays.copyOf(rules, rules.length + 1);
+                rules[rules.length - 1] = rule;
+            }
+        }
+    }
+
+    /**
+     * Binary prefix tree of the networks, one bit of the address per level.
+     */
+    static final class NetworkTrie {
+        private final Node ipv4 = new Node();
+        private final Node ipv6 = new Node();
+        private boolean empty = true;
+
+        void add(byte[] network, int prefixLength, Rule rule) {
+            Node node = network.length == 4 ? ipv4 : ipv6;
+            for (int bit = 0; bit < prefixLength; bit++) {
+                int b = bit(network, bit);
+                if (node.children[b] == null) {
+                    node.children[b] = new Node();
+                }
+                node = node.children[b];
+            }
+            if (node.rules == null) {
+                node.rules = new PathTrie();
+            }
+            node.rules.add(rule);
+            empty = false;
+        }
+
+        boolean matches(byte[] address, String path, int port, int defaultPort) {
+            if (empty) {
+                return false;
+            }
+            Node node = address.length == 4 ? ipv4 : ipv6;
+            int bits = address.length * 8;
+            for (int bit = 0; node != null; bit++) {
+                if (node.rules != null && node.rules.matches(path, port, defaultPort)) {
+                    return true;
+                }
+                if (bit == bits) {
+                    return false;
+                }
+                node = node.children[bit(address, bit)];
+            }
+            return false;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        private static int bit(byte[] address, int bit) {
+            return (address[bit / 8] >> (7 - bit % 8)) & 1;
+        }
+
+        private static final class Node {
+            final Node[] children = new Node[2];
+            PathTrie rules;
+        }
+    }
+}
@@ -1,19 +1,35 @@
 package org.georchestra.security.permissions;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 
+import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Once initialized the allowed and denied matchers are compiled into {@link PermissionIndex}es and the last
+ * decisions are remembered for {@link #DECISION_CACHE_TTL} seconds. A decision is remembered for the addresses the
+ * host resolved to, not for the host name, so that it never applies to other addresses the name resolves to later.
+ *
  * @author Jesse on 8/15/2014.
  */
 public class Permissions {
+    static final int DECISION_CACHE_SIZE = 10000;
+    static final long DECISION_CACHE_TTL = 60;
+
     private List<UriMatcher> allowed = Lists.newArrayList();
     private List<UriMatcher> denied = Lists.newArrayList();
     private boolean allowByDefault = false;
     private boolean initialized = false;
+    private transient DnsCache dnsCache;
+    private transient PermissionIndex allowedIndex;
+    private transient PermissionIndex deniedIndex;
+    private transient Cache<String, Boolean> decisions;
 
     public Permissions setAllowed(List<UriMatcher> allowed) {
         this.allowed = allowed;
@@ -26,17 +42,65 @@ public class Permissions {
     }
 
     public boolean isDenied(URL url) {
+        Cache<String, Boolean> cache = this.decisions;
+        if (cache == null) {
+            // not initialized, the matchers resolve the host themselves
+            return evaluate(url, null);
+        }
+        InetAddress[] addresses;
+        try {
+            // the addresses pinned by the request if it pinned the host, see DnsCache.pin
+            addresses = dnsCache.resolve(url.getHost());
+        } catch (UnknownHostException e) {
+            addresses = null;
+        }
+        String key = decisionKey(url, addresses);
+        Boolean denied = cache.getIfPresent(key);
+        if (denied == null) {
+            denied = evaluate(url, addresses);
+            cache.put(key, denied);
+        }
+        return denied;
+    }
+
+    /**
+     * @return the key of the decision: the addresses of the host (the decision of an unknown host does not depend
+     *         on its name), port and path
+     */
+    static String decisionKey(URL url, InetAddress[] addresses) {
+        StringBuilder key = new StringBuilder();
+        if (addresses == null) {
+            key.append('?');
+        } else {
+            String[] sorted = new String[addresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                sorted[i] = addresses[i].getHostAddress();
+            }
+            Arrays.sort(sorted);
+            for (String address : sorted) {
+                key.append(address).append(',');
+            }
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return key.append('|').append(port).append(url.getPath()).toString();
+    }
+
+    private boolean evaluate(URL url, InetAddress[] addresses) {
         if (allowByDefault) {
-            if (checkIfAllowed(url)) return false;
-            if (checkIfDenied(url)) return true;
+            if (checkIfAllowed(url, addresses)) return false;
+            if (checkIfDenied(url, addresses)) return true;
         } else {
-            if (checkIfDenied(url)) return true;
-            if (checkIfAllowed(url)) return false;
+            if (checkIfDenied(url, addresses)) return true;
+            if (checkIfAllowed(url, addresses)) return false;
         }
         return !allowByDefault;
     }
 
-    private boolean checkIfDenied(URL url) {
+    private boolean checkIfDenied(URL url, InetAddress[] addresses) {
+        PermissionIndex index = this.deniedIndex;
+        if (index != null) {
+            return index.matches(url, addresses);
+        }
         for (UriMatcher uriMatcher : denied) {
             if (uriMatcher.matches(url)) {
                 return true;
@@ -45,7 +109,11 @@ public class Permissions {
         return false;
     }
 
-    private boolean checkIfAllowed(URL url) {
+    private boolean checkIfAllowed(URL url, InetAddress[] addresses) {
+        PermissionIndex index = this.allowedIndex;
+        if (index != null) {
+            return index.matches(url, addresses);
+        }
         for (UriMatcher uriMatcher : allowed) {
             if (uriMatcher.matches(url)) {
                 return true;
@@ -70,14 +138,29 @@ public class Permissions {
         this.allowByDefault = allowByDefault;
     }
 
+    /**
+     * Sets the cache used to resolve the hosts of the checked urls, must be called before {@link #init()}.
+     */
+    public Permissions setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+        return this;
+    }
+
     public synchronized void init() throws UnknownHostException {
+        if (dnsCache == null) {
+            dnsCache = new DnsCache();
+        }
         for (UriMatcher uriMatcher : allowed) {
-            uriMatcher.init();
+            uriMatcher.init(dnsCache);
         }
 
         for (UriMatcher uriMatcher : denied) {
-            uriMatcher.init();
+            uriMatcher.init(dnsCache);
         }
+        allowedIndex = new PermissionIndex(allowed, dnsCache);
+        deniedIndex = new PermissionIndex(denied, dnsCache);
+        decisions = CacheBuilder.newBuilder().maximumSize(DECISION_CACHE_SIZE)
+                .expireAfterWrite(DECISION_CACHE_TTL, TimeUnit.SECONDS).<String, Boolean>build();
         initialized = true;
     }
 
@@ -9,6 +9,9 @@ import java.util.HashSet;
 import java.util.regex.Pattern;
 
 /**
+ * The host of a matcher is either a host name (all its addresses are checked) or a network in CIDR notation,
+ * for example <code>192.168.0.0/16</code>.
+ *
  * @author Jesse on 8/15/2014.
  */
 public class UriMatcher {
@@ -17,11 +20,33 @@ public class UriMatcher {
     private Pattern pathPattern;
     private HashSet<InetAddress> hostNames;
     private String host;
+    private transient byte[] network;
+    private transient int prefixLength;
+    private transient DnsCache dnsCache;
 
     public synchronized void init() throws UnknownHostException {
+        init(new DnsCache());
+    }
+
+    /**
+     * @param dnsCache resolves the hosts of the urls checked by this matcher
+     */
+    public synchronized void init(DnsCache dnsCache) throws UnknownHostException {
+        this.dnsCache = dnsCache;
         this.hostNames = null;
+        this.network = null;
         if (this.host != null) {
-            this.hostNames = Sets.newHashSet(InetAddress.getAllByName(this.host));
+            int slash = this.host.indexOf('/');
+            if (slash > 0) {
+                // an ip literal is not resolved by getByName
+                this.network = InetAddress.getByName(this.host.substring(0, slash).trim()).getAddress();
+                this.prefixLength = Integer.parseInt(this.host.substring(slash + 1).trim());
+                if (this.prefixLength < 0 || this.prefixLength > this.network.length * 8) {
+                    throw new IllegalArgumentException("Invalid network prefix length: " + this.host);
+                }
+            } else {
+                this.hostNames = Sets.newHashSet(dnsCache.resolve(this.host));
+            }
         }
         this.pathPattern = null;
         if (this.path != null) {
@@ -36,6 +61,9 @@ public class UriMatcher {
         if (hostNames != null && !matchesHost(url)) {
             return false;
         }
+        if (network != null && !matchesNetwork(url)) {
+            return false;
+        }
         if (port != -1 && !matchesPort(url)) {
             return false;
         }
@@ -56,7 +84,7 @@ public class UriMatcher {
     private boolean matchesHost(URL url) {
         final InetAddress[] allByName;
         try {
-            allByName = InetAddress.getAllByName(url.getHost());
+            allByName = dnsCache.resolve(url.getHost());
         } catch (UnknownHostException e) {
             return false;
         }
@@ -69,6 +97,59 @@ public class UriMatcher {
         return false;
     }
 
+    private boolean matchesNetwork(URL url) {
+        final InetAddress[] allByName;
+        try {
+            allByName = dnsCache.resolve(url.getHost());
+        } catch (UnknownHostException e) {
+            return false;
+        }
+
+        for (InetAddress inetAddress : allByName) {
+            if (inNetwork(this.network, this.prefixLength, inetAddress.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the first prefixLength bits of address and network are the same
+     */
+    static boolean inNetwork(byte[] network, int prefixLength, byte[] address) {
+        if (network.length != address.length) {
+            return false;
+        }
+        int fullBytes = prefixLength / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (network[i] != address[i]) {
+                return false;
+            }
+        }
+        int remainingBits = prefixLength % 8;
+        if (remainingBits == 0) {
+            return true;
+        }
+        int mask = (0xFF << (8 - remainingBits)) & 0xFF;
+        return (network[fullBytes] & mask) == (address[fullBytes] & mask);
+    }
+
+    HashSet<InetAddress> getHostAddresses() {
+        return hostNames;
+    }
+
+    byte[] getNetwork() {
+        return network;
+    }
+
+    int getPrefixLength() {
+        return prefixLength;
+    }
+
+    Pattern getPathPattern() {
+        return pathPattern;
+    }
+
     public UriMatcher setHost(String host) throws UnknownHostException {
         this.host = host;
         return this;
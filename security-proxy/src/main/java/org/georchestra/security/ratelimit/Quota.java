@@ -0,0 +1,67 @@
+package org.georchestra.security.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The number of requests a client may send: requestsPerSecond on average, and up to burst requests at once.
+ */
+public class Quota {
+    private double requestsPerSecond = 10;
+    private int burst = 20;
+
+    public Quota() {
+    }
+
+    public Quota(double requestsPerSecond, int burst) {
+        setRequestsPerSecond(requestsPerSecond);
+        setBurst(burst);
+    }
+
+    /**
+     * @return false if the requests are not limited
+     */
+    boolean isLimited() {
+        return requestsPerSecond > 0;
+    }
+
+    /**
+     * @return nanoseconds to get back the right to send a request
+     */
+    long getInterval() {
+        return Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+    }
+
+    /**
+     * @return nanoseconds for an empty bucket to be full again
+     */
+    long getRefillTime() {
+        return getInterval() * burst;
+    }
+
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * @param requestsPerSecond average number of requests per second, 0 for no limit
+     */
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @param burst number of requests which may be sent at once after a pause
+     */
+    public void setBurst(int burst) {
+        this.burst = Math.max(1, burst);
+    }
+
+    @Override
+    public String toString() {
+        return requestsPerSecond + " requests/s, burst " + burst;
+    }
+}
@@ -0,0 +1,293 @@
+package org.georchestra.security.ratelimit;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.georchestra.security.HeaderNames;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Limits the rate of the requests of each client, so that a single harvester cannot take all the capacity of a
+ * backend.
+ * <p>
+ * The requests are counted by keyBy: the user (the sec-username header, the client address for the anonymous
+ * users), the client address or the target. The quota of a user is the most generous of the roleQuotas matching
+ * one of its roles (ROLE_ANONYMOUS for the anonymous users), defaultQuota if none matches, a quota of 0 requests
+ * per second meaning no limit. Each client has a {@link TokenBucket} per quota, a request finding it empty is
+ * refused with a 429 status and a Retry-After header.
+ * </p>
+ * <p>
+ * At most maxKeys buckets are kept, a bucket being dropped once it has been unused long enough to be full again.
+ * </p>
+ */
+public class RateLimiter {
+    protected static final Log logger = LogFactory.getLog(RateLimiter.class.getPackage().getName());
+
+    /**
+     * The status of the refused requests, not defined by the servlet API.
+     */
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+    static final String ANONYMOUS_ROLE = "ROLE_ANONYMOUS";
+    static final String DEFAULT_QUOTA = "default";
+
+    /**
+     * What the requests are counted by.
+     */
+    public enum KeyBy {
+        USER, IP, TARGET
+    }
+
+    private KeyBy keyBy = KeyBy.USER;
+    private Map<String, Quota> roleQuotas = Collections.emptyMap();
+    private Quota defaultQuota = new Quota(0, 1);
+    private boolean useForwardedFor = false;
+    private int trustedProxies = 1;
+    private long maxKeys = 100000;
+
+    private volatile Cache<String, TokenBucket> buckets;
+    private final AtomicLong allowed = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> throttled = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @param request the request of the client
+     * @param proxyingRequest the request to the backend, with the security headers set
+     * @param target the target of the request
+     * @return 0 if the request may be forwarded, otherwise the seconds the client should wait before retrying
+     */
+    public long checkQuota(HttpServletRequest request, HttpRequestBase proxyingRequest, String target) {
+        Header username = proxyingRequest.getFirstHeader(HeaderNames.SEC_USERNAME);
+        Header roles = proxyingRequest.getFirstHeader(HeaderNames.SEC_ROLES);
+        String quotaName = quotaName(username == null || roles == null ? ANONYMOUS_ROLE : roles.getValue());
+        Quota quota = DEFAULT_QUOTA.equals(quotaName) ? defaultQuota : roleQuotas.get(quotaName);
+        if (!quota.isLimited()) {
+            allowed.incrementAndGet();
+            return 0;
+        }
+        String key;
+        switch (keyBy) {
+        case TARGET:
+            key = target;
+            break;
+        case IP:
+            key = clientAddress(request);
+            break;
+        default:
+            key = username == null ? clientAddress(request) : username.getValue();
+        }
+        key = quotaName + '|' + key;
+
+        long now = System.nanoTime();
+        TokenBucket bucket = getBuckets().getIfPresent(key);
+        if (bucket == null) {
+            bucket = new TokenBucket(quota.getInterval(), quota.getBurst(), now);
+            TokenBucket previous = getBuckets().asMap().putIfAbsent(key, bucket);
+            if (previous != null) {
+                bucket = previous;
+            }
+        }
+        long wait = bucket.tryAcquire(now);
+        if (wait == 0) {
+            allowed.incrementAndGet();
+            return 0;
+        }
+        getThrottledCounter(quotaName).incrementAndGet();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Quota " + quotaName + " (" + quota + ") exceeded by " + key);
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * @param roles the roles of the user, separated by semicolons
+     * @return the role whose quota applies, or {@link #DEFAULT_QUOTA}
+     */
+    String quotaName(String roles) {
+        String name = DEFAULT_QUOTA;
+        Quota best = null;
+        int start = 0;
+        int length = roles.length();
+        while (start <= length) {
+            int end = roles.indexOf(';', start);
+            if (end < 0) {
+                end = length;
+            }
+            String role = roles.substring(start, end).trim();
+            Quota quota = roleQuotas.get(role);
+            if (quota != null && (best == null || isMoreGenerous(quota, best))) {
+                best = quota;
+                name = role;
+            }
+            start = end + 1;
+        }
+        return name;
+    }
+
+    private static boolean isMoreGenerous(Quota quota, Quota than) {
+        if (!than.isLimited()) {
+            return false;
+        }
+        return !quota.isLimited() || quota.getRequestsPerSecond() > than.getRequestsPerSecond();
+    }
+
+    /**
+     * The entries of X-Forwarded-For on the left of the ones appended by the trusted proxies are sent by the client
+     * and may be forged, so the address is read trustedProxies entries from the right, the left-most entry being
+     * used if there are fewer.
+     */
+    private String clientAddress(HttpServletRequest request) {
+        if (useForwardedFor) {
+            String forwardedFor = request.getHeader("X-Forwarded-For");
+            if (forwardedFor != null && forwardedFor.length() > 0) {
+                int end = forwardedFor.length();
+                int start = forwardedFor.lastIndexOf(',', end - 1) + 1;
+                for (int i = 1; i < trustedProxies && start > 0; i++) {
+                    end = start - 1;
+                    start = forwardedFor.lastIndexOf(',', end - 1) + 1;
+                }
+                String address = forwardedFor.substring(start, end).trim();
+                if (address.length() > 0) {
+                    return address;
+                }
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    private AtomicLong getThrottledCounter(String quotaName) {
+        AtomicLong counter = throttled.get(quotaName);
+        if (counter == null) {
+            AtomicLong previous = throttled.putIfAbsent(quotaName, counter = new AtomicLong());
+            if (previous != null) {
+                counter = previous;
+            }
+        }
+        return counter;
+    }
+
+    private Cache<String, TokenBucket> getBuckets() {
+        Cache<String, TokenBucket> result = this.buckets;
+        if (result == null) {
+            synchronized (this) {
+                result = this.buckets;
+                if (result == null) {
+                    // an unused bucket is full again after the refill time, dropping it then is harmless
+                    long refillTime = TimeUnit.SECONDS.toNanos(1);
+                    for (Quota quota : roleQuotas.values()) {
+                        if (quota.isLimited()) {
+                            refillTime = Math.max(refillTime, quota.getRefillTime());
+                        }
+                    }
+                    if (defaultQuota.isLimited()) {
+                        refillTime = Math.max(refillTime, defaultQuota.getRefillTime());
+                    }
+                    result = CacheBuilder.newBuilder()
+                            .maximumSize(maxKeys)
+                            .expireAfterAccess(refillTime, TimeUnit.NANOSECONDS)
+                            .<String, TokenBucket> build();
+                    this.buckets = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of requests allowed since the start
+     */
+    public long getAllowedCount() {
+        return allowed.get();
+    }
+
+    /**
+     * @return number of requests refused since the start
+     */
+    public long getThrottledCount() {
+        long count = 0;
+        for (AtomicLong counter : throttled.values()) {
+            count += counter.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of requests refused since the start, by quota
+     */
+    public Map<String, Long> getThrottledCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : throttled.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * @return number of clients having a bucket
+     */
+    public long getTrackedKeys() {
+        return getBuckets().size();
+    }
+
+    /**
+     * @param keyBy USER, IP or TARGET
+     */
+    public void setKeyBy(KeyBy keyBy) {
+        this.keyBy = keyBy;
+    }
+
+    /**
+     * @param roleQuotas the quotas by role, ROLE_ANONYMOUS being the role of the anonymous users
+     */
+    public void setRoleQuotas(Map<String, Quota> roleQuotas) {
+        this.roleQuotas = roleQuotas;
+        this.buckets = null;
+    }
+
+    /**
+     * @param defaultQuota the quota of the users with none of the roles of the roleQuotas, no limit by default
+     */
+    public void setDefaultQuota(Quota defaultQuota) {
+        this.defaultQuota = defaultQuota;
+        this.buckets = null;
+    }
+
+    /**
+     * @param useForwardedFor true to read the client address from the X-Forwarded-For header set by the front
+     *                        web server
+     */
+    public void setUseForwardedFor(boolean useForwardedFor) {
+        this.useForwardedFor = useForwardedFor;
+    }
+
+    /**
+     * @param trustedProxies number of proxies in front of this one appending to the X-Forwarded-For header, 1 for
+     *                       a single front web server
+     */
+    public void setTrustedProxies(int trustedProxies) {
+        if (trustedProxies < 1) {
+            throw new IllegalArgumentException("trustedProxies must be at least 1: " + trustedProxies);
+        }
+        this.trustedProxies = trustedProxies;
+    }
+
+    /**
+     * @param maxKeys max number of clients whose buckets are kept
+     */
+    public void setMaxKeys(long maxKeys) {
+        this.maxKeys = maxKeys;
+        this.buckets = null;
+    }
+}
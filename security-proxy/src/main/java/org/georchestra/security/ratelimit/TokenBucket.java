@@ -0,0 +1,53 @@
+package org.georchestra.security.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket of burst tokens refilled with one token every interval nanoseconds.
+ * <p>
+ * Instead of a number of tokens updated by a refill task, the bucket keeps the time at which it will be full again:
+ * taking a token pushes that time interval nanoseconds further, and a token is available as long as that time is
+ * less than burst intervals away. A single compare and set updates the bucket.
+ * </p>
+ */
+final class TokenBucket {
+    private final long interval;
+    private final long capacity;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param interval nanoseconds to get a token back
+     * @param burst number of tokens of the full bucket
+     * @param now the bucket is full at that time
+     */
+    TokenBucket(long interval, int burst, long now) {
+        this.interval = interval;
+        this.capacity = interval * burst;
+        this.fullAt = new AtomicLong(now);
+    }
+
+    /**
+     * @return 0 if a token was taken, otherwise the nanoseconds before one is available
+     */
+    long tryAcquire(long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now < 0 ? now : current) + interval;
+            long wait = next - now - capacity;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return number of tokens left
+     */
+    int available(long now) {
+        long used = fullAt.get() - now;
+        return used <= 0 ? (int) (capacity / interval) : (int) ((capacity - used) / interval);
+    }
+}
@@ -0,0 +1,295 @@
+package org.georchestra.security.timeouts;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpConnection;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.georchestra.security.lanes.PriorityLanes;
+import org.georchestra.security.metrics.RollingHistogram;
+import org.georchestra.security.metrics.TimingRequestExecutor;
+
+/**
+ * Sets the connect and read timeouts of each forwarded request from the latencies recently observed on its target,
+ * instead of the fixed timeouts of the http client, so that a hanging backend which usually answers in 50 ms does
+ * not hold the threads for minutes.
+ * <p>
+ * The time to connect and the time to receive the headers of the response are recorded separately for each
+ * target, and for each of the operations (REQUEST parameter) listed in operations if any. The operations are only
+ * told apart for the GET requests: the bodies of the other requests are not read, so their latencies are recorded
+ * by target and method (an XML WFS Transaction or WPS Execute POST is not timed like the GetMap requests). A
+ * timeout is the given percentile of the durations of the last window milliseconds times multiplier, kept between
+ * its floor and its ceiling. Until minSamples durations have been recorded the ceiling is used. A request which
+ * timed out is recorded with the duration of its timeout, so that the timeouts grow again if too many requests time
+ * out.
+ * </p>
+ * <p>
+ * The read timeout bounds the wait for the response headers. Once they are received, the max inactivity of the
+ * socket is set to bodyTimeout for the copy of the body, which is unrelated to the time to the first byte.
+ * </p>
+ */
+public class AdaptiveTimeouts {
+    protected static final Log logger = LogFactory.getLog(AdaptiveTimeouts.class.getPackage().getName());
+
+    static final String OTHER_KEY = "other";
+
+    private double percentile = 0.99;
+    private double multiplier = 3;
+    private long window = 300000;
+    private int minSamples = 100;
+    private int connectTimeoutFloor = 1000;
+    private int connectTimeoutCeiling = 30000;
+    private int readTimeoutFloor = 2000;
+    private int readTimeoutCeiling = 300000;
+    private int bodyTimeout = 300000;
+    private Set<String> operations = Collections.emptySet();
+    private int maxKeys = 500;
+
+    private final ConcurrentMap<String, Latencies> latencies = new ConcurrentHashMap<String, Latencies>();
+
+    /**
+     * @param target the target of the request
+     * @param method the method of the request
+     * @param url the url the request is forwarded to
+     * @return the timeouts of the request, to be applied to it before it is executed
+     */
+    public Timeout start(String target, String method, String url) {
+        long now = System.nanoTime();
+        Latencies keyLatencies = getLatencies(key(target, method, url), now);
+        int connectTimeout = timeout(keyLatencies.connect, connectTimeoutFloor, connectTimeoutCeiling, now);
+        int readTimeout = timeout(keyLatencies.read, readTimeoutFloor, readTimeoutCeiling, now);
+        return new Timeout(keyLatencies, connectTimeout, readTimeout, bodyTimeout);
+    }
+
+    String key(String target, String method, String url) {
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            // the operation of a POST is in its body
+            return target + '|' + method;
+        }
+        if (operations.isEmpty()) {
+            return target;
+        }
+        String operation = PriorityLanes.parameter(url, "request");
+        if (operation != null) {
+            operation = operation.toLowerCase(Locale.ENGLISH);
+            if (operations.contains(operation)) {
+                return target + '|' + operation;
+            }
+        }
+        return target;
+    }
+
+    private Latencies getLatencies(String key, long now) {
+        Latencies result = latencies.get(key);
+        if (result == null) {
+            if (latencies.size() >= maxKeys) {
+                key = OTHER_KEY;
+                result = latencies.get(key);
+                if (result != null) {
+                    return result;
+                }
+            }
+            result = new Latencies(key, TimeUnit.MILLISECONDS.toNanos(window), now);
+            Latencies previous = latencies.putIfAbsent(key, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return result;
+    }
+
+    int timeout(RollingHistogram histogram, int floor, int ceiling, long now) {
+        if (histogram.getCount(now) < minSamples) {
+            return ceiling;
+        }
+        long millis = histogram.getPercentileMillis(percentile, now);
+        if (millis == Long.MAX_VALUE) {
+            return ceiling;
+        }
+        return (int) Math.max(floor, Math.min(ceiling, (long) (millis * multiplier)));
+    }
+
+    /**
+     * @return the current read timeout of a target, or of an operation of the target, in milliseconds
+     */
+    public int getReadTimeout(String key) {
+        long now = System.nanoTime();
+        return timeout(getLatencies(key, now).read, readTimeoutFloor, readTimeoutCeiling, now);
+    }
+
+    /**
+     * @return the current connect timeout of a target, or of an operation of the target, in milliseconds
+     */
+    public int getConnectTimeout(String key) {
+        long now = System.nanoTime();
+        return timeout(getLatencies(key, now).connect, connectTimeoutFloor, connectTimeoutCeiling, now);
+    }
+
+    private static final class Latencies {
+        final String key;
+        final RollingHistogram connect;
+        final RollingHistogram read;
+
+        Latencies(String key, long window, long now) {
+            this.key = key;
+            this.connect = new RollingHistogram(window, now);
+            this.read = new RollingHistogram(window, now);
+        }
+    }
+
+    /**
+     * The timeouts of a request. The outcome of the request is recorded by {@link #completed(HttpContext)} or
+     * {@link #failed(IOException)}.
+     */
+    public static final class Timeout {
+        private final Latencies latencies;
+        private final int connectTimeout;
+        private final int readTimeout;
+        private final int bodyTimeout;
+        private long start;
+
+        private Timeout(Latencies latencies, int connectTimeout, int readTimeout, int bodyTimeout) {
+            this.latencies = latencies;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.bodyTimeout = bodyTimeout;
+        }
+
+        /**
+         * Sets the timeouts as parameters of the request, overriding the ones of the http client. The request must
+         * be executed right after.
+         */
+        public void apply(HttpRequestBase request) {
+            request.getParams().setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, connectTimeout);
+            request.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, readTimeout);
+            start = System.nanoTime();
+        }
+
+        /**
+         * Records the latencies of the request, once the headers of the response have been received, and sets the
+         * timeout of the copy of the body on the connection.
+         *
+         * @param context the context the request was executed with
+         */
+        public void completed(HttpContext context) {
+            long now = System.nanoTime();
+            HttpConnection connection = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+            if (connection != null && connection.isOpen()) {
+                connection.setSocketTimeout(bodyTimeout);
+            }
+            Long connected = (Long) context.getAttribute(TimingRequestExecutor.CONNECTED);
+            Long firstByte = (Long) context.getAttribute(TimingRequestExecutor.FIRST_BYTE);
+            if (connected != null) {
+                latencies.connect.record(connected - start, now);
+            }
+            latencies.read.record((firstByte == null ? now : firstByte) - (connected == null ? start : connected),
+                    now);
+        }
+
+        /**
+         * Records a request which timed out with the duration of its timeout.
+         */
+        public void failed(IOException e) {
+            long now = System.nanoTime();
+            if (e instanceof ConnectTimeoutException) {
+                latencies.connect.record(TimeUnit.MILLISECONDS.toNanos(connectTimeout), now);
+                logger.info("No connection to " + latencies.key + " within " + connectTimeout + " ms");
+            } else if (e instanceof SocketTimeoutException) {
+                latencies.read.record(TimeUnit.MILLISECONDS.toNanos(readTimeout), now);
+                logger.info("No response from " + latencies.key + " within " + readTimeout + " ms");
+            }
+        }
+
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+    }
+
+    /**
+     * @param percentile the percentile of the latencies the timeouts are computed from, between 0 and 1
+     */
+    public void setPercentile(double percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * @param multiplier the factor applied to the percentile
+     */
+    public void setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * @param window milliseconds after which the latencies are forgotten, they are kept between one and two windows
+     */
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    /**
+     * @param minSamples number of latencies recorded before the timeouts are computed, the ceilings are used before
+     */
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    public void setConnectTimeoutFloor(int connectTimeoutFloor) {
+        this.connectTimeoutFloor = connectTimeoutFloor;
+    }
+
+    public void setConnectTimeoutCeiling(int connectTimeoutCeiling) {
+        this.connectTimeoutCeiling = connectTimeoutCeiling;
+    }
+
+    public void setReadTimeoutFloor(int readTimeoutFloor) {
+        this.readTimeoutFloor = readTimeoutFloor;
+    }
+
+    public void setReadTimeoutCeiling(int readTimeoutCeiling) {
+        this.readTimeoutCeiling = readTimeoutCeiling;
+    }
+
+    /**
+     * @param bodyTimeout max inactivity of the socket in milliseconds while the body of the response is copied
+     */
+    public void setBodyTimeout(int bodyTimeout) {
+        this.bodyTimeout = bodyTimeout;
+    }
+
+    /**
+     * @param operations the OGC operations (REQUEST parameter, case insensitive) whose latencies are recorded apart
+     *                   from the other GET requests of their target
+     */
+    public void setOperations(List<String> operations) {
+        Set<String> names = new HashSet<String>();
+        for (String operation : operations) {
+            names.add(operation.trim().toLowerCase(Locale.ENGLISH));
+        }
+        this.operations = names;
+    }
+
+    /**
+     * @param maxKeys max number of targets and operations whose latencies are recorded separately
+     */
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+}
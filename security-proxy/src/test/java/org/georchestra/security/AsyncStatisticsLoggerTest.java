@@ -0,0 +1,116 @@
+package org.georchestra.security;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AsyncStatisticsLoggerTest {
+
+    private static final String CONSUMER = "security-proxy-statistics";
+
+    private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private volatile boolean block;
+
+    private final AsyncStatisticsLogger statistics = new AsyncStatisticsLogger() {
+        @Override
+        protected void write(Event event) {
+            if (block && CONSUMER.equals(Thread.currentThread().getName())) {
+                try {
+                    unblock.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            written.add(event.user + "|" + event.url + "|" + event.org);
+            threads.add(Thread.currentThread().getName());
+        }
+    };
+
+    @After
+    public void tearDown() throws Exception {
+        unblock.countDown();
+        statistics.destroy();
+    }
+
+    @Test
+    public void testLoggedByConsumer() throws Exception {
+        statistics.init();
+        statistics.log("user", "http://localhost/geoserver/wms?REQUEST=GetMap", "org");
+        statistics.log("other", "http://localhost/geoserver/wfs", "");
+        statistics.destroy();
+
+        assertEquals(2, written.size());
+        assertEquals("user|http://localhost/geoserver/wms?REQUEST=GetMap|org", written.get(0));
+        assertEquals("other|http://localhost/geoserver/wfs|", written.get(1));
+        assertEquals(CONSUMER, threads.get(0));
+        assertEquals(2, statistics.getLoggedCount());
+        assertEquals(0, statistics.getDroppedCount());
+    }
+
+    @Test
+    public void testLoggedByCallerWhenNotStarted() {
+        statistics.log("user", "http://localhost/geoserver/wms", "org");
+        assertEquals(1, written.size());
+        assertEquals(1, statistics.getCallerLoggedCount());
+    }
+
+    @Test
+    public void testDropOnOverflow() throws Exception {
+        statistics.setCapacity(4);
+        block = true;
+        statistics.init();
+        // the first event is held by the consumer, the next 4 fill the buffer
+        for (int i = 0; i < 10; i++) {
+            statistics.log("user", "http://localhost/" + i, "");
+            if (i == 0) {
+                waitForEmptyBuffer();
+            }
+        }
+        assertEquals(5, statistics.getDroppedCount());
+        assertEquals(4, statistics.getPendingCount());
+
+        unblock.countDown();
+        statistics.destroy();
+        assertEquals(5, written.size());
+        assertEquals(0, statistics.getCallerLoggedCount());
+    }
+
+    @Test
+    public void testCallerLogsOnOverflow() throws Exception {
+        statistics.setCapacity(2);
+        statistics.setOverflowPolicy(AsyncStatisticsLogger.OverflowPolicy.CALLER_LOGS);
+        block = true;
+        statistics.init();
+        statistics.log("user", "http://localhost/0", "");
+        waitForEmptyBuffer();
+        for (int i = 1; i < 4; i++) {
+            statistics.log("user", "http://localhost/" + i, "");
+        }
+
+        assertEquals(1, statistics.getCallerLoggedCount());
+        assertEquals(Collections.singletonList("user|http://localhost/3|"), written);
+        assertFalse(CONSUMER.equals(threads.get(0)));
+
+        unblock.countDown();
+        statistics.destroy();
+        assertEquals(4, written.size());
+        assertEquals(0, statistics.getDroppedCount());
+    }
+
+    private void waitForEmptyBuffer() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (statistics.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.georchestra.security;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CharsetSnifferTest {
+
+    private static final String CAPABILITIES = "<?xml version=\"1.0\" encoding='ISO-8859-1'?>\n"
+            + "<WMS_Capabilities version=\"1.3.0\"><Service><Name>WMS</Name></Service></WMS_Capabilities>";
+
+    @Test
+    public void testSniffProlog() throws Exception {
+        byte[] doc = CAPABILITIES.getBytes("ISO-8859-1");
+        assertEquals("ISO-8859-1", CharsetSniffer.sniff(doc, doc.length, null));
+    }
+
+    @Test
+    public void testSniffByteOrderMark() throws Exception {
+        byte[] doc = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, '<', 'a', '/', '>'};
+        assertEquals("UTF-8", CharsetSniffer.sniff(doc, doc.length, null));
+    }
+
+    @Test
+    public void testSniffMeta() throws Exception {
+        byte[] doc = "<html><head><meta charset=\"utf-8\"></head></html>".getBytes("ASCII");
+        assertEquals("utf-8", CharsetSniffer.sniff(doc, doc.length, null));
+    }
+
+    @Test
+    public void testNoCharset() throws Exception {
+        byte[] doc = "<gml:FeatureCollection/>".getBytes("ASCII");
+        assertNull(CharsetSniffer.sniff(doc, doc.length, null));
+    }
+
+    /**
+     * Only the beginning of the compressed document is available, the prolog must still be found.
+     */
+    @Test
+    public void testSniffTruncatedGzip() throws Exception {
+        StringBuilder doc = new StringBuilder(CAPABILITIES);
+        for (int i = 0; i < 10000; i++) {
+            doc.append("<Layer><Name>layer").append(i).append("</Name></Layer>");
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(doc.toString().getBytes("ISO-8859-1"));
+        gzip.close();
+
+        byte[] bytes = compressed.toByteArray();
+        assertEquals("ISO-8859-1", CharsetSniffer.sniff(bytes, CharsetSniffer.SNIFF_WINDOW, "gzip"));
+    }
+}
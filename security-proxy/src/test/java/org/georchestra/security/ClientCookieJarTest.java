@@ -0,0 +1,153 @@
+package org.georchestra.security;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientCookieJarTest {
+
+    private static final long NOW = 1400000000000L;
+    private static final String USER = "testadmin";
+
+    private static JsessionIds ids() {
+        JsessionIds ids = new JsessionIds();
+        ids.put("/", "JSESSIONID=ROOT");
+        ids.put("/geoserver/", "JSESSIONID=GS");
+        ids.put("/geoserver/web/", "JSESSIONID=WEB");
+        return ids;
+    }
+
+    private static ClientCookieJar jar(String secret) {
+        ClientCookieJar jar = new ClientCookieJar();
+        jar.setSecret(secret);
+        return jar;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        ClientCookieJar jar = jar("secret");
+        String value = jar.encode(ids(), USER, NOW);
+        // the ids are encrypted
+        assertFalse(value.contains("GS"));
+
+        JsessionIds decoded = jar.decode(value, USER, NOW + 1000);
+        assertEquals(3, decoded.size());
+        assertEquals("JSESSIONID=WEB", decoded.find("/geoserver/web/wicket"));
+        assertEquals("JSESSIONID=GS", decoded.find("/geoserver/wms"));
+        assertEquals("JSESSIONID=ROOT", decoded.find("/geonetwork/srv"));
+
+        // the instances sharing the secret read the cookies of each other
+        assertEquals(3, jar("secret").decode(value, USER, NOW).size());
+        // a random IV is used for each cookie
+        assertFalse(value.equals(jar.encode(ids(), USER, NOW)));
+    }
+
+    @Test
+    public void testBackends() {
+        ClientCookieJar jar = jar("secret");
+        JsessionIds ids = ids();
+        ids.putBackend("geoserver", "http://gs2/geoserver");
+        ids.putBackend("mapserver", "http://ms1/mapserver");
+
+        JsessionIds decoded = jar.decode(jar.encode(ids, USER, NOW), USER, NOW);
+        assertEquals(3, decoded.size());
+        assertEquals("JSESSIONID=GS", decoded.find("/geoserver/wms"));
+        assertEquals("http://gs2/geoserver", decoded.getBackend("geoserver"));
+        assertEquals("http://ms1/mapserver", decoded.getBackend("mapserver"));
+        assertNull(decoded.getBackend("geonetwork"));
+    }
+
+    @Test
+    public void testInvalidCookies() {
+        ClientCookieJar jar = jar("secret");
+        String value = jar.encode(ids(), USER, NOW);
+
+        assertNull(jar("other").decode(value, USER, NOW));
+        char last = value.charAt(10);
+        String tampered = value.substring(0, 10) + (last == 'A' ? 'B' : 'A') + value.substring(11);
+        assertNull(jar.decode(tampered, USER, NOW));
+        assertNull(jar.decode(value.substring(0, 40), USER, NOW));
+        assertNull(jar.decode("not base64 !", USER, NOW));
+        assertNull(jar.decode("", USER, NOW));
+    }
+
+    @Test
+    public void testOtherUser() {
+        ClientCookieJar jar = jar("secret");
+        String value = jar.encode(ids(), USER, NOW);
+        assertNull(jar.decode(value, "testuser", NOW));
+        assertNull(jar.decode(value, "", NOW));
+        assertNull(jar.decode(jar.encode(ids(), "", NOW), USER, NOW));
+        assertEquals(3, jar.decode(jar.encode(ids(), "", NOW), "", NOW).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoSecret() {
+        new ClientCookieJar().init();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNullSecret() {
+        ClientCookieJar jar = jar("secret");
+        jar.setSecret(null);
+        jar.init();
+    }
+
+    @Test
+    public void testShortSecret() {
+        for (String secret : new String[] { "", "change this secret", "                                  " }) {
+            try {
+                jar(secret).init();
+                fail(secret);
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        jar("0123456789abcdef0123456789abcdef").init();
+    }
+
+    @Test
+    public void testRandomKeys() {
+        ClientCookieJar jar = new ClientCookieJar();
+        jar.setAllowRandomKeys(true);
+        jar.init();
+        assertEquals(3, jar.decode(jar.encode(ids(), USER, NOW), USER, NOW).size());
+
+        ClientCookieJar other = new ClientCookieJar();
+        other.setAllowRandomKeys(true);
+        assertNull(other.decode(jar.encode(ids(), USER, NOW), USER, NOW));
+    }
+
+    @Test
+    public void testExpiry() {
+        ClientCookieJar jar = jar("secret");
+        jar.setTimeToLive(60);
+        String value = jar.encode(ids(), USER, NOW);
+        assertEquals(3, jar.decode(value, USER, NOW + 60000).size());
+        assertNull(jar.decode(value, USER, NOW + 60001));
+    }
+
+    @Test
+    public void testSetCookie() {
+        ClientCookieJar jar = jar("secret");
+        jar.setCookieName("jar");
+        jar.setPath("/sec");
+        jar.setSecure(true);
+        String setCookie = jar.toSetCookie(ids());
+        assertTrue(setCookie.startsWith("jar="));
+        assertTrue(setCookie.endsWith("; Path=/sec; HttpOnly; Secure"));
+
+        CookieTokenizer tokenizer = new CookieTokenizer("a=1; " + setCookie.substring(0, setCookie.indexOf(';')));
+        assertTrue(tokenizer.next());
+        assertFalse(jar.isJarCookie(tokenizer));
+        assertTrue(tokenizer.next());
+        assertTrue(jar.isJarCookie(tokenizer));
+
+        jar.setMaxCookieSize(100);
+        assertNull(jar.toSetCookie(ids()));
+    }
+}
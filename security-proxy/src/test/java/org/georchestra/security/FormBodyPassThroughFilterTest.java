@@ -0,0 +1,168 @@
+package org.georchestra.security;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FormBodyPassThroughFilterTest {
+
+    @Test
+    public void testIsFormPost() {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/sec/geoserver/wfs");
+        request.setContentType("application/x-www-form-urlencoded; charset=UTF-8");
+        assertTrue(FormBodyPassThroughFilter.isFormPost(request));
+
+        request.setContentType("text/xml");
+        assertFalse(FormBodyPassThroughFilter.isFormPost(request));
+
+        request = new MockHttpServletRequest("GET", "/sec/geoserver/wfs");
+        request.setContentType("application/x-www-form-urlencoded");
+        assertFalse(FormBodyPassThroughFilter.isFormPost(request));
+    }
+
+    @Test
+    public void testParameters() throws Exception {
+        byte[] body = "typeName=d&url=http%3A%2F%2Flocalhost%2Fgeoserver%2Fwfs&login".getBytes("UTF-8");
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/sec/geoserver/wfs");
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setQueryString("SERVICE=WFS&typeName=a%3Ab&typeName=c&flag&bad=%zz");
+        request.setContent(body);
+
+        FormBodyPassThroughFilter.PassThroughRequest wrapper = new FormBodyPassThroughFilter.PassThroughRequest(request);
+        assertEquals("WFS", wrapper.getParameter("SERVICE"));
+        // the values of the query string first, then the ones of the body
+        assertArrayEquals(new String[] { "a:b", "c", "d" }, wrapper.getParameterValues("typeName"));
+        assertEquals("", wrapper.getParameter("flag"));
+        assertEquals("%zz", wrapper.getParameter("bad"));
+        assertEquals("http://localhost/geoserver/wfs", wrapper.getParameter("url"));
+        assertEquals("", wrapper.getParameter("login"));
+        Map<?, ?> parameters = wrapper.getParameterMap();
+        assertEquals(6, parameters.size());
+
+        // the body is still forwarded as is
+        assertArrayEquals(body, ByteStreams.toByteArray(wrapper.getUnreadBody()));
+        assertArrayEquals(body, ByteStreams.toByteArray(wrapper.getInputStream()));
+    }
+
+    @Test
+    public void testUnreadBody() throws Exception {
+        byte[] body = "SERVICE=WFS&REQUEST=Transaction".getBytes("UTF-8");
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/sec/geoserver/wfs");
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setContent(body);
+
+        FormBodyPassThroughFilter.PassThroughRequest wrapper = new FormBodyPassThroughFilter.PassThroughRequest(request);
+        InputStream in = wrapper.getUnreadBody();
+        assertArrayEquals(body, ByteStreams.toByteArray(in));
+    }
+
+    @Test
+    public void testEmptyBody() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/sec/geoserver/wfs");
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setQueryString("SERVICE=WFS");
+        request.setContent(new byte[0]);
+
+        FormBodyPassThroughFilter.PassThroughRequest wrapper = new FormBodyPassThroughFilter.PassThroughRequest(request);
+        assertArrayEquals(new String[] { "WFS" }, wrapper.getParameterValues("SERVICE"));
+        assertEquals(1, wrapper.getParameterMap().size());
+        assertEquals(0, ByteStreams.toByteArray(wrapper.getUnreadBody()).length);
+    }
+
+    @Test
+    public void testReadBody() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/sec/geoserver/wfs") {
+            @Override
+            public int getContentLength() {
+                return 11;
+            }
+        };
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setQueryString("SERVICE=WFS");
+        // the body was parsed by the container before the filter
+        request.addParameter("SERVICE", "WFS");
+        request.addParameter("body", "value");
+
+        FormBodyPassThroughFilter.PassThroughRequest wrapper = new FormBodyPassThroughFilter.PassThroughRequest(request);
+        assertNull(wrapper.getUnreadBody());
+        assertEquals("value", wrapper.getParameter("body"));
+        assertEquals(2, wrapper.getParameterMap().size());
+    }
+
+    @Test
+    public void testStreamedBody() throws Exception {
+        byte[] body = "SERVICE=WFS&REQUEST=Transaction".getBytes("UTF-8");
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/sec/geoserver/wfs");
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setContent(body);
+        request.addParameter("SERVICE", "WFS");
+
+        // forwarded before its parameters are asked for, the body is not kept
+        FormBodyPassThroughFilter.PassThroughRequest wrapper = new FormBodyPassThroughFilter.PassThroughRequest(request);
+        InputStream in = wrapper.getUnreadBody();
+        assertFalse(in instanceof ByteArrayInputStream);
+        assertArrayEquals(body, ByteStreams.toByteArray(in));
+        assertEquals("WFS", wrapper.getParameter("SERVICE"));
+    }
+
+    @Test
+    public void testLargeBody() throws Exception {
+        final ServletRequest[] filtered = new ServletRequest[1];
+        FilterChain chain = new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                filtered[0] = request;
+            }
+        };
+        FormBodyPassThroughFilter filter = new FormBodyPassThroughFilter();
+        filter.setMaxBodySize(10);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/sec/geoserver/wfs");
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setContent("SERVICE=WFS".getBytes("UTF-8"));
+        // too large to be kept, left to the container
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+        assertTrue(filtered[0] == request);
+
+        request.setContent("SERVICE=WF".getBytes("UTF-8"));
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+        assertTrue(filtered[0] instanceof FormBodyPassThroughFilter.PassThroughRequest);
+
+        // a body longer than its length is not kept either
+        MockHttpServletRequest lying = new MockHttpServletRequest("POST", "/sec/geoserver/wfs") {
+            @Override
+            public int getContentLength() {
+                return 4;
+            }
+        };
+        lying.setContentType("application/x-www-form-urlencoded");
+        lying.setQueryString("SERVICE=WFS");
+        lying.setContent("REQUEST=Transaction".getBytes("UTF-8"));
+        FormBodyPassThroughFilter.PassThroughRequest wrapper = new FormBodyPassThroughFilter.PassThroughRequest(lying,
+                10);
+        assertEquals("WFS", wrapper.getParameter("SERVICE"));
+        assertNull(wrapper.getParameter("REQUEST"));
+        try {
+            wrapper.getUnreadBody();
+            fail();
+        } catch (IOException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+}
@@ -1,10 +1,30 @@
 package org.georchestra.security;
 
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicHttpResponse;
 import org.junit.Test;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -34,6 +54,111 @@ public class HeadersManagementStrategyTest {
         assertTrue(hasHeader("other_header", proxyRequest));
     }
 
+    /**
+     * Show that requests are not serialized: all the threads must be configuring their request headers at the
+     * same time for the barrier to be passed. With a lock on the strategy only one thread would reach the barrier
+     * and the test would time out.
+     */
+    @Test
+    public void testConfigureRequestHeaders_Concurrently() throws Exception {
+        final int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        HeaderProvider waitForOtherThreads = new HeaderProvider() {
+            @Override
+            protected Collection<Header> getCustomRequestHeaders(HttpSession session, HttpServletRequest originalRequest) {
+                try {
+                    barrier.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException("requests are serialized", e);
+                }
+                return Collections.emptyList();
+            }
+        };
+        final HeadersManagementStrategy headerManagement = new HeadersManagementStrategy();
+        headerManagement.setHeaderProviders(Collections.singletonList(waitForOtherThreads));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<HttpRequestBase>> tasks = new ArrayList<Callable<HttpRequestBase>>();
+            for (int i = 0; i < threads; i++) {
+                tasks.add(new Callable<HttpRequestBase>() {
+                    @Override
+                    public HttpRequestBase call() throws Exception {
+                        HttpRequestBase proxyRequest = new HttpGet("http://localhost/geonetwork");
+                        headerManagement.configureRequestHeaders(createTestRequest(), proxyRequest);
+                        return proxyRequest;
+                    }
+                });
+            }
+            List<Future<HttpRequestBase>> results = executor.invokeAll(tasks, 30, TimeUnit.SECONDS);
+            assertEquals(threads, results.size());
+            for (Future<HttpRequestBase> result : results) {
+                assertTrue(hasHeader("other_header", result.get()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCookies() throws Exception {
+        HeadersManagementStrategy headerManagement = new HeadersManagementStrategy();
+        Map<String, String> targets = Collections.singletonMap("geoserver", "http://localhost:8080/geoserver/");
+        MockHttpServletRequest originalRequest = new MockHttpServletRequest("GET", "/sec/geoserver/wms");
+        originalRequest.addHeader("Cookie", " JSESSIONID=PROXY;; a=1 ;b=2");
+        originalRequest.addHeader("Cookie", "c=3");
+
+        HttpResponse backendResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        backendResponse.addHeader("Set-Cookie", "JSESSIONID=ROOT; Path=/; HttpOnly");
+        backendResponse.addHeader("Set-Cookie", "JSESSIONID=GS; path=/geoserver/ ; HttpOnly");
+        backendResponse.addHeader("Set-Cookie", "lang=fr; Path=/geoserver/web");
+        MockHttpServletResponse finalResponse = new MockHttpServletResponse();
+        headerManagement.copyResponseHeaders(originalRequest, "/sec/geoserver/wms", backendResponse, finalResponse,
+                targets);
+
+        // the JSESSIONID cookies are kept in the session, the others get the path of the proxied application
+        assertEquals(Collections.singletonList("lang=fr; Path= /geoserver"), finalResponse.getHeaders("Set-Cookie"));
+
+        HttpRequestBase proxyRequest = new HttpGet("http://localhost:8080/geoserver/wms");
+        headerManagement.configureRequestHeaders(originalRequest, proxyRequest);
+        assertEquals("a=1; b=2; c=3; JSESSIONID=GS", proxyRequest.getFirstHeader("Cookie").getValue());
+
+        proxyRequest = new HttpGet("http://localhost:8080/geonetwork/srv");
+        headerManagement.configureRequestHeaders(originalRequest, proxyRequest);
+        assertEquals("a=1; b=2; c=3; JSESSIONID=ROOT", proxyRequest.getFirstHeader("Cookie").getValue());
+    }
+
+    @Test
+    public void testCookieJar() throws Exception {
+        HeadersManagementStrategy headerManagement = new HeadersManagementStrategy();
+        ClientCookieJar cookieJar = new ClientCookieJar();
+        cookieJar.setSecret("secret");
+        headerManagement.setCookieJar(cookieJar);
+        Map<String, String> targets = Collections.singletonMap("geoserver", "http://localhost:8080/geoserver/");
+        MockHttpServletRequest originalRequest = new MockHttpServletRequest("GET", "/sec/geoserver/wms");
+        originalRequest.addHeader("Cookie", "a=1");
+
+        HttpResponse backendResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        backendResponse.addHeader("Set-Cookie", "JSESSIONID=GS; path=/geoserver/ ; HttpOnly");
+        MockHttpServletResponse finalResponse = new MockHttpServletResponse();
+        headerManagement.copyResponseHeaders(originalRequest, "/sec/geoserver/wms", backendResponse, finalResponse,
+                targets);
+
+        // the session id goes to the client in the cookie of the jar, no session is created
+        assertEquals(null, originalRequest.getSession(false));
+        List<?> setCookies = finalResponse.getHeaders("Set-Cookie");
+        assertEquals(1, setCookies.size());
+        String setCookie = setCookies.get(0).toString();
+        String jar = setCookie.substring(0, setCookie.indexOf(';'));
+        assertTrue(jar.startsWith("SP_BACKEND_SESSIONS="));
+
+        MockHttpServletRequest nextRequest = new MockHttpServletRequest("GET", "/sec/geoserver/wms");
+        nextRequest.addHeader("Cookie", "a=1; " + jar);
+        HttpRequestBase proxyRequest = new HttpGet("http://localhost:8080/geoserver/wms");
+        headerManagement.configureRequestHeaders(nextRequest, proxyRequest);
+        assertEquals("a=1; JSESSIONID=GS", proxyRequest.getFirstHeader("Cookie").getValue());
+        assertEquals(null, nextRequest.getSession(false));
+    }
 
     private MockHttpServletRequest createTestRequest() {
         MockHttpServletRequest originalRequest = new MockHttpServletRequest("get", "http://georchestra.org/geonetwork");
@@ -0,0 +1,82 @@
+package org.georchestra.security;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsessionIdsTest {
+
+    @Test
+    public void testFindLongestPath() {
+        JsessionIds ids = new JsessionIds();
+        assertNull(ids.find("/geoserver/wms"));
+
+        ids.put("/", "JSESSIONID=ROOT");
+        ids.put("/geoserver/web/", "JSESSIONID=WEB");
+        ids.put("/geonetwork/", "JSESSIONID=GN");
+        assertEquals("JSESSIONID=WEB", ids.find("/geoserver/web/wicket"));
+        assertEquals("JSESSIONID=ROOT", ids.find("/geoserver/wms"));
+        assertEquals("JSESSIONID=GN", ids.find("/geonetwork/srv/fre/catalog.search"));
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    public void testPutReplacesLongerPaths() {
+        JsessionIds ids = new JsessionIds();
+        ids.put("/geoserver/web/", "JSESSIONID=WEB");
+        ids.put("/geoserver/", "JSESSIONID=GS1");
+        ids.put("/geoserver/", "JSESSIONID=GS2");
+        assertEquals(1, ids.size());
+        assertEquals("JSESSIONID=GS2", ids.find("/geoserver/web/wicket"));
+
+        // a cookie without path does not replace the others
+        ids.put("", "JSESSIONID=NOPATH");
+        assertEquals(2, ids.size());
+        assertEquals("JSESSIONID=GS2", ids.find("/geoserver/wms"));
+        assertEquals("JSESSIONID=NOPATH", ids.find("/mapfishapp/"));
+    }
+
+    @Test
+    public void testFromMap() {
+        Map<String, String> attribute = new LinkedHashMap<String, String>();
+        attribute.put("/geoserver/; HttpOnly", " JSESSIONID=GS");
+        attribute.put("/", "JSESSIONID=ROOT");
+        JsessionIds ids = JsessionIds.fromMap(attribute);
+        assertEquals("JSESSIONID=GS", ids.find("/geoserver/wms"));
+        assertEquals("JSESSIONID=ROOT", ids.find("/mapfishapp/"));
+    }
+
+    @Test
+    public void testCookieTokenizer() {
+        String setCookie = " a=1;;b=2 ; JSESSIONID=X; Path=/geoserver/ ; HttpOnly";
+        int pathIndex = CookieTokenizer.indexOfPath(setCookie);
+        CookieTokenizer tokenizer = new CookieTokenizer(setCookie, pathIndex);
+        StringBuilder tokens = new StringBuilder();
+        while (tokenizer.next()) {
+            tokens.append('[');
+            tokenizer.appendTo(tokens);
+            tokens.append(']');
+        }
+        assertEquals("[a=1][b=2][JSESSIONID=X]", tokens.toString());
+        assertEquals("/geoserver/", CookieTokenizer.path(setCookie, pathIndex));
+
+        assertEquals(-1, CookieTokenizer.indexOfPath("a=1; HttpOnly"));
+        assertEquals("", CookieTokenizer.path("a=1; HttpOnly", -1));
+        assertEquals(5, CookieTokenizer.indexOfPath("a=1; PATH=/x"));
+
+        tokenizer = new CookieTokenizer("JSESSIONID=A; JSESSIONIDX");
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.startsWith("JSESSIONID"));
+        assertEquals("JSESSIONID=A", tokenizer.token());
+        assertTrue(tokenizer.next());
+        assertFalse(tokenizer.startsWith("JSESSIONID=A"));
+        assertFalse(tokenizer.next());
+        assertFalse(new CookieTokenizer(" ; ;").next());
+    }
+}
@@ -0,0 +1,150 @@
+package org.georchestra.security;
+
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.ldap.search.LdapUserSearch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.directory.BasicAttributes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LdapUserDetailsRequestHeaderProviderTest {
+
+    private final AtomicInteger searches = new AtomicInteger();
+    private volatile RuntimeException failure;
+    private volatile CountDownLatch blocked;
+    private volatile String blockedUser = "testadmin";
+    private LdapUserDetailsRequestHeaderProvider provider;
+
+    @Before
+    public void setUp() {
+        LdapUserSearch userSearch = new LdapUserSearch() {
+            @Override
+            public DirContextOperations searchForUser(String username) {
+                searches.incrementAndGet();
+                if (failure != null) {
+                    throw failure;
+                }
+                if (blocked != null && username.equals(blockedUser)) {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                BasicAttributes attributes = new BasicAttributes();
+                attributes.put("mail", username + "@georchestra.org");
+                return new DirContextAdapter(attributes, new DistinguishedName("uid=" + username));
+            }
+        };
+        provider = new LdapUserDetailsRequestHeaderProvider(userSearch,
+                Collections.singletonMap("sec-email", "mail"));
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken("testadmin", "secret"));
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+        if (blocked != null) {
+            blocked.countDown();
+        }
+        provider.destroy();
+    }
+
+    /**
+     * The attributes read for a user are shared by all the sessions of this user.
+     */
+    @Test
+    public void testAttributesAreCachedAcrossSessions() {
+        Collection<Header> first = provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest());
+        Collection<Header> second = provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest());
+
+        assertEquals(1, searches.get());
+        assertEquals(1, first.size());
+        assertEquals("testadmin@georchestra.org", first.iterator().next().getValue());
+        assertEquals(first, second);
+        assertEquals(1, provider.getCacheStats().hitCount());
+        assertEquals(1, provider.getCacheStats().missCount());
+    }
+
+    @Test
+    public void testInvalidate() {
+        provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest());
+        provider.invalidate("testadmin");
+        provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest());
+
+        assertEquals(2, searches.get());
+    }
+
+    /**
+     * A failed lookup forwards the request without the attributes, and is not cached.
+     */
+    @Test
+    public void testLookupFailure() {
+        failure = new IllegalStateException("LDAP is down");
+        assertTrue(provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest()).isEmpty());
+
+        failure = null;
+        assertEquals(1, provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest()).size());
+        assertEquals(2, searches.get());
+    }
+
+    /**
+     * A request does not wait more than lookupTimeout for a slow LDAP, it is refused rather than forwarded without
+     * the attributes.
+     */
+    @Test
+    public void testLookupTimeout() {
+        provider.setLookupTimeout(50);
+        blocked = new CountDownLatch(1);
+
+        long start = System.currentTimeMillis();
+        try {
+            provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest());
+            fail();
+        } catch (UserDetailsUnavailableException e) {
+            assertEquals(1, e.getRetryAfter());
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        blocked.countDown();
+        assertEquals(1, provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest()).size());
+    }
+
+    /**
+     * The refreshes run on their own threads, a slow refresh does not delay the users which are not cached.
+     */
+    @Test
+    public void testRefreshDoesNotDelayLookups() throws Exception {
+        provider.setLookupThreads(1);
+        provider.setRefreshThreads(1);
+        provider.setCacheRefreshAfter(1);
+        provider.setLookupTimeout(2000);
+        Collection<Header> first = provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest());
+
+        blocked = new CountDownLatch(1);
+        Thread.sleep(1100);
+        // the refresh blocks in the background, the previous value is served
+        assertEquals(first, provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest()));
+
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("other", "secret"));
+        Collection<Header> other = provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest());
+        assertEquals("other@georchestra.org", other.iterator().next().getValue());
+    }
+}
@@ -0,0 +1,100 @@
+package org.georchestra.security;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PoolingHttpClientFactoryTest {
+
+    private static final String GEOSERVER = "http://geoserver.example.org:8080/geoserver/";
+    private static final String GEONETWORK = "http://geonetwork.example.org:8080/geonetwork/";
+
+    private PoolingHttpClientFactory factory;
+    private ProxySelector defaultProxySelector;
+
+    @Before
+    public void setUp() {
+        defaultProxySelector = ProxySelector.getDefault();
+        factory = new PoolingHttpClientFactory();
+        factory.setMaxTotalConnections(50);
+        factory.setMaxConnectionsPerRoute(5);
+        factory.setMaxConnectionsPerTarget(Collections.singletonMap(GEOSERVER, 30));
+    }
+
+    @After
+    public void tearDown() {
+        factory.destroy();
+        ProxySelector.setDefault(defaultProxySelector);
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        DefaultHttpClient client = (DefaultHttpClient) factory.getObject();
+
+        assertEquals(50, factory.getConnectionManager().getMaxTotal());
+        assertEquals(30, factory.getConnectionManager().getMaxPerRoute(route(client, GEOSERVER + "wms")));
+        assertEquals(5, factory.getConnectionManager().getMaxPerRoute(route(client, GEONETWORK)));
+    }
+
+    /**
+     * With an http proxy, the limits apply to the routes through the proxy the requests actually take.
+     */
+    @Test
+    public void testLimitsThroughHttpProxy() throws Exception {
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<java.net.Proxy> select(URI uri) {
+                return Collections.singletonList(new java.net.Proxy(java.net.Proxy.Type.HTTP,
+                        InetSocketAddress.createUnresolved("proxy.example.org", 3128)));
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress address, IOException e) {
+            }
+        });
+        DefaultHttpClient client = (DefaultHttpClient) factory.getObject();
+
+        HttpRoute route = route(client, GEOSERVER + "wms");
+        assertNotNull(route.getProxyHost());
+        assertEquals("proxy.example.org", route.getProxyHost().getHostName());
+        assertEquals(30, factory.getConnectionManager().getMaxPerRoute(route));
+        assertEquals(5, factory.getConnectionManager().getMaxPerRoute(route(client, GEONETWORK)));
+    }
+
+    @Test
+    public void testDestroy() throws Exception {
+        HttpClient client = factory.getObject();
+        assertSame(client, factory.getObject());
+
+        factory.destroy();
+        assertNull(factory.getConnectionManager());
+
+        // a new client with a new pool is created on demand
+        HttpClient created = factory.getObject();
+        assertNotSame(client, created);
+        assertNotNull(factory.getConnectionManager());
+        factory.destroy();
+        factory.destroy();
+    }
+
+    private static HttpRoute route(DefaultHttpClient client, String url) throws Exception {
+        return PoolingHttpClientFactory.toRoute(client.getRoutePlanner(), url);
+    }
+}
@@ -1,11 +1,14 @@
 package org.georchestra.security;
 
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
 import org.georchestra.security.permissions.Permissions;
 import org.georchestra.security.permissions.UriMatcher;
 import org.junit.Before;
@@ -17,6 +20,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -25,6 +29,7 @@ public class ProxyTest {
     private Proxy proxy;
     private BasicHttpResponse response;
     private boolean executed = true;
+    private HttpRequestBase executedRequest;
     private MockHttpServletRequest request;
     private MockHttpServletResponse httpResponse;
 
@@ -34,8 +39,9 @@ public class ProxyTest {
         executed = false;
         proxy = new Proxy() {
             @Override
-            protected HttpResponse executeHttpRequest(HttpClient httpclient, HttpRequestBase proxyingRequest) throws IOException {
+            protected HttpResponse executeHttpRequest(HttpClient httpclient, HttpRequestBase proxyingRequest, HttpContext context) throws IOException {
                 executed = true;
+                executedRequest = proxyingRequest;
                 return response;
             }
         };
@@ -106,6 +112,36 @@ public class ProxyTest {
         assertFalse(executed);
     }
 
+    /**
+     * The parameters of the query string of a form post whose body is forwarded as is are forwarded once, in the url.
+     */
+    @Test
+    public void testPostEmptyForm() throws Exception {
+        request = new MockHttpServletRequest("POST", "/extractorapp/wfs");
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setQueryString("SERVICE=WFS&REQUEST=GetCapabilities");
+        request.setContent(new byte[0]);
+        proxy.handlePOSTRequest(new FormBodyPassThroughFilter.PassThroughRequest(request), httpResponse);
+
+        assertTrue(executed);
+        assertEquals("SERVICE=WFS&REQUEST=GetCapabilities", executedRequest.getURI().getRawQuery());
+        assertEquals(0, ByteStreams.toByteArray(((HttpPost) executedRequest).getEntity().getContent()).length);
+    }
+
+    @Test
+    public void testPostForm() throws Exception {
+        byte[] body = "typeName=topp%3Astates&outputFormat=json".getBytes("UTF-8");
+        request = new MockHttpServletRequest("POST", "/extractorapp/wfs");
+        request.setContentType("application/x-www-form-urlencoded");
+        request.setQueryString("SERVICE=WFS&REQUEST=GetFeature");
+        request.setContent(body);
+        proxy.handlePOSTRequest(new FormBodyPassThroughFilter.PassThroughRequest(request), httpResponse);
+
+        assertTrue(executed);
+        assertEquals("SERVICE=WFS&REQUEST=GetFeature", executedRequest.getURI().getRawQuery());
+        assertArrayEquals(body, ByteStreams.toByteArray(((HttpPost) executedRequest).getEntity().getContent()));
+    }
+
     @Test
     public void testGetUrlIllegalUrl() throws Exception {
         proxy.handleUrlGETRequest(request, httpResponse, "http://www.google.com:8080/path");
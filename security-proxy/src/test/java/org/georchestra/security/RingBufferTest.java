@@ -0,0 +1,76 @@
+package org.georchestra.security;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+
+    @Test
+    public void testOfferPoll() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+        assertEquals(4, buffer.capacity());
+        assertNull(buffer.poll());
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(i));
+            }
+            assertFalse(buffer.offer(4));
+            assertEquals(4, buffer.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Integer.valueOf(i), buffer.poll());
+            }
+            assertNull(buffer.poll());
+            assertEquals(0, buffer.size());
+        }
+        assertEquals(2, new RingBuffer<Integer>(1).capacity());
+    }
+
+    /**
+     * Every element offered successfully by concurrent producers is polled exactly once, in the order of each
+     * producer.
+     */
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 100000;
+        final RingBuffer<int[]> buffer = new RingBuffer<int[]>(64);
+        final AtomicInteger accepted = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!buffer.offer(new int[] { producer, i })) {
+                            Thread.yield();
+                        }
+                        accepted.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        int[] next = new int[producers];
+        int polled = 0;
+        while (polled < producers * perProducer) {
+            int[] element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[element[0]]++, element[1]);
+            polled++;
+        }
+        done.await();
+        assertEquals(producers * perProducer, accepted.get());
+        assertNull(buffer.poll());
+    }
+}
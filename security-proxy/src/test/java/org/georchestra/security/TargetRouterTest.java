@@ -0,0 +1,72 @@
+package org.georchestra.security;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TargetRouterTest {
+
+    private TargetRouter router;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> targets = new HashMap<String, String>();
+        targets.put("geoserver", "http://localhost:8080/geoserver/");
+        targets.put("geonetwork", "http://localhost:8080/geonetwork");
+        targets.put("mapfishapp/ws", "http://ws.localhost:8081/ws");
+        router = new TargetRouter(targets, "http://localhost:8080/default/");
+    }
+
+    @Test
+    public void testFindTarget() {
+        assertEquals("http://localhost:8080/geoserver/wms", router.findTarget("/geoserver/wms"));
+        assertEquals("http://localhost:8080/geoserver/wms/", router.findTarget("/geoserver/wms/"));
+        assertEquals("http://localhost:8080/geoserver/", router.findTarget("/geoserver"));
+        assertEquals("http://localhost:8080/geoserver/", router.findTarget("/geoserver/"));
+        assertEquals("http://localhost:8080/geonetwork/srv/eng/main.home",
+                router.findTarget("/geonetwork/srv/eng/main.home"));
+        assertEquals("http://localhost:8080/geoserver/wms", router.findTarget("geoserver/wms"));
+    }
+
+    @Test
+    public void testFindTargetLongestKey() {
+        assertEquals("http://ws.localhost:8081/ws/print", router.findTarget("/mapfishapp/ws/print"));
+        assertEquals("http://localhost:8080/default/mapfishapp/", router.findTarget("/mapfishapp/"));
+    }
+
+    @Test
+    public void testFindTargetDefault() throws Exception {
+        assertEquals("http://localhost:8080/default/geoserverx/wms", router.findTarget("/geoserverx/wms"));
+        assertEquals("http://localhost:8080/default/", router.findTarget("/"));
+        assertEquals("http://localhost:8080/default/other", router.findTarget("other"));
+
+        assertNull(new TargetRouter(new HashMap<String, String>(), null).findTarget("/geoserver/wms"));
+    }
+
+    @Test
+    public void testFindRoute() {
+        TargetRouter.Route route = router.findRoute("/geoserver/wms");
+        assertEquals("geoserver", route.getKey());
+        assertEquals("http://localhost:8080/geoserver/", route.getBaseURI().toString());
+        assertArrayEquals(new String[] { "geoserver" }, route.getPathSegments());
+        assertSame(route, router.findRoute("/geoserver"));
+        assertNull(router.findRoute("/geo"));
+        assertNull(router.findRoute("/"));
+    }
+
+    @Test
+    public void testNormalize() {
+        String path = "/geoserver/wms";
+        assertSame(path, TargetRouter.normalize(path));
+        assertEquals("/geoserver/wms", TargetRouter.normalize("//geoserver//wms"));
+        assertEquals("/geoserver/wms/", TargetRouter.normalize("/geoserver///wms//"));
+        assertEquals("/", TargetRouter.normalize("//"));
+    }
+}
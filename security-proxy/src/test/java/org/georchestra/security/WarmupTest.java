@@ -0,0 +1,124 @@
+package org.georchestra.security;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class WarmupTest {
+
+    private ServerSocket server;
+    private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+    private PoolingHttpClientFactory factory;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        accepted.add(server.accept());
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        factory = new PoolingHttpClientFactory();
+        factory.setMaxConnectionsPerRoute(3);
+        factory.setEvictionInterval(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        factory.destroy();
+        server.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testPreconnect() throws Exception {
+        String target = "http://localhost:" + server.getLocalPort() + "/geoserver";
+        assertEquals(2, factory.preconnect(target, 2));
+        assertEquals(2, factory.getConnectionManager().getTotalStats().getAvailable());
+
+        // the pooled connections are reused, and no more than the max per route are opened
+        assertEquals(1, factory.preconnect(target, 5));
+        assertEquals(3, factory.getConnectionManager().getTotalStats().getAvailable());
+        assertEquals(0, factory.getConnectionManager().getTotalStats().getLeased());
+        for (int i = 0; i < 50 && accepted.size() < 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, accepted.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testPreconnectRefused() throws Exception {
+        int port = server.getLocalPort();
+        server.close();
+        factory.preconnect("http://localhost:" + port + "/geoserver", 1);
+    }
+
+    @Test
+    public void testRequest() {
+        HttpServletRequest request = Warmup.request("/geoserver/wms?SERVICE=WMS&REQUEST=GetCapabilities&a=1&a=2&b");
+        assertEquals("GET", request.getMethod());
+        assertEquals("/geoserver/wms", request.getRequestURI());
+        assertEquals("SERVICE=WMS&REQUEST=GetCapabilities&a=1&a=2&b", request.getQueryString());
+        assertEquals("", request.getContextPath());
+        assertEquals("127.0.0.1", request.getRemoteAddr());
+        assertEquals("GetCapabilities", request.getParameter("REQUEST"));
+        assertArrayEquals(new String[] { "1", "2" }, request.getParameterValues("a"));
+        assertEquals("", request.getParameter("b"));
+        assertNull(request.getParameter("c"));
+        assertNull(request.getHeader("Cookie"));
+        assertEquals(-1, request.getContentLength());
+
+        assertNull(request.getSession(false));
+        assertNotNull(request.getSession());
+        assertSame(request.getSession(), request.getSession(false));
+        request.getSession().setAttribute("key", "value");
+        assertEquals("value", request.getSession(false).getAttribute("key"));
+    }
+
+    @Test
+    public void testParameters() {
+        Map<String, String[]> parameters = Warmup.parameters("bbox=0%2C0%2C1%2C1&&layers=a+b");
+        assertEquals(2, parameters.size());
+        assertArrayEquals(new String[] { "0,0,1,1" }, parameters.get("bbox"));
+        assertArrayEquals(new String[] { "a b" }, parameters.get("layers"));
+        assertEquals(0, Warmup.parameters(null).size());
+    }
+
+    @Test
+    public void testResponse() throws IOException {
+        HttpServletResponse response = Warmup.response();
+        response.setStatus(200);
+        response.getOutputStream().write(new byte[] { 1, 2, 3 });
+        response.getWriter().write("discarded");
+        assertEquals("UTF-8", response.getCharacterEncoding());
+        assertEquals("/sec/x", response.encodeRedirectURL("/sec/x"));
+    }
+}
@@ -0,0 +1,105 @@
+package org.georchestra.security.balancer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BackendPoolTest {
+
+    private static final long EJECTION = TimeUnit.SECONDS.toNanos(30);
+
+    private BackendPool pool;
+    private Backend first;
+    private Backend second;
+    private Backend third;
+
+    @Before
+    public void setUp() {
+        pool = new BackendPool(Arrays.asList("http://gs1/geoserver/", "http://gs2/geoserver", "http://gs3/geoserver"));
+        first = pool.getBackends().get(0);
+        second = pool.getBackends().get(1);
+        third = pool.getBackends().get(2);
+    }
+
+    @Test
+    public void testUrl() {
+        assertEquals("http://gs1/geoserver", first.getUrl());
+        assertEquals("http://gs2/geoserver", second.getUrl());
+    }
+
+    @Test
+    public void testLeastOutstandingRequests() {
+        first.started();
+        first.started();
+        third.started();
+        assertSame(second, pool.select(null, 0));
+        second.started();
+        second.started();
+        second.started();
+        assertSame(third, pool.select(null, 0));
+    }
+
+    @Test
+    public void testIdleBackendsShareTheRequests() {
+        assertNotSame(pool.select(null, 0), pool.select(null, 0));
+    }
+
+    @Test
+    public void testEjectedAfterConsecutiveFailures() {
+        for (int i = 0; i < 3; i++) {
+            first.started();
+            first.completed(true, 3, EJECTION, 0);
+        }
+        assertTrue(first.isEjected(1));
+        assertEquals(0, first.getOutstandingRequests());
+        for (int i = 0; i < 10; i++) {
+            assertNotSame(first, pool.select(null, 1));
+        }
+        // back once the ejection is over
+        assertFalse(first.isEjected(EJECTION));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        first.started();
+        first.completed(true, 2, EJECTION, 0);
+        first.started();
+        first.completed(false, 2, EJECTION, 0);
+        first.started();
+        first.completed(true, 2, EJECTION, 0);
+        assertFalse(first.isEjected(1));
+    }
+
+    @Test
+    public void testAllEjected() {
+        first.eject(0, EJECTION, "test");
+        second.eject(0, EJECTION, "test");
+        third.eject(0, EJECTION, "test");
+        second.started();
+        third.started();
+        // the requests are still forwarded rather than refused
+        assertSame(first, pool.select(null, 1));
+        first.reinstate();
+        assertFalse(first.isEjected(1));
+    }
+
+    @Test
+    public void testSticky() {
+        second.started();
+        second.started();
+        assertSame(second, pool.select("http://gs2/geoserver", 0));
+        // not bound to an ejected backend
+        second.eject(0, EJECTION, "test");
+        assertNotSame(second, pool.select("http://gs2/geoserver", 1));
+        // nor to an unknown one
+        assertNotSame(second, pool.select("http://gs4/geoserver", 1));
+    }
+}
@@ -0,0 +1,93 @@
+package org.georchestra.security.balancer;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.georchestra.security.ClientCookieJar;
+import org.georchestra.security.HeadersManagementStrategy;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class LoadBalancerTest {
+
+    private static final Map<String, String> TARGETS = Collections.singletonMap("geoserver",
+            "http://localhost:8080/geoserver/");
+
+    private LoadBalancer balancer;
+
+    @Before
+    public void setUp() {
+        balancer = new LoadBalancer();
+        balancer.setBackends(Collections.singletonMap("geoserver",
+                Arrays.asList("http://gs1/geoserver/", "http://gs2/geoserver/")));
+    }
+
+    private static HttpResponse setsSessionId() {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Set-Cookie", "JSESSIONID=GS; Path=/geoserver");
+        return response;
+    }
+
+    @Test
+    public void testStickySession() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/sec/geoserver/wms");
+        LoadBalancer.Lease lease = balancer.acquire("geoserver", request);
+        String backend = lease.getBackend().getUrl();
+        lease.responded(setsSessionId(), request);
+        lease.release();
+        assertNotNull(request.getSession(false));
+
+        MockHttpServletRequest next = new MockHttpServletRequest("GET", "/sec/geoserver/wms");
+        next.setSession(request.getSession(false));
+        for (int i = 0; i < 4; i++) {
+            // the other backend has fewer outstanding requests
+            LoadBalancer.Lease other = balancer.acquire("geoserver", next);
+            assertEquals(backend, other.getBackend().getUrl());
+        }
+    }
+
+    /**
+     * With a cookie jar, the backend goes back to the client with the session id and no session is created.
+     */
+    @Test
+    public void testStickyCookie() {
+        ClientCookieJar cookieJar = new ClientCookieJar();
+        cookieJar.setSecret("secret");
+        balancer.setCookieJar(cookieJar);
+        HeadersManagementStrategy headerManagement = new HeadersManagementStrategy();
+        headerManagement.setCookieJar(cookieJar);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/sec/geoserver/wms");
+        LoadBalancer.Lease lease = balancer.acquire("geoserver", request);
+        String backend = lease.getBackend().getUrl();
+        HttpResponse response = setsSessionId();
+        lease.responded(response, request);
+        lease.release();
+        MockHttpServletResponse finalResponse = new MockHttpServletResponse();
+        headerManagement.copyResponseHeaders(request, "/sec/geoserver/wms", response, finalResponse, TARGETS);
+        assertNull(request.getSession(false));
+
+        List<?> setCookies = finalResponse.getHeaders("Set-Cookie");
+        assertEquals(1, setCookies.size());
+        String setCookie = setCookies.get(0).toString();
+        MockHttpServletRequest next = new MockHttpServletRequest("GET", "/sec/geoserver/wms");
+        next.addHeader("Cookie", setCookie.substring(0, setCookie.indexOf(';')));
+        for (int i = 0; i < 4; i++) {
+            LoadBalancer.Lease other = balancer.acquire("geoserver", next);
+            assertEquals(backend, other.getBackend().getUrl());
+        }
+        assertEquals(backend, cookieJar.getBackend(next, "geoserver"));
+        assertNull(next.getSession(false));
+    }
+}
@@ -0,0 +1,202 @@
+package org.georchestra.security.cache;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.georchestra.security.HeaderNames;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OgcResponseCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpResponse backendResponse;
+    private volatile HttpGet revalidationRequest;
+    private OgcResponseCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new OgcResponseCache() {
+            @Override
+            protected HttpResponse executeHttpRequest(HttpClient httpClient, HttpGet conditionalRequest) {
+                revalidationRequest = conditionalRequest;
+                return backendResponse;
+            }
+        };
+    }
+
+    private static HttpGet request(String url, String roles) {
+        HttpGet request = new HttpGet(url);
+        request.setHeader(HeaderNames.SEC_ROLES, roles);
+        return request;
+    }
+
+    private static HttpResponse response(int status, String body) throws IOException {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "");
+        if (body != null) {
+            StringEntity entity = new StringEntity(body);
+            entity.setContentType("application/xml");
+            response.setEntity(entity);
+        }
+        response.setHeader("ETag", "\"v1\"");
+        return response;
+    }
+
+    @Test
+    public void testKey() {
+        String key = cache.key(request("http://localhost:8080/geoserver/wms?SERVICE=WMS&REQUEST=GetCapabilities", "ROLE_A"));
+        assertNotNull(key);
+        assertEquals(key, cache.key(request("http://LOCALHOST:8080/geoserver/wms?request=GetCapabilities&service=WMS", "ROLE_A")));
+        assertTrue(!key.equals(cache.key(request("http://localhost:8080/geoserver/wms?SERVICE=WMS&REQUEST=GetCapabilities", "ROLE_B"))));
+
+        assertNull(cache.key(request("http://localhost:8080/geoserver/wms?SERVICE=WMS&REQUEST=GetMap", "ROLE_A")));
+        assertNull(cache.key(request("http://localhost:8080/geoserver/wms", "ROLE_A")));
+    }
+
+    @Test
+    public void testStoreAndServe() throws Exception {
+        String key = cache.key(request("http://localhost/geoserver/wfs?REQUEST=DescribeFeatureType", "ROLE_A"));
+        HttpResponse proxied = cache.store(key, response(200, "<schema/>"));
+        assertEquals("<schema/>", EntityUtils.toString(proxied.getEntity()));
+
+        CachedResponse cached = cache.get(key);
+        assertNotNull(cached);
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        HttpResponse served = cache.serve(cached, new MockHttpServletRequest(), servletResponse);
+        assertEquals(200, served.getStatusLine().getStatusCode());
+        assertEquals("<schema/>", EntityUtils.toString(served.getEntity()));
+        assertEquals("\"v1\"", served.getFirstHeader("ETag").getValue());
+
+        MockHttpServletRequest conditional = new MockHttpServletRequest();
+        conditional.addHeader("If-None-Match", "\"v1\"");
+        servletResponse = new MockHttpServletResponse();
+        assertNull(cache.serve(cached, conditional, servletResponse));
+        assertEquals(304, servletResponse.getStatus());
+        assertEquals("\"v1\"", servletResponse.getHeader("ETag"));
+    }
+
+    @Test
+    public void testErrorsAreNotCached() throws Exception {
+        String key = cache.key(request("http://localhost/geoserver/wms?REQUEST=GetCapabilities", "ROLE_A"));
+        cache.store(key, response(500, "error"));
+        assertNull(cache.get(key));
+
+        HttpResponse withCookie = response(200, "<caps/>");
+        withCookie.setHeader("Set-Cookie", "JSESSIONID=1");
+        cache.store(key, withCookie);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        cache.setTimeToLive(0);
+        HttpGet original = request("http://localhost/geoserver/wms?REQUEST=GetCapabilities", "ROLE_A");
+        String key = cache.key(original);
+        cache.store(key, response(200, "<caps/>"));
+        Thread.sleep(5);
+        CachedResponse stale = cache.get(key);
+        assertTrue(cache.isStale(stale));
+
+        backendResponse = response(304, null);
+        assertTrue(stale.startRevalidation());
+        cache.doRevalidate(key, stale, new HttpGet(original.getURI()), null);
+        assertNotNull(cache.get(key));
+
+        backendResponse = response(403, null);
+        CachedResponse revalidated = cache.get(key);
+        revalidated.startRevalidation();
+        cache.doRevalidate(key, revalidated, new HttpGet(original.getURI()), null);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testRevalidationRequestIsConditional() throws Exception {
+        cache.setTimeToLive(0);
+        backendResponse = response(304, null);
+        HttpGet original = request("http://localhost/geoserver/wms?REQUEST=GetCapabilities", "ROLE_A");
+        String key = cache.key(original);
+        cache.store(key, response(200, "<caps/>"));
+
+        cache.revalidate(key, cache.get(key), original, null);
+        for (int i = 0; i < 100 && revalidationRequest == null; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("\"v1\"", revalidationRequest.getFirstHeader("If-None-Match").getValue());
+        assertEquals("ROLE_A", revalidationRequest.getFirstHeader(HeaderNames.SEC_ROLES).getValue());
+        cache.destroy();
+    }
+
+    @Test
+    public void testDiskStore() throws Exception {
+        DiskStore disk = new DiskStore(folder.getRoot(), 10);
+        CachedResponse first = CachedResponse.create(response(200, "123456"), "123456".getBytes("UTF-8"));
+        CachedResponse second = CachedResponse.create(response(200, "abcdef"), "abcdef".getBytes("UTF-8"));
+        disk.put("first", first);
+        disk.put("second", second);
+
+        // over the max size, the least recently used response is deleted
+        assertEquals(1, disk.count());
+        assertNull(disk.remove("first"));
+        CachedResponse read = disk.remove("second");
+        assertEquals("abcdef", new String(read.getBody(), "UTF-8"));
+        assertEquals(0, disk.size());
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void testDiskStoreKeepsOtherFiles() throws Exception {
+        File other = folder.newFile("data.xml");
+        File left = folder.newFile("0123456789abcdef0123456789abcdef01234567.ogc-response");
+        new DiskStore(folder.getRoot(), 10);
+        assertTrue(other.exists());
+        assertFalse(left.exists());
+    }
+
+    /**
+     * A cached response is sent with all the headers of the backend, like the response it was stored from.
+     */
+    @Test
+    public void testServeHeaders() throws Exception {
+        String key = cache.key(request("http://localhost/geoserver/wms?REQUEST=GetCapabilities", "ROLE_A"));
+        HttpResponse backend = response(200, "<caps/>");
+        backend.setHeader("Cache-Control", "max-age=60");
+        backend.setHeader("Content-Disposition", "inline; filename=caps.xml");
+        EntityUtils.consume(cache.store(key, backend).getEntity());
+
+        HttpResponse served = cache.serve(cache.get(key), new MockHttpServletRequest(), new MockHttpServletResponse());
+        assertEquals(200, served.getStatusLine().getStatusCode());
+        assertEquals("max-age=60", served.getFirstHeader("Cache-Control").getValue());
+        assertEquals("inline; filename=caps.xml", served.getFirstHeader("Content-Disposition").getValue());
+        assertEquals("application/xml", served.getEntity().getContentType().getValue());
+        assertEquals("<caps/>", EntityUtils.toString(served.getEntity()));
+
+        // a revalidation updates the headers, apart from the ones of the body
+        HttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1, 304, "");
+        notModified.setHeader("Cache-Control", "max-age=120");
+        notModified.setHeader("Content-Length", "0");
+        served = cache.get(key).revalidated(notModified).toHttpResponse();
+        assertEquals("max-age=120", served.getFirstHeader("Cache-Control").getValue());
+        assertEquals(1, served.getHeaders("Cache-Control").length);
+        assertEquals("\"v1\"", served.getFirstHeader("ETag").getValue());
+        assertEquals("<caps/>", EntityUtils.toString(served.getEntity()));
+    }
+}
@@ -0,0 +1,144 @@
+package org.georchestra.security.cache;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.georchestra.security.HeaderNames;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RequestCoalescerTest {
+
+    private static final String CAPABILITIES = "http://localhost/geoserver/wms?SERVICE=WMS&REQUEST=GetCapabilities";
+
+    private RequestCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        coalescer = new RequestCoalescer();
+        coalescer.setPatterns(Arrays.asList("[?&]request=GetCapabilities(&|$)"));
+        coalescer.setMaxResponseSize(100);
+    }
+
+    private static HttpGet request(String url, String roles) {
+        HttpGet request = new HttpGet(url);
+        request.setHeader(HeaderNames.SEC_ROLES, roles);
+        return request;
+    }
+
+    private static HttpResponse response(String body) throws IOException {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        StringEntity entity = new StringEntity(body);
+        entity.setContentType("application/xml");
+        response.setEntity(entity);
+        response.setHeader("ETag", "\"v1\"");
+        return response;
+    }
+
+    @Test
+    public void testKey() {
+        String key = coalescer.key(request(CAPABILITIES, "ROLE_USER"));
+        assertNotNull(key);
+        assertEquals(key, coalescer.key(request(CAPABILITIES, "ROLE_USER")));
+        assertFalse(key.equals(coalescer.key(request(CAPABILITIES, "ROLE_ADMIN"))));
+        assertNull(coalescer.key(request("http://localhost/geoserver/wms?REQUEST=GetMap", "ROLE_USER")));
+        assertNull(coalescer.key(new HttpPost(CAPABILITIES)));
+    }
+
+    @Test
+    public void testFollowersGetACopy() throws Exception {
+        String key = coalescer.key(request(CAPABILITIES, "ROLE_USER"));
+        RequestCoalescer.Flight leader = coalescer.join(key);
+        final RequestCoalescer.Flight follower = coalescer.join(key);
+        assertTrue(leader.isLeader());
+        assertFalse(follower.isLeader());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<HttpResponse> followerResponse = executor.submit(new Callable<HttpResponse>() {
+                @Override
+                public HttpResponse call() {
+                    return follower.await();
+                }
+            });
+            HttpResponse leaderResponse = leader.share(response("<WMS_Capabilities/>"));
+            assertEquals("<WMS_Capabilities/>", EntityUtils.toString(leaderResponse.getEntity()));
+
+            HttpResponse copy = followerResponse.get();
+            assertEquals(200, copy.getStatusLine().getStatusCode());
+            assertEquals("\"v1\"", copy.getFirstHeader("ETag").getValue());
+            assertEquals("application/xml", copy.getEntity().getContentType().getValue());
+            assertEquals("<WMS_Capabilities/>", EntityUtils.toString(copy.getEntity()));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, coalescer.getForwardedCount());
+        assertEquals(1, coalescer.getCoalescedCount());
+
+        // the call is over, the next identical request is forwarded
+        assertTrue(coalescer.join(key).isLeader());
+    }
+
+    @Test
+    public void testTooBigNotShared() throws Exception {
+        String key = coalescer.key(request(CAPABILITIES, "ROLE_USER"));
+        RequestCoalescer.Flight leader = coalescer.join(key);
+        RequestCoalescer.Flight follower = coalescer.join(key);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            body.append("<Layer/>");
+        }
+        HttpResponse leaderResponse = leader.share(response(body.toString()));
+        // the client of the leader still gets the whole body
+        assertEquals(body.toString(), EntityUtils.toString(leaderResponse.getEntity()));
+        assertNull(follower.await());
+    }
+
+    @Test
+    public void testCookiesNotShared() throws Exception {
+        String key = coalescer.key(request(CAPABILITIES, "ROLE_USER"));
+        RequestCoalescer.Flight leader = coalescer.join(key);
+        RequestCoalescer.Flight follower = coalescer.join(key);
+        HttpResponse response = response("<WMS_Capabilities/>");
+        response.addHeader("Set-Cookie", "JSESSIONID=1234; Path=/geoserver");
+        leader.share(response);
+        assertNull(follower.await());
+    }
+
+    @Test
+    public void testLeaderFailed() throws Exception {
+        String key = coalescer.key(request(CAPABILITIES, "ROLE_USER"));
+        RequestCoalescer.Flight leader = coalescer.join(key);
+        RequestCoalescer.Flight follower = coalescer.join(key);
+        leader.release();
+        follower.release();
+        assertNull(follower.await());
+        assertTrue(coalescer.join(key).isLeader());
+    }
+
+    @Test
+    public void testFollowerTimeout() throws Exception {
+        coalescer.setMaxWait(10);
+        String key = coalescer.key(request(CAPABILITIES, "ROLE_USER"));
+        coalescer.join(key);
+        assertNull(coalescer.join(key).await());
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+}
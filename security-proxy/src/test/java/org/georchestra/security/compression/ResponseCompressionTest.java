@@ -0,0 +1,142 @@
+package org.georchestra.security.compression;
+
+import com.google.common.io.ByteStreams;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseCompressionTest {
+
+    private ResponseCompression compression;
+    private MockHttpServletRequest request;
+
+    @Before
+    public void setUp() {
+        compression = new ResponseCompression();
+        compression.setContentTypes(Arrays.asList("application/json", "text/xml"));
+        compression.setMinSize(100);
+        request = new MockHttpServletRequest("GET", "/sec/geoserver/wfs");
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+    }
+
+    private static HttpResponse response(String contentType, byte[] body) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setHeader("Content-Type", contentType);
+        response.setHeader("Content-Length", String.valueOf(body.length));
+        response.setHeader("ETag", "\"abc\"");
+        response.setEntity(new ByteArrayEntity(body));
+        return response;
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        assertTrue(ResponseCompression.acceptsGzip("gzip"));
+        assertTrue(ResponseCompression.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertFalse(ResponseCompression.acceptsGzip("gzip;q=0"));
+        assertFalse(ResponseCompression.acceptsGzip("deflate, br"));
+        assertFalse(ResponseCompression.acceptsGzip(null));
+    }
+
+    @Test
+    public void testIsCompressible() {
+        byte[] body = new byte[200];
+        assertTrue(compression.isCompressible(response("text/xml; subtype=gml/3.1.1", body)));
+        assertFalse(compression.isCompressible(response("image/png", body)));
+        assertFalse(compression.isCompressible(response("application/json", new byte[10])));
+
+        HttpResponse gzipped = response("application/json", body);
+        gzipped.setHeader("Content-Encoding", "gzip");
+        assertFalse(compression.isCompressible(gzipped));
+
+        HttpResponse notFound = response("application/json", body);
+        notFound.setStatusCode(404);
+        assertFalse(compression.isCompressible(notFound));
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        byte[] body = new byte[10000];
+        Arrays.fill(body, (byte) 'a');
+        HttpResponse proxied = response("application/json", body);
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+
+        assertNull(compression.compress(request, true, proxied, servletResponse));
+        CompressedResponse compressed = compression.compress(request, false, proxied, servletResponse);
+        assertNotNull(compressed);
+        assertNull(proxied.getFirstHeader("Content-Length"));
+        assertEquals("W/\"abc\"", proxied.getFirstHeader("ETag").getValue());
+
+        compressed.setContentLength(body.length);
+        OutputStream out = compressed.getOutputStream();
+        out.write(body, 0, 10);
+        out.write(body, 10, body.length - 10);
+        out.close();
+        compressed.finish();
+
+        assertEquals("gzip", servletResponse.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", servletResponse.getHeader("Vary"));
+        assertNull(servletResponse.getHeader("Content-Length"));
+        byte[] sent = servletResponse.getContentAsByteArray();
+        assertTrue(sent.length < body.length);
+        assertArrayEquals(body, ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(sent))));
+        assertEquals(1, compression.getIdleDeflaters());
+    }
+
+    /**
+     * The gzip headers are only sent with a body.
+     */
+    @Test
+    public void testEmptyBody() throws Exception {
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        CompressedResponse compressed = compression.compress(request, false,
+                response("application/json", new byte[200]), servletResponse);
+        OutputStream out = compressed.getOutputStream();
+        out.flush();
+        out.write(new byte[0]);
+        out.close();
+        compressed.finish();
+
+        assertNull(servletResponse.getHeader("Content-Encoding"));
+        assertNull(servletResponse.getHeader("Vary"));
+        assertEquals(0, servletResponse.getContentAsByteArray().length);
+        // no deflater was borrowed
+        assertEquals(0, compression.getIdleDeflaters());
+    }
+
+    @Test
+    public void testSendError() throws Exception {
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        CompressedResponse compressed = compression.compress(request, false,
+                response("application/json", new byte[200]), servletResponse);
+        compressed.sendError(503);
+        compressed.finish();
+
+        assertEquals(503, servletResponse.getStatus());
+        assertNull(servletResponse.getHeader("Content-Encoding"));
+        assertNull(servletResponse.getHeader("Vary"));
+    }
+
+    @Test
+    public void testNotAccepted() {
+        request = new MockHttpServletRequest("GET", "/sec/geoserver/wfs");
+        assertNull(compression.compress(request, false, response("application/json", new byte[200]),
+                new MockHttpServletResponse()));
+    }
+}
@@ -0,0 +1,45 @@
+package org.georchestra.security.custom;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CredentialsCacheTest {
+
+    @Test
+    public void testSamePassword() {
+        CredentialsCache<String> cache = new CredentialsCache<String>(10, 60, 10);
+        assertNull(cache.get("bob", "secret"));
+
+        cache.put("bob", "secret", "authentication of bob");
+        assertEquals("authentication of bob", cache.get("bob", "secret"));
+        assertNull(cache.get("bob", "Secret"));
+        assertNull(cache.get("alice", "secret"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testPasswordChange() {
+        CredentialsCache<String> cache = new CredentialsCache<String>(10, 60, 10);
+        cache.put("bob", "old", "old authentication");
+        cache.put("bob", "new", "new authentication");
+        assertNull(cache.get("bob", "old"));
+        assertEquals("new authentication", cache.get("bob", "new"));
+
+        cache.invalidate("bob");
+        assertNull(cache.get("bob", "new"));
+    }
+
+    @Test
+    public void testMaxSize() {
+        CredentialsCache<String> cache = new CredentialsCache<String>(2, 60, 10);
+        cache.put("a", "a", "a");
+        cache.put("b", "b", "b");
+        cache.put("c", "c", "c");
+        assertEquals(2, cache.size());
+        assertNull(cache.get("a", "a"));
+        assertEquals("c", cache.get("c", "c"));
+    }
+}
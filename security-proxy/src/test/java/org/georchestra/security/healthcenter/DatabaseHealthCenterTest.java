@@ -5,6 +5,11 @@ package org.georchestra.security.healthcenter;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.BasicConfigurator;
@@ -60,4 +65,49 @@ public class DatabaseHealthCenterTest {
 		// TODO assertTrue(healthy);
 	}
 
+	/**
+	 * Drives the sampled connections across the 80% and 70% thresholds of 10 connections.
+	 */
+	@Test
+	public void testSampleHysteresis() {
+
+		DatabaseHealthCenter hc = DatabaseHealthCenter.getInstance("postgres","postgres", "admin", "testCase");
+		hc.setRecoveryRatio(0.7);
+
+		hc.sample(10, connections(0));
+		assertTrue(hc.isHealthy());
+
+		hc.sample(10, connections(7));
+		assertTrue(hc.isHealthy());
+
+		// unhealthy from 80% of the max
+		hc.sample(10, connections(8));
+		assertFalse(hc.isHealthy());
+		assertEquals(8, hc.getSnapshot().getLiveConnections());
+		assertEquals(10, hc.getSnapshot().getMaxConnections());
+
+		hc.sample(10, connections(10));
+		assertFalse(hc.isHealthy());
+
+		// still unhealthy between 70% and 80%
+		hc.sample(10, connections(7));
+		assertFalse(hc.isHealthy());
+
+		// healthy again under 70%
+		hc.sample(10, connections(6));
+		assertTrue(hc.isHealthy());
+		assertTrue(hc.getSnapshot().getTimestamp() > 0);
+
+		hc.sample(10, connections(7));
+		assertTrue(hc.isHealthy());
+	}
+
+	private static List<Map<String, Object>> connections(int count) {
+		List<Map<String, Object>> connections = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < count; i++) {
+			connections.add(Collections.<String, Object> singletonMap("pid", i));
+		}
+		return connections;
+	}
+
 }
@@ -0,0 +1,123 @@
+package org.georchestra.security.isolation;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TargetIsolationTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testBreakerOpensOnFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("geonetwork", 10, 4, 0.5, 2, 5 * SECOND, 30 * SECOND);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Boolean.FALSE, breaker.tryAcquire(0));
+            breaker.record(false, i > 0, SECOND, 0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.record(false, false, SECOND, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire(10 * SECOND));
+        assertEquals(20 * SECOND, breaker.getRemainingOpenNanos(10 * SECOND));
+    }
+
+    @Test
+    public void testBreakerOpensOnSlowCalls() {
+        CircuitBreaker breaker = new CircuitBreaker("geoserver", 4, 4, 0.5, 0.5, 5 * SECOND, 30 * SECOND);
+        breaker.record(false, false, SECOND, 0);
+        breaker.record(false, false, 10 * SECOND, 0);
+        breaker.record(false, false, SECOND, 0);
+        breaker.record(false, false, 6 * SECOND, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testWindowSlides() {
+        CircuitBreaker breaker = new CircuitBreaker("geoserver", 4, 4, 0.75, 2, 5 * SECOND, 30 * SECOND);
+        breaker.record(false, true, SECOND, 0);
+        breaker.record(false, false, SECOND, 0);
+        breaker.record(false, false, SECOND, 0);
+        breaker.record(false, false, SECOND, 0);
+        // the first failure leaves the window
+        breaker.record(false, true, SECOND, 0);
+        breaker.record(false, true, SECOND, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.record(false, true, SECOND, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbe() {
+        CircuitBreaker breaker = new CircuitBreaker("geonetwork", 2, 2, 0.5, 2, 5 * SECOND, 30 * SECOND);
+        breaker.record(false, true, SECOND, 0);
+        breaker.record(false, true, SECOND, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        assertEquals(Boolean.TRUE, breaker.tryAcquire(30 * SECOND));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // a single probe at a time
+        assertNull(breaker.tryAcquire(31 * SECOND));
+        breaker.record(true, true, SECOND, 31 * SECOND);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire(40 * SECOND));
+
+        assertEquals(Boolean.TRUE, breaker.tryAcquire(61 * SECOND));
+        breaker.cancel(true);
+        assertEquals(Boolean.TRUE, breaker.tryAcquire(62 * SECOND));
+        breaker.record(true, false, SECOND, 62 * SECOND);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(Boolean.FALSE, breaker.tryAcquire(63 * SECOND));
+        breaker.record(false, true, SECOND, 63 * SECOND);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testBulkhead() throws Exception {
+        TargetIsolation isolation = new TargetIsolation();
+        isolation.setMaxConcurrentRequests(2);
+        isolation.setMaxConcurrentRequestsPerTarget(Collections.singletonMap("geonetwork", 1));
+        isolation.setRetryAfter(7);
+
+        TargetIsolation.Permit permit = isolation.acquire("geonetwork");
+        try {
+            isolation.acquire("geonetwork");
+            fail("bulkhead full");
+        } catch (TargetUnavailableException e) {
+            assertEquals(7, e.getRetryAfter());
+        }
+        // other targets are not affected
+        isolation.acquire("geoserver").release();
+
+        permit.responded(200);
+        permit.release();
+        permit.release();
+        assertEquals(0, isolation.getConcurrentRequests("geonetwork"));
+        isolation.acquire("geonetwork");
+    }
+
+    @Test
+    public void testOpenCircuit() throws Exception {
+        TargetIsolation isolation = new TargetIsolation();
+        isolation.setWindowSize(2);
+        isolation.setMinimumCalls(2);
+        isolation.setOpenDuration(30000);
+        for (int i = 0; i < 2; i++) {
+            TargetIsolation.Permit permit = isolation.acquire("geonetwork");
+            permit.failed();
+            permit.release();
+        }
+        assertEquals("OPEN", isolation.getCircuitState("geonetwork"));
+        try {
+            isolation.acquire("geonetwork");
+            fail("circuit open");
+        } catch (TargetUnavailableException e) {
+            assertTrue(e.getRetryAfter() > 25 && e.getRetryAfter() <= 30);
+        }
+    }
+}
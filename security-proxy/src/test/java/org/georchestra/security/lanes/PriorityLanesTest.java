@@ -0,0 +1,153 @@
+package org.georchestra.security.lanes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PriorityLanesTest {
+
+    private PriorityLanes lanes;
+    private Lane interactive;
+    private Lane bulk;
+
+    @Before
+    public void setUp() {
+        interactive = new Lane();
+        interactive.setName("interactive");
+        interactive.setServices(Arrays.asList("WMS", "WMTS"));
+        interactive.setMaxConcurrentRequests(10);
+
+        bulk = new Lane();
+        bulk.setName("bulk");
+        bulk.setOperations(Arrays.asList("GetFeature", "GetCoverage"));
+        bulk.setTargets(Collections.singletonList("geoserver"));
+        bulk.setMaxConcurrentRequests(1);
+        bulk.setMaxQueueSize(1);
+        bulk.setMaxQueueTime(200);
+
+        lanes = new PriorityLanes();
+        lanes.setLanes(Arrays.asList(interactive, bulk));
+        lanes.setRetryAfter(5);
+    }
+
+    @Test
+    public void testParameter() {
+        assertEquals("WFS", PriorityLanes.parameter("http://localhost/ows?SERVICE=WFS&REQUEST=GetFeature", "service"));
+        assertEquals("GetFeature", PriorityLanes.parameter("http://localhost/ows?service=WFS&request=GetFeature",
+                "request"));
+        assertNull(PriorityLanes.parameter("http://localhost/ows?SERVICE=", "service"));
+        assertNull(PriorityLanes.parameter("http://localhost/ows?SERVICES=WFS", "service"));
+        assertNull(PriorityLanes.parameter("http://localhost/ows", "service"));
+
+        // names and values are decoded
+        assertEquals("GetFeature", PriorityLanes.parameter("http://localhost/ows?REQUEST=Get%46eature", "request"));
+        assertEquals("GetFeature", PriorityLanes.parameter("http://localhost/ows?RE%51UEST=GetFeature", "request"));
+        assertEquals("a b\u00e9", PriorityLanes.parameter("http://localhost/ows?x=a+b%C3%A9", "x"));
+        assertEquals("50%", PriorityLanes.parameter("http://localhost/ows?x=50%", "x"));
+        assertEquals("%zz", PriorityLanes.parameter("http://localhost/ows?x=%zz", "x"));
+        assertNull(PriorityLanes.parameter("http://localhost/ows?flag&SERVICE", "service"));
+
+        assertEquals("wfs", PriorityLanes.serviceFromPath("http://localhost/geoserver/WFS?request=GetFeature"));
+        assertEquals("wms", PriorityLanes.serviceFromPath("http://localhost/geoserver/topp/wms"));
+        assertNull(PriorityLanes.serviceFromPath("http://localhost/geoserver/web/"));
+        assertEquals("wfs", PriorityLanes.serviceFromPath("http://localhost/geoserver/w%66s"));
+    }
+
+    @Test
+    public void testClassify() {
+        assertSame(interactive, lanes.classify("http://localhost/geoserver/wms?REQUEST=GetMap", "geoserver"));
+        assertSame(interactive, lanes.classify("http://localhost/geoserver/ows?SERVICE=WMS&REQUEST=GetMap", "x"));
+        assertSame(bulk, lanes.classify("http://localhost/geoserver/wfs?request=getfeature", "geoserver"));
+        assertSame(bulk, lanes.classify("http://localhost/geoserver/wfs?REQUEST=Get%46eature", "geoserver"));
+        assertNull(lanes.classify("http://localhost/geoserver/wfs?request=getfeature", "mapserver"));
+        assertNull(lanes.classify("http://localhost/geoserver/wfs?request=GetCapabilities", "geoserver"));
+    }
+
+    @Test
+    public void testQueue() throws Exception {
+        final String url = "http://localhost/geoserver/wfs?request=GetFeature";
+        PriorityLanes.Ticket first = lanes.acquire(url, "geoserver");
+        assertEquals(1, bulk.getActiveRequests());
+
+        // the second request waits for the first one
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<PriorityLanes.Ticket> second = executor.submit(new Callable<PriorityLanes.Ticket>() {
+                @Override
+                public PriorityLanes.Ticket call() throws Exception {
+                    return lanes.acquire(url, "geoserver");
+                }
+            });
+            while (bulk.getQueuedRequests() == 0) {
+                Thread.sleep(1);
+            }
+            // the third one finds the queue full
+            try {
+                lanes.acquire(url, "geoserver");
+                fail();
+            } catch (LaneUnavailableException e) {
+                assertEquals(5, e.getRetryAfter());
+            }
+            assertEquals(1, bulk.getQueueFullCount());
+
+            first.release();
+            first.release();
+            PriorityLanes.Ticket ticket = second.get(1, TimeUnit.SECONDS);
+            assertTrue(ticket.getQueueTime() > 0);
+            assertEquals(1, bulk.getActiveRequests());
+
+            // no permit released within maxQueueTime
+            try {
+                lanes.acquire(url, "geoserver");
+                fail();
+            } catch (LaneUnavailableException e) {
+                assertEquals(1, bulk.getQueueTimeoutCount());
+            }
+            ticket.release();
+            assertEquals(0, bulk.getActiveRequests());
+            // the request refused because the queue was full did not wait
+            assertEquals(3, bulk.getQueueWait().getCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Without a queue, the requests over the limit are refused at once.
+     */
+    @Test
+    public void testNoQueue() throws Exception {
+        bulk.setMaxConcurrentRequests(2);
+        bulk.setMaxQueueSize(0);
+        String url = "http://localhost/geoserver/wcs?SERVICE=WCS&REQUEST=GetCoverage";
+        PriorityLanes.Ticket first = lanes.acquire(url, "geoserver");
+        PriorityLanes.Ticket second = lanes.acquire(url, "geoserver");
+        try {
+            lanes.acquire(url, "geoserver");
+            fail();
+        } catch (LaneUnavailableException e) {
+            assertEquals(5, e.getRetryAfter());
+        }
+        assertEquals(2, bulk.getActiveRequests());
+        assertEquals(1, bulk.getQueueFullCount());
+        assertEquals(0, bulk.getQueueTimeoutCount());
+
+        first.release();
+        lanes.acquire(url, "geoserver").release();
+        second.release();
+        assertEquals(0, bulk.getActiveRequests());
+    }
+}
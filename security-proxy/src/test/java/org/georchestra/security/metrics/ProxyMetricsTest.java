@@ -0,0 +1,85 @@
+package org.georchestra.security.metrics;
+
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProxyMetricsTest {
+
+    private ProxyMetrics metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new ProxyMetrics();
+        metrics.setJmxEnabled(false);
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        RequestSample sample = metrics.start(new MockHttpServletResponse());
+        assertEquals(1, metrics.getInFlightRequests());
+        sample.setTarget("geoserver");
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(TimingRequestExecutor.CONNECTED, System.nanoTime());
+        context.setAttribute(TimingRequestExecutor.FIRST_BYTE, System.nanoTime());
+        context.setAttribute(TimingRequestExecutor.REQUEST_BYTES, 120L);
+        sample.setHttpContext(context);
+        sample.getResponse().setStatus(404);
+        sample.getResponse().getOutputStream().write(new byte[10]);
+        sample.stop();
+
+        TargetMetrics geoserver = metrics.getTargetMetrics("geoserver");
+        assertEquals(0, metrics.getInFlightRequests());
+        assertEquals(1, geoserver.getRequestCount());
+        assertEquals(1, geoserver.getStatus4xxCount());
+        assertEquals(1, geoserver.getConnectTime().getCount());
+        assertEquals(1, geoserver.getTimeToFirstByte().getCount());
+        assertEquals(120, geoserver.getRequestBytes());
+        assertEquals(10, geoserver.getResponseBytes());
+    }
+
+    @Test
+    public void testMaxTargets() {
+        metrics.setMaxTargets(2);
+        metrics.getTargetMetrics("a");
+        metrics.getTargetMetrics("b");
+        assertEquals(ProxyMetrics.OTHER_TARGET, metrics.getTargetMetrics("c").getName());
+        assertEquals(ProxyMetrics.OTHER_TARGET, metrics.getTargetMetrics("d").getName());
+        assertEquals("a", metrics.getTargetMetrics("a").getName());
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(700));
+        assertEquals(5, histogram.getPercentileMillis(0.5));
+        assertEquals(5, histogram.getPercentileMillis(0.99));
+        assertEquals(1000, histogram.getPercentileMillis(1));
+    }
+
+    @Test
+    public void testPrometheus() throws Exception {
+        RequestSample sample = metrics.start(new MockHttpServletResponse());
+        sample.setTarget("geo\"server");
+        sample.stop();
+
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        String text = out.toString();
+        assertTrue(text, text.contains("security_proxy_requests_total{target=\"geo\\\"server\",status=\"2xx\"} 1\n"));
+        assertTrue(text, text.contains("security_proxy_request_duration_seconds_bucket{target=\"geo\\\"server\",le=\"+Inf\"} 1\n"));
+        assertTrue(text, text.contains("# TYPE security_proxy_connect_seconds histogram\n"));
+        assertTrue(text, text.contains("security_proxy_in_flight_requests 0\n"));
+    }
+}
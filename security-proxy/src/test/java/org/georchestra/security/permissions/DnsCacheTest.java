@@ -0,0 +1,151 @@
+package org.georchestra.security.permissions;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class DnsCacheTest {
+
+    @Test
+    public void testResolveIsCached() throws Exception {
+        DnsCache dnsCache = new DnsCache();
+
+        InetAddress[] first = dnsCache.resolve("localhost");
+        InetAddress[] second = dnsCache.resolve("localhost");
+
+        assertArrayEquals(InetAddress.getAllByName("localhost"), first);
+        assertArrayEquals(first, second);
+        assertEquals(1, dnsCache.getMissCount());
+        assertEquals(1, dnsCache.getHitCount());
+        assertEquals(1, dnsCache.size());
+    }
+
+    @Test
+    public void testHostCase() throws Exception {
+        DnsCache dnsCache = new DnsCache();
+
+        dnsCache.resolve("localhost");
+        dnsCache.resolve("LocalHost");
+        dnsCache.pin("LOCALHOST").release();
+        assertEquals(1, dnsCache.getMissCount());
+        assertEquals(2, dnsCache.getHitCount());
+        assertEquals(1, dnsCache.size());
+    }
+
+    /**
+     * An entry older than half its time to live is still served while it is resolved again in the background.
+     */
+    @Test
+    public void testStaleEntryIsRefreshed() throws Exception {
+        DnsCache dnsCache = new DnsCache();
+        dnsCache.setPositiveTimeToLive(10000);
+
+        InetAddress[] first = dnsCache.resolve("localhost");
+        assertEquals(0, dnsCache.getRefreshCount());
+
+        dnsCache.setPositiveTimeToLive(20);
+        dnsCache.resolve("127.0.0.1");
+        Thread.sleep(15);
+        assertNotNull(dnsCache.resolve("127.0.0.1"));
+        for (int i = 0; i < 100 && dnsCache.getRefreshCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, dnsCache.getRefreshCount());
+        assertArrayEquals(first, dnsCache.resolve("localhost"));
+        dnsCache.destroy();
+    }
+
+    /**
+     * A destroyed cache resolves the stale entries again without a background thread.
+     */
+    @Test
+    public void testDestroy() throws Exception {
+        DnsCache dnsCache = new DnsCache();
+        dnsCache.setPositiveTimeToLive(400);
+        dnsCache.resolve("localhost");
+        dnsCache.destroy();
+
+        Thread.sleep(250);
+        assertNotNull(dnsCache.resolve("localhost"));
+        Thread.sleep(200);
+        assertEquals(0, dnsCache.getRefreshCount());
+        assertNotNull(dnsCache.resolve("localhost"));
+        assertEquals(2, dnsCache.getMissCount());
+    }
+
+    /**
+     * An expired entry is never served, the host is resolved again.
+     */
+    @Test
+    public void testExpiredEntryIsResolvedAgain() throws Exception {
+        DnsCache dnsCache = new DnsCache();
+        dnsCache.setPositiveTimeToLive(0);
+
+        InetAddress[] first = dnsCache.resolve("localhost");
+        Thread.sleep(5);
+        InetAddress[] second = dnsCache.resolve("localhost");
+
+        assertArrayEquals(first, second);
+        assertNotSame(first, second);
+        assertEquals(2, dnsCache.getMissCount());
+        assertEquals(0, dnsCache.getHitCount());
+    }
+
+    /**
+     * A pinned host resolves to the pinned addresses on the thread which pinned it only.
+     */
+    @Test
+    public void testPin() throws Exception {
+        final DnsCache dnsCache = new DnsCache();
+        dnsCache.setPositiveTimeToLive(0);
+
+        DnsCache.Pin pin = dnsCache.pin("LocalHost");
+        InetAddress[] pinned = pin.getAddresses();
+        Thread.sleep(5);
+        assertSame(pinned, dnsCache.resolve("localhost"));
+
+        final InetAddress[][] other = new InetAddress[1][];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    other[0] = dnsCache.resolve("localhost");
+                } catch (UnknownHostException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotSame(pinned, other[0]);
+
+        pin.release();
+        pin.release();
+        Thread.sleep(5);
+        assertNotSame(pinned, dnsCache.resolve("localhost"));
+    }
+
+    @Test
+    public void testPinUnknownHost() throws Exception {
+        DnsCache dnsCache = new DnsCache();
+        DnsCache.Pin pin = dnsCache.pin("unknown.invalid");
+        assertNull(pin.getAddresses());
+        try {
+            dnsCache.resolve("unknown.invalid");
+            fail();
+        } catch (UnknownHostException e) {
+            // expected
+        } finally {
+            pin.release();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.georchestra.security.permissions;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionsTest {
+
+    @Test
+    public void testIndexedDecisions() throws Exception {
+        Permissions permissions = new Permissions().
+                setAllowed(Lists.newArrayList(
+                        new UriMatcher().setHost("localhost").setPath("/geoserver/.*"),
+                        new UriMatcher().setHost("127.0.0.0/8").setPort(8080).setPath("/mapfishapp/"),
+                        new UriMatcher().setPath("/public/.*\\.png"))).
+                setDenied(Lists.newArrayList(
+                        new UriMatcher().setHost("localhost").setPath("/geoserver/private/.*")));
+        permissions.init();
+
+        assertFalse(permissions.isDenied(new URL("http://localhost/geoserver/wms")));
+        assertTrue(permissions.isDenied(new URL("http://localhost/geoserver/private/wms")));
+        assertTrue(permissions.isDenied(new URL("http://localhost/geonetwork/")));
+
+        assertFalse(permissions.isDenied(new URL("http://127.0.0.1:8080/mapfishapp/")));
+        assertTrue(permissions.isDenied(new URL("http://127.0.0.1:8080/mapfishapp/other")));
+        assertTrue(permissions.isDenied(new URL("http://127.0.0.1/mapfishapp/")));
+
+        assertFalse(permissions.isDenied(new URL("http://localhost/public/logo.png")));
+        assertTrue(permissions.isDenied(new URL("http://localhost/public/logo.gif")));
+
+        // decision served from the cache
+        assertFalse(permissions.isDenied(new URL("http://localhost/geoserver/wms")));
+    }
+
+    /**
+     * The index must take the same decisions as the matchers themselves.
+     */
+    @Test
+    public void testIndexMatchesUriMatcher() throws Exception {
+        UriMatcher matcher = new UriMatcher().setHost("localhost").setPort(80).setPath("geonetwork/srv/.*");
+        matcher.init();
+        PermissionIndex index = new PermissionIndex(Collections.singletonList(matcher), new DnsCache());
+
+        String[] urls = {"http://localhost/geonetwork/srv/eng", "http://localhost:8080/geonetwork/srv/eng",
+                "http://localhost/geonetwork/", "http://127.0.0.1/geonetwork/srv/"};
+        for (String url : urls) {
+            assertEquals(url, matcher.matches(new URL(url)), index.matches(new URL(url)));
+        }
+    }
+
+    /**
+     * The decisions are remembered by address, whatever the name of the host.
+     */
+    @Test
+    public void testDecisionKey() throws Exception {
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        InetAddress b = InetAddress.getByName("10.0.0.2");
+        assertEquals(Permissions.decisionKey(new URL("http://one.example.org/wms"), new InetAddress[]{a, b}),
+                Permissions.decisionKey(new URL("http://two.example.org:80/wms"), new InetAddress[]{b, a}));
+        assertFalse(Permissions.decisionKey(new URL("http://one.example.org/wms"), new InetAddress[]{a}).equals(
+                Permissions.decisionKey(new URL("http://one.example.org/wms"), new InetAddress[]{b})));
+        assertFalse(Permissions.decisionKey(new URL("http://one.example.org/wms"), new InetAddress[]{a}).equals(
+                Permissions.decisionKey(new URL("http://one.example.org:8080/wms"), new InetAddress[]{a})));
+        assertEquals(Permissions.decisionKey(new URL("http://unknown.invalid/wms"), null),
+                Permissions.decisionKey(new URL("http://other.invalid/wms"), null));
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("/geonetwork/", PermissionIndex.Rule.literalPrefix("/geonetwork/.*"));
+        assertEquals("/geonetwork", PermissionIndex.Rule.literalPrefix("/geonetworks?"));
+        assertEquals("", PermissionIndex.Rule.literalPrefix("(/geonetwork)|(geonetwork)"));
+        assertEquals("/a/", PermissionIndex.Rule.literalPrefix("/a/\\d+"));
+    }
+
+    @Test
+    public void testInNetwork() {
+        byte[] network = {(byte) 192, (byte) 168, 0, 0};
+        assertTrue(UriMatcher.inNetwork(network, 16, new byte[]{(byte) 192, (byte) 168, 12, 1}));
+        assertFalse(UriMatcher.inNetwork(network, 16, new byte[]{(byte) 192, (byte) 169, 12, 1}));
+        assertTrue(UriMatcher.inNetwork(network, 9, new byte[]{(byte) 192, (byte) 200, 0, 1}));
+        assertFalse(UriMatcher.inNetwork(network, 9, new byte[]{(byte) 192, (byte) 40, 0, 1}));
+    }
+}
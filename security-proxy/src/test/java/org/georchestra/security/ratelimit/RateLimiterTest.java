@@ -0,0 +1,136 @@
+package org.georchestra.security.ratelimit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(SECOND, 3, 0);
+        assertEquals(3, bucket.available(0));
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(0, bucket.available(0));
+        assertEquals(SECOND, bucket.tryAcquire(0));
+        assertEquals(SECOND / 2, bucket.tryAcquire(SECOND / 2));
+
+        // one token per second
+        assertEquals(0, bucket.tryAcquire(SECOND));
+        assertEquals(SECOND, bucket.tryAcquire(SECOND));
+
+        // full again after a pause, never more than the burst
+        assertEquals(3, bucket.available(100 * SECOND));
+        assertEquals(0, bucket.tryAcquire(100 * SECOND));
+        assertEquals(2, bucket.available(100 * SECOND));
+    }
+
+    private static HttpGet proxyingRequest(String username, String roles) {
+        HttpGet request = new HttpGet("http://localhost:8080/geoserver/wfs");
+        if (username != null) {
+            request.addHeader("sec-username", username);
+            request.addHeader("sec-roles", roles);
+        }
+        return request;
+    }
+
+    private static MockHttpServletRequest request(String address) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/geoserver/wfs");
+        request.setRemoteAddr(address);
+        return request;
+    }
+
+    @Test
+    public void testQuotaByRole() {
+        RateLimiter limiter = new RateLimiter();
+        Map<String, Quota> quotas = new HashMap<String, Quota>();
+        quotas.put("ROLE_ANONYMOUS", new Quota(1, 1));
+        quotas.put("ROLE_SV_USER", new Quota(1, 2));
+        quotas.put("ROLE_HARVESTER", new Quota(5, 5));
+        quotas.put("ROLE_ADMINISTRATOR", new Quota(0, 1));
+        limiter.setRoleQuotas(quotas);
+
+        assertEquals("ROLE_SV_USER", limiter.quotaName("ROLE_SV_USER;ROLE_SV_EDITOR"));
+        assertEquals("ROLE_HARVESTER", limiter.quotaName("ROLE_SV_USER;ROLE_HARVESTER"));
+        assertEquals("ROLE_ADMINISTRATOR", limiter.quotaName("ROLE_ADMINISTRATOR;ROLE_HARVESTER"));
+        assertEquals(RateLimiter.DEFAULT_QUOTA, limiter.quotaName("ROLE_SV_EDITOR"));
+
+        // the users are counted separately
+        assertEquals(0, limiter.checkQuota(request("10.0.0.1"), proxyingRequest("bob", "ROLE_SV_USER"), "gs"));
+        assertEquals(0, limiter.checkQuota(request("10.0.0.1"), proxyingRequest("bob", "ROLE_SV_USER"), "gs"));
+        assertEquals(1, limiter.checkQuota(request("10.0.0.1"), proxyingRequest("bob", "ROLE_SV_USER"), "gs"));
+        assertEquals(0, limiter.checkQuota(request("10.0.0.1"), proxyingRequest("alice", "ROLE_SV_USER"), "gs"));
+
+        // the anonymous users by address
+        assertEquals(0, limiter.checkQuota(request("10.0.0.1"), proxyingRequest(null, null), "gs"));
+        assertEquals(1, limiter.checkQuota(request("10.0.0.1"), proxyingRequest(null, null), "gs"));
+        assertEquals(0, limiter.checkQuota(request("10.0.0.2"), proxyingRequest(null, null), "gs"));
+
+        // no limit
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.checkQuota(request("10.0.0.1"), proxyingRequest("root", "ROLE_ADMINISTRATOR"),
+                    "gs"));
+        }
+        // no default quota
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.checkQuota(request("10.0.0.1"), proxyingRequest("eve", "ROLE_SV_EDITOR"), "gs"));
+        }
+
+        assertEquals(2, limiter.getThrottledCount());
+        assertEquals(Long.valueOf(1), limiter.getThrottledCounts().get("ROLE_ANONYMOUS"));
+        assertEquals(Long.valueOf(1), limiter.getThrottledCounts().get("ROLE_SV_USER"));
+        assertEquals(25, limiter.getAllowedCount());
+    }
+
+    @Test
+    public void testForwardedFor() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setKeyBy(RateLimiter.KeyBy.IP);
+        limiter.setDefaultQuota(new Quota(0.1, 1));
+        limiter.setUseForwardedFor(true);
+
+        // the entries forged by the client are ignored
+        assertEquals(0, limiter.checkQuota(forwarded("1.1.1.1, 10.0.0.1"), proxyingRequest(null, null), "gs"));
+        assertTrue(limiter.checkQuota(forwarded("2.2.2.2, 10.0.0.1"), proxyingRequest(null, null), "gs") > 0);
+        assertTrue(limiter.checkQuota(forwarded("10.0.0.1"), proxyingRequest(null, null), "gs") > 0);
+        assertEquals(0, limiter.checkQuota(forwarded("10.0.0.1,10.0.0.2"), proxyingRequest(null, null), "gs"));
+
+        limiter.setTrustedProxies(2);
+        assertEquals(0, limiter.checkQuota(forwarded("1.1.1.1, 10.0.0.3, 192.168.0.1"), proxyingRequest(null, null),
+                "gs"));
+        assertTrue(limiter.checkQuota(forwarded("2.2.2.2,10.0.0.3,192.168.0.2"), proxyingRequest(null, null),
+                "gs") > 0);
+        // fewer entries than trusted proxies
+        assertEquals(0, limiter.checkQuota(forwarded("10.0.0.4"), proxyingRequest(null, null), "gs"));
+        assertTrue(limiter.checkQuota(forwarded(" 10.0.0.4 "), proxyingRequest(null, null), "gs") > 0);
+    }
+
+    private static MockHttpServletRequest forwarded(String forwardedFor) {
+        MockHttpServletRequest request = request("192.168.0.10");
+        request.addHeader("X-Forwarded-For", forwardedFor);
+        return request;
+    }
+
+    @Test
+    public void testKeyByTarget() {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setKeyBy(RateLimiter.KeyBy.TARGET);
+        limiter.setDefaultQuota(new Quota(0.1, 1));
+
+        assertEquals(0, limiter.checkQuota(request("10.0.0.1"), proxyingRequest("bob", "ROLE_SV_USER"), "gs"));
+        long retryAfter = limiter.checkQuota(request("10.0.0.2"), proxyingRequest("alice", "ROLE_SV_USER"), "gs");
+        assertTrue(retryAfter > 9 && retryAfter <= 10);
+        assertEquals(0, limiter.checkQuota(request("10.0.0.1"), proxyingRequest("bob", "ROLE_SV_USER"), "gn"));
+    }
+}
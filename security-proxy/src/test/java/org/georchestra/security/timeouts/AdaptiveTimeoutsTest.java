@@ -0,0 +1,172 @@
+package org.georchestra.security.timeouts;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.georchestra.security.metrics.RollingHistogram;
+import org.georchestra.security.metrics.TimingRequestExecutor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveTimeoutsTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private AdaptiveTimeouts timeouts;
+
+    @Before
+    public void setUp() {
+        timeouts = new AdaptiveTimeouts();
+        timeouts.setMinSamples(10);
+        timeouts.setMultiplier(4);
+        timeouts.setReadTimeoutFloor(100);
+        timeouts.setReadTimeoutCeiling(60000);
+        timeouts.setConnectTimeoutFloor(50);
+        timeouts.setConnectTimeoutCeiling(10000);
+        timeouts.setOperations(Arrays.asList("GetFeature"));
+    }
+
+    @Test
+    public void testRollingHistogram() {
+        RollingHistogram histogram = new RollingHistogram(1000 * MS, 0);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(20 * MS, 0);
+        }
+        histogram.record(2000 * MS, 0);
+        assertEquals(25, histogram.getPercentileMillis(0.99, 0));
+        assertEquals(2500, histogram.getPercentileMillis(1, 0));
+
+        // still counted during the next window
+        histogram.record(20 * MS, 1500 * MS);
+        assertEquals(101, histogram.getCount(1500 * MS));
+        // forgotten after two windows
+        assertEquals(1, histogram.getCount(2500 * MS));
+        assertEquals(0, histogram.getCount(5000 * MS));
+    }
+
+    @Test
+    public void testKey() {
+        assertEquals("geoserver|getfeature",
+                timeouts.key("geoserver", "GET", "http://gs/wfs?REQUEST=GetFeature&typeName=a"));
+        assertEquals("geoserver|getfeature", timeouts.key("geoserver", "GET", "http://gs/wfs?REQUEST=Get%46eature"));
+        assertEquals("geoserver", timeouts.key("geoserver", "GET", "http://gs/wms?REQUEST=GetMap"));
+        assertEquals("geoserver", timeouts.key("geoserver", "GET", "http://gs/wms"));
+        // the operation of a POST is in its body
+        assertEquals("geoserver|POST", timeouts.key("geoserver", "POST", "http://gs/wps"));
+        assertEquals("geoserver|POST", timeouts.key("geoserver", "POST", "http://gs/wfs?REQUEST=GetFeature"));
+    }
+
+    private void forward(String url, long connect, long firstByte) {
+        AdaptiveTimeouts.Timeout timeout = timeouts.start("geoserver", "GET", url);
+        timeout.apply(new HttpGet(url));
+        long start = System.nanoTime();
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(TimingRequestExecutor.CONNECTED, start + connect);
+        context.setAttribute(TimingRequestExecutor.FIRST_BYTE, start + connect + firstByte);
+        timeout.completed(context);
+    }
+
+    @Test
+    public void testTimeouts() {
+        String getMap = "http://gs/wms?REQUEST=GetMap";
+        HttpGet request = new HttpGet(getMap);
+        AdaptiveTimeouts.Timeout timeout = timeouts.start("geoserver", "GET", getMap);
+        timeout.apply(request);
+        // the ceilings until enough latencies have been recorded
+        assertEquals(10000, request.getParams().getIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 0));
+        assertEquals(60000, request.getParams().getIntParameter(CoreConnectionPNames.SO_TIMEOUT, 0));
+
+        for (int i = 0; i < 10; i++) {
+            forward(getMap, 0, 40 * MS);
+        }
+        // 4 times the 50 ms bucket, the connect timeout at its floor
+        assertEquals(200, timeouts.getReadTimeout("geoserver"));
+        assertEquals(50, timeouts.getConnectTimeout("geoserver"));
+
+        // the operations listed have their own latencies
+        String getFeature = "http://gs/wfs?REQUEST=GetFeature";
+        for (int i = 0; i < 10; i++) {
+            forward(getFeature, 0, 20000 * MS);
+        }
+        assertEquals(60000, timeouts.getReadTimeout("geoserver|getfeature"));
+        assertEquals(200, timeouts.getReadTimeout("geoserver"));
+    }
+
+    @Test
+    public void testBodyTimeout() {
+        timeouts.setBodyTimeout(30000);
+        String getMap = "http://gs/wms?REQUEST=GetMap";
+        for (int i = 0; i < 10; i++) {
+            forward(getMap, 0, 40 * MS);
+        }
+        AdaptiveTimeouts.Timeout timeout = timeouts.start("geoserver", "GET", getMap);
+        timeout.apply(new HttpGet(getMap));
+        final int[] socketTimeout = new int[1];
+        HttpConnection connection = new HttpConnection() {
+            public void close() {
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public boolean isStale() {
+                return false;
+            }
+
+            public void setSocketTimeout(int timeout) {
+                socketTimeout[0] = timeout;
+            }
+
+            public int getSocketTimeout() {
+                return socketTimeout[0];
+            }
+
+            public void shutdown() {
+            }
+
+            public HttpConnectionMetrics getMetrics() {
+                return null;
+            }
+        };
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ExecutionContext.HTTP_CONNECTION, connection);
+        long now = System.nanoTime();
+        context.setAttribute(TimingRequestExecutor.CONNECTED, now);
+        context.setAttribute(TimingRequestExecutor.FIRST_BYTE, now + 40 * MS);
+        timeout.completed(context);
+
+        // the copy of the body is not bound by the time to the first byte
+        assertEquals(200, timeout.getReadTimeout());
+        assertEquals(30000, socketTimeout[0]);
+    }
+
+    @Test
+    public void testTimedOut() {
+        String getMap = "http://gs/wms?REQUEST=GetMap";
+        for (int i = 0; i < 10; i++) {
+            forward(getMap, 0, 40 * MS);
+        }
+        AdaptiveTimeouts.Timeout timeout = timeouts.start("geoserver", "GET", getMap);
+        assertEquals(200, timeout.getReadTimeout());
+        assertEquals(50, timeout.getConnectTimeout());
+        timeout.apply(new HttpGet(getMap));
+        timeout.failed(new SocketTimeoutException());
+        timeout.failed(new ConnectTimeoutException());
+
+        // the timeouts grow again when the requests time out: the 99th percentile is now in the 250 ms bucket
+        assertEquals(1000, timeouts.getReadTimeout("geoserver"));
+        assertEquals(200, timeouts.getConnectTimeout("geoserver"));
+    }
+}